@@ -0,0 +1,84 @@
+package servlet;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.Cookie;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The cookie helpers in Utils, and SessionCookie's legacy and compact encodings.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CookieBench {
+
+    private static final String SESSION_ID = "123456/10.32.215.123";
+
+    private String[] servers;
+    private Cookie cookie;
+    private String legacyValue;
+    private String compactValue;
+    private SessionCookie parsed;
+
+    @Setup
+    public void setup() {
+        servers = new String[]{"10.32.215.123", "10.32.7.44"};
+        cookie = new Cookie(Utils.cookieName, Utils.formCookieValue(SESSION_ID, 24, servers));
+        legacyValue = cookie.getValue();
+        parsed = SessionCookie.parse(legacyValue);
+        compactValue = parsed.encodeCompact();
+    }
+
+    @Benchmark
+    public String formCookieValue() {
+        return Utils.formCookieValue(SESSION_ID, 24, servers);
+    }
+
+    @Benchmark
+    public String getCookieSessionId() {
+        return Utils.getCookieSessionId(cookie);
+    }
+
+    @Benchmark
+    public int getCookieVersion() {
+        return Utils.getCookieVersion(cookie);
+    }
+
+    @Benchmark
+    public String[] getCookieIps() {
+        return Utils.getCookieIps(cookie);
+    }
+
+    @Benchmark
+    public SessionCookie parseLegacy() {
+        return SessionCookie.parse(legacyValue);
+    }
+
+    @Benchmark
+    public SessionCookie parseCompact() {
+        return SessionCookie.parse(compactValue);
+    }
+
+    @Benchmark
+    public String encodeLegacy() {
+        return parsed.encodeLegacy();
+    }
+
+    @Benchmark
+    public String encodeCompact() {
+        return parsed.encodeCompact();
+    }
+}
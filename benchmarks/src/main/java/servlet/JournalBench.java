@@ -0,0 +1,73 @@
+package servlet;
+
+import java.io.File;
+
+/** Measures the journal: logging throughput, snapshot time and warm-restart time.
+ *
+ *  Logs the given number of new sessions, snapshots them, logs some more changes on top,
+ *  then reloads everything into an empty table the way a restarted instance would. With
+ *  0 sessions it only does the reload, which is the fairer restart measurement since the
+ *  heap does not still hold the table it was written from.
+ *
+ *  Usage: java servlet.JournalBench [directory] [sessions]
+ */
+public class JournalBench {
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args.length > 0 ? args[0]
+                : System.getProperty("java.io.tmpdir") + "/proj1b-journal-bench");
+        int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        if (0 == sessions) {
+            long start = System.nanoTime();
+            SessionJournal reopened = new SessionJournal(dir, false, 10);
+            int restored = SessionState.getSessionCount();
+            report("restored " + restored + " sessions", start, restored);
+            System.out.println("high-water mark " + reopened.getHighWater());
+            return;
+        }
+        if (dir.isDirectory()) {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+        }
+
+        System.setProperty(Config.PREFIX + "journal.dir", dir.getPath());
+        System.setProperty(Config.PREFIX + "journal.snapshot.secs", "3600");
+        SessionState.startJournal();
+        SessionJournal journal = SessionState.getJournal();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            SessionState.addSession(SessionState.newSession("Hello, User! #" + i),
+                    Utils.sessionExpTime);
+        }
+        report("logged " + sessions + " sessions", start, sessions);
+
+        start = System.nanoTime();
+        int written = journal.snapshot();
+        report("snapshot of " + written + " sessions", start, written);
+
+        // changes after the snapshot have to come back from the log
+        int changes = sessions / 20;
+        for (int i = 0; i < changes; i++) {
+            SessionState ss = SessionState.newSession("after snapshot #" + i);
+            SessionState.addSession(ss, Utils.sessionExpTime);
+            SessionState.touchSession(ss.getSessionId(), 1, 2, Utils.sessionExpTime);
+        }
+        int highWater = journal.getHighWater();
+        journal.close();
+
+        SessionState.setStore(new ConcurrentSessionStore());
+        start = System.nanoTime();
+        SessionJournal reopened = new SessionJournal(dir, false, 10);
+        int restored = SessionState.getSessionCount();
+        report("restored " + restored + " sessions", start, restored);
+        System.out.println("high-water mark " + highWater + " -> " + reopened.getHighWater()
+                + (restored == sessions + changes ? "" : " (MISSING SESSIONS)"));
+    }
+
+    private static void report(String what, long start, int count) {
+        long ms = (System.nanoTime() - start) / 1000000;
+        System.out.println(what + " in " + ms + "ms ("
+                + (ms > 0 ? count * 1000L / ms : count) + "/s)");
+    }
+}
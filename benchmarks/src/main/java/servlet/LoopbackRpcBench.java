@@ -0,0 +1,47 @@
+package servlet;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** A SESSION_READ through the shared RPCClient to our own RPCListener. Every benchmark thread
+ *  shares the one client, so run it at several thread counts as well.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoopbackRpcBench {
+
+    private InetAddress[] loopback;
+    private byte[] readArgs;
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        if (!NetUtils.startRPCListener()) {
+            throw new IllegalStateException("the RPC listener is not running");
+        }
+        SessionState.addSession(new SessionState(1, "127.0.0.1", 1, "Hello Generic User!"),
+                3600 * 1000);
+        loopback = new InetAddress[]{InetAddress.getByName("127.0.0.1")};
+        readArgs = SessionCodec.encodeReadArgs("1/127.0.0.1", 1);
+    }
+
+    @Benchmark
+    public byte[] sessionReadLoopback() {
+        return NetUtils.sendRequest(NetUtils.SESSION_READ, readArgs, loopback);
+    }
+}
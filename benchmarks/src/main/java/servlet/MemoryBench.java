@@ -0,0 +1,142 @@
+package servlet;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Memory and GC comparison of the on-heap and off-heap session tables.
+ *
+ *  For each table we fill it with the given number of sessions and report the heap (and,
+ *  for the off-heap table, slab) bytes per session and the length of a full collection with
+ *  the table live. Then we churn the table the way the servlets do (remove, bump, put back)
+ *  while a request-like allocation load runs, and report the collector's count and time and
+ *  the longest stall seen by a thread that wakes every millisecond.
+ *
+ *  Run with a heap big enough for the on-heap table, e.g.
+ *  java -Xmx2g servlet.MemoryBench [sessions] [seconds of churn]
+ */
+public class MemoryBench {
+    private static final String MESSAGE = "Hello, User! This is a typical session message.";
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        System.out.println(sessions + " sessions, " + seconds + "s churn");
+        System.out.println("store\theap B/session\toff-heap B/session\tfull GC ms"
+                + "\tchurn GCs\tchurn GC ms\tmax stall ms\tops/s");
+        run("concurrent", new ConcurrentSessionStore(), sessions, seconds);
+        run("offheap", new OffHeapSessionStore(), sessions, seconds);
+    }
+
+    private static void run(String name, SessionStore store, int sessions, int seconds)
+            throws InterruptedException {
+        long base = usedHeap();
+        fill(store, sessions);
+        long heap = usedHeap() - base;
+        long offHeap = (store instanceof OffHeapSessionStore)
+            ? ((OffHeapSessionStore) store).getSlabBytes() : 0;
+
+        long start = System.nanoTime();
+        System.gc();
+        long fullGc = (System.nanoTime() - start) / 1000000;
+
+        long[] gcBefore = gcStats();
+        long[] result = churn(store, sessions, seconds);
+        long[] gcAfter = gcStats();
+
+        System.out.println(name + "\t" + heap / sessions + "\t" + offHeap / sessions + "\t" + fullGc
+                + "\t" + (gcAfter[0] - gcBefore[0]) + "\t" + (gcAfter[1] - gcBefore[1])
+                + "\t" + result[1] + "\t" + result[0] / seconds);
+
+        if (store.size() != sessions) {
+            System.out.println("  lost sessions: " + (sessions - store.size()));
+        }
+    }
+
+    private static void fill(SessionStore store, int sessions) {
+        for (int i = 0; i < sessions; i++) {
+            SessionState ss = new SessionState(i, "10.0." + (i % 50) + ".1", 1,
+                    MESSAGE + " #" + i);
+            ss.setExpiresAt(ExpiryWheel.now() + Utils.sessionExpTime);
+            store.put(ss);
+        }
+    }
+
+    /** Churn the table for the given time with a stall-detecting thread alongside.
+     *
+     * @return {operations, longest stall in msecs}
+     */
+    private static long[] churn(final SessionStore store, final int sessions, int seconds)
+            throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong maxStall = new AtomicLong();
+        Thread sleeper = new Thread() {
+            public void run() {
+                long last = System.nanoTime();
+                while (running.get()) {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    long now = System.nanoTime();
+                    long stall = (now - last) / 1000000 - 1;
+                    if (stall > maxStall.get()) {
+                        maxStall.set(stall);
+                    }
+                    last = now;
+                }
+            }
+        };
+        sleeper.setDaemon(true);
+        sleeper.start();
+
+        Random rand = new Random(5300);
+        long ops = 0;
+        long sink = 0;
+        long end = System.nanoTime() + seconds * 1000000000L;
+        while (System.nanoTime() < end) {
+            int i = rand.nextInt(sessions);
+            String id = i + "/10.0." + (i % 50) + ".1";
+            SessionState ss = store.remove(id);
+            if (null != ss) {
+                ss.incrementVersion();
+                // what a request would allocate on the way
+                sink += Utils.genHTML("Bench", ss.getMessage(), id).length();
+                ss.setExpiresAt(ExpiryWheel.now() + Utils.sessionExpTime);
+                store.put(ss);
+            }
+            ops++;
+        }
+        running.set(false);
+        sleeper.join();
+        if (0 == sink) {
+            System.out.println();
+        }
+        return new long[]{ops, maxStall.get()};
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /** @return {collections, collection time in msecs} summed over every collector
+     */
+    private static long[] gcStats() {
+        long count = 0;
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[]{count, time};
+    }
+}
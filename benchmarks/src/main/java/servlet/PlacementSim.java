@@ -0,0 +1,139 @@
+package servlet;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/** Simulation of replica placement over a cluster.
+ *
+ *  Places a set of session ids on a simulated membership and reports how evenly the backup
+ *  copies land (load skew = busiest node / mean), then how many sessions change backups when
+ *  one node leaves and when one joins. As in writeSession(), a session's backups are chosen
+ *  from the servers other than the one that created it. Two older behaviours are reported
+ *  alongside for comparison: backups taken in View HashSet order, and rendezvous ranking
+ *  over each writer's own View, which only keeps the View.MAX_VIEW_SIZE servers ranked
+ *  highest for the writer's address.
+ *
+ *  Usage: java servlet.PlacementSim [nodes] [sessions] [replicas]
+ */
+public class PlacementSim {
+
+    /** The placement writeSession() used to have: whatever order the view's HashSet gives.
+     */
+    private static class ViewOrderPlacement implements PlacementStrategy {
+        public InetAddress[] rank(String key, InetAddress[] members) {
+            HashSet<InetAddress> set = new HashSet<InetAddress>(Arrays.asList(members));
+            InetAddress[] ranked = new InetAddress[set.size()];
+            return set.toArray(ranked);
+        }
+    }
+
+    /** Rendezvous ranking over the writer's View rather than the whole membership.
+     */
+    private static class CappedViewPlacement implements PlacementStrategy {
+        private final RendezvousPlacement rendezvous = new RendezvousPlacement();
+
+        public InetAddress[] rank(String key, InetAddress[] members) {
+            String writer = SessionCodec.intToIp(SessionCodec.serverOf(key));
+            InetAddress[] view = top(rendezvous.rank(writer, members), View.MAX_VIEW_SIZE);
+            return rendezvous.rank(key, view);
+        }
+    }
+
+    public static void main(String[] args) {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        int replicas = args.length > 2 ? Integer.parseInt(args[2]) : NetUtils.WRITE_REPLICAS;
+
+        InetAddress[] members = new InetAddress[nodes + 1];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = SessionCodec.intToInetAddress(0x0a000001 + i); // 10.0.0.1, ...
+        }
+        InetAddress[] cluster = Arrays.copyOf(members, nodes);
+        InetAddress[] joined = members;
+        InetAddress[] left = Arrays.copyOfRange(members, 1, nodes);
+
+        Random rand = new Random(5300);
+        String[] ids = new String[sessions];
+        for (int i = 0; i < sessions; i++) {
+            ids[i] = i + "/" + cluster[rand.nextInt(nodes)].getHostAddress();
+        }
+
+        System.out.println(nodes + " nodes, " + sessions + " sessions, " + replicas + " backup(s)");
+        System.out.println("strategy\tmin\tmax\tmean\tstddev\tskew\tmoved(leave)\tmoved(join)");
+        report("view-order", new ViewOrderPlacement(), ids, cluster, left, joined, replicas);
+        report("capped-view", new CappedViewPlacement(), ids, cluster, left, joined, replicas);
+        report("rendezvous", new RendezvousPlacement(), ids, cluster, left, joined, replicas);
+        System.out.println("(ideal: skew 1.00, moved " + pct(1.0 / nodes) + ")");
+    }
+
+    private static void report(String name, PlacementStrategy strategy, String[] ids,
+            InetAddress[] cluster, InetAddress[] left, InetAddress[] joined, int replicas) {
+        int[] load = new int[cluster.length];
+        int movedLeave = 0;
+        int movedJoin = 0;
+
+        for (String id : ids) {
+            InetAddress writer = SessionCodec.intToInetAddress(SessionCodec.serverOf(id));
+            InetAddress[] before = top(strategy.rank(id, others(cluster, writer)), replicas);
+            for (InetAddress addr : before) {
+                load[SessionCodec.ipToInt(addr) - 0x0a000001]++;
+            }
+            movedLeave += changed(before,
+                    top(strategy.rank(id, others(left, writer)), replicas));
+            movedJoin += changed(before,
+                    top(strategy.rank(id, others(joined, writer)), replicas));
+        }
+
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        double sum = 0;
+        for (int l : load) {
+            min = Math.min(min, l);
+            max = Math.max(max, l);
+            sum += l;
+        }
+        double mean = sum / load.length;
+        double var = 0;
+        for (int l : load) {
+            var += (l - mean) * (l - mean);
+        }
+        double stddev = Math.sqrt(var / load.length);
+
+        double total = (double) ids.length * replicas;
+        System.out.println(name + "\t" + min + "\t" + max + "\t" + Math.round(mean) + "\t"
+                + Math.round(stddev) + "\t" + String.format("%.2f", max / mean) + "\t"
+                + pct(movedLeave / total) + "\t" + pct(movedJoin / total));
+    }
+
+    /** @return The members other than the writer (which never backs up its own sessions)
+     */
+    private static InetAddress[] others(InetAddress[] members, InetAddress writer) {
+        List<InetAddress> list = new ArrayList<InetAddress>(Arrays.asList(members));
+        list.remove(writer);
+        return list.toArray(new InetAddress[list.size()]);
+    }
+
+    private static InetAddress[] top(InetAddress[] ranked, int n) {
+        return Arrays.copyOf(ranked, Math.min(n, ranked.length));
+    }
+
+    /** @return How many of the old replicas are not among the new ones
+     */
+    private static int changed(InetAddress[] before, InetAddress[] after) {
+        int count = 0;
+        for (InetAddress addr : before) {
+            if (!Arrays.asList(after).contains(addr)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String pct(double frac) {
+        return String.format("%.2f%%", 100 * frac);
+    }
+}
@@ -0,0 +1,99 @@
+package servlet;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Measures RPCServer throughput (SESSION_READ ops/sec) as shards are added.
+ *
+ *  A fixed population of closed-loop clients on loopback each keep one request in flight,
+ *  so the numbers show how much extra work each added shard lets the server absorb.
+ *
+ *  Usage: java servlet.RPCBench [max shards] [clients] [seconds per run] [port]
+ */
+public class RPCBench {
+
+    public static void main(String[] args) throws Exception {
+        int maxShards = args.length > 0 ? Integer.parseInt(args[0])
+            : Runtime.getRuntime().availableProcessors();
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : NetUtils.PROJ1BRPC_PORT + 10000;
+
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        SessionState ss = new SessionState(1, "127.0.0.1", 1, "Hello Generic User!");
+        SessionState.addSession(ss, 3600 * 1000);
+        byte[] readArgs = SessionCodec.encodeReadArgs(ss.getSessionId(), ss.getVersion());
+
+        System.out.println("shards\treuseport\tops/s");
+        for (int shards = 1; shards <= maxShards; shards *= 2) {
+            RPCServer server = new RPCServer(loopback, port, shards);
+            server.start();
+            long ops = run(loopback, port, readArgs, clients, seconds);
+            System.out.println(shards + "\t" + server.isReusePort() + "\t" + ops);
+            server.close();
+            Thread.sleep(200);
+        }
+    }
+
+    /** Drive the server at addr:port with closed-loop clients.
+     *
+     * @return Completed requests per second across all clients
+     */
+    public static long run(final InetAddress addr, final int port, final byte[] readArgs,
+            int clients, int seconds) throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong total = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(clients);
+
+        for (int c = 0; c < clients; c++) {
+            Thread client = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        DatagramSocket sock = new DatagramSocket();
+                        sock.setSoTimeout(200);
+                        ByteBuffer req = ByteBuffer.allocate(4 + 2 + readArgs.length);
+                        byte[] inbuff = new byte[NetUtils.MAX_PACKET_LEN];
+                        DatagramPacket recv = new DatagramPacket(inbuff, inbuff.length);
+                        int cid = 0;
+                        while (running.get()) {
+                            req.clear();
+                            req.putInt(++cid);
+                            req.putShort(NetUtils.SESSION_READ);
+                            req.put(readArgs);
+                            sock.send(new DatagramPacket(req.array(), req.position(), addr, port));
+                            try {
+                                recv.setLength(inbuff.length);
+                                sock.receive(recv);
+                                total.incrementAndGet();
+                            } catch (SocketTimeoutException ste) {
+                                // dropped; just send the next one
+                            }
+                        }
+                        sock.close();
+                    } catch (Exception e) {
+                        System.out.println("RPCBench client: " + e.getMessage());
+                    }
+                    done.countDown();
+                }
+            };
+            client.setDaemon(true);
+            client.start();
+        }
+
+        // let every shard and client get going before we start counting
+        Thread.sleep(500);
+        long before = total.get();
+        Thread.sleep(seconds * 1000L);
+        long after = total.get();
+        running.set(false);
+        done.await();
+        return (after - before) / seconds;
+    }
+}
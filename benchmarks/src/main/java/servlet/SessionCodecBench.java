@@ -0,0 +1,111 @@
+package servlet;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The session codec: the SessionCodec binary format against the old "_"-joined string
+ *  format (legacy*), and SessionState.toBytes with and without its cached encoding.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SessionCodecBench {
+
+    @Param({"16", "128", "400"})
+    public int messageLength;
+
+    private String message;
+    private SessionState session;
+    private byte[] bytes;
+    private byte[] legacyBytes;
+    private ByteBuffer encodeBuffer;
+    private ByteBuffer decodeBuffer;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < messageLength) {
+            sb.append("Hello Generic User! ");
+        }
+        message = sb.substring(0, messageLength);
+        session = new SessionState(123456, "10.32.215.123", 24, message);
+        bytes = SessionCodec.encode(session);
+        legacyBytes = legacyToBytes(session);
+        // one reused buffer each way, as RPCListener does
+        encodeBuffer = ByteBuffer.allocate(SessionCodec.maxEncodedLength(session));
+        decodeBuffer = ByteBuffer.wrap(bytes);
+    }
+
+    @Benchmark
+    public int encode() {
+        encodeBuffer.clear();
+        SessionCodec.encode(session, encodeBuffer);
+        return encodeBuffer.position();
+    }
+
+    @Benchmark
+    public SessionState decode() {
+        decodeBuffer.clear();
+        return SessionCodec.decode(decodeBuffer);
+    }
+
+    @Benchmark
+    public byte[] legacyEncode() {
+        return legacyToBytes(session);
+    }
+
+    @Benchmark
+    public SessionState legacyDecode() {
+        return legacyFromBytes(legacyBytes);
+    }
+
+    @Benchmark
+    public byte[] toBytes() {
+        session.setMessage(message); // drops the cached encoding
+        return session.toBytes();
+    }
+
+    @Benchmark
+    public byte[] toBytesCached() {
+        return session.toBytes();
+    }
+
+    @Benchmark
+    public SessionState fromBytes() {
+        return SessionState.fromBytes(bytes);
+    }
+
+    /** The pre-SessionCodec SessionState.toBytes().
+     */
+    private static byte[] legacyToBytes(SessionState ss) {
+        String rep = ss.getSessionId() + "_" + ss.getVersion() + "_" + ss.getMessage();
+        return rep.getBytes();
+    }
+
+    /** The pre-SessionCodec SessionState.fromBytes().
+     */
+    private static SessionState legacyFromBytes(byte[] bytes) {
+        String[] sessionInfo = (new String(bytes)).split("_", 3);
+        String[] sesid = sessionInfo[0].split("/");
+        return new SessionState(
+                Integer.parseInt(sesid[0]),
+                sesid[1],
+                Integer.parseInt(sessionInfo[1]),
+                sessionInfo[2]);
+    }
+}
@@ -0,0 +1,91 @@
+package servlet;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The session table, through SessionState's static API. Each benchmark thread works on its
+ *  own sessions, so run these at several thread counts (-t 1, -t 2, ...) to see contention.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionTableBench {
+
+    private static final int POOL = 1 << 14; // sessions per thread
+    private static final String MSG = "Hello Generic User!";
+
+    /** A thread's own sessions, not yet in the table.
+     */
+    @State(Scope.Thread)
+    public static class Sessions {
+        private static final AtomicInteger threads = new AtomicInteger();
+
+        SessionState[] pool;
+        int next = 0;
+
+        @Setup
+        public void setup() {
+            SessionState.startStateGC();
+            int t = threads.getAndIncrement() & 0xFF;
+            pool = new SessionState[POOL];
+            for (int i = 0; i < POOL; i++) {
+                pool[i] = new SessionState(i, "10.0." + t + ".1", 1, MSG);
+            }
+        }
+
+        SessionState next() {
+            return pool[next++ & (POOL - 1)];
+        }
+    }
+
+    /** A thread's own sessions, already in the table.
+     */
+    @State(Scope.Thread)
+    public static class StoredSessions extends Sessions {
+        @Setup
+        public void store() {
+            for (SessionState ss : pool) {
+                SessionState.addSession(ss, 3600 * 1000);
+            }
+        }
+    }
+
+    @Benchmark
+    public SessionState addSession(Sessions s) {
+        // short expiry, so the StateWatcher keeps the table and the wheel small
+        SessionState ss = s.next();
+        SessionState.addSession(ss, 200);
+        return ss;
+    }
+
+    @Benchmark
+    public SessionState getSession(StoredSessions s) {
+        return SessionState.getSession(s.next().getSessionId());
+    }
+
+    @Benchmark
+    public SessionState removeSessionAddSession(StoredSessions s) {
+        SessionState ss = s.next();
+        SessionState removed = SessionState.removeSession(ss.getSessionId());
+        SessionState.addSession(ss, 200);
+        return removed;
+    }
+
+    @Benchmark
+    public SessionState newSession(Sessions s) {
+        return SessionState.newSession(MSG);
+    }
+}
@@ -0,0 +1,100 @@
+package servlet;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Contention benchmark for the SessionStore implementations.
+ *
+ *  Every thread runs the same mix the servlets and RPCListener generate (mostly reads, plus
+ *  remove/re-add cycles and versioned replaces) against a shared, pre-filled table, and we
+ *  report the total operations per second for 1 to 32 threads.
+ *
+ *  Usage: java servlet.StoreBench [sessions] [seconds per run]
+ */
+public class StoreBench {
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32};
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        // let the JIT settle before measuring anything
+        run(new SynchronizedSessionStore(), sessions, 4, 1);
+        run(new ConcurrentSessionStore(), sessions, 4, 1);
+
+        System.out.println("threads\tsynchronized ops/s\tconcurrent ops/s");
+        for (int threads : THREAD_COUNTS) {
+            long sync = run(new SynchronizedSessionStore(), sessions, threads, seconds);
+            long conc = run(new ConcurrentSessionStore(), sessions, threads, seconds);
+            System.out.println(threads + "\t" + sync + "\t" + conc);
+        }
+    }
+
+    /** Fill the given store and hammer it with the given number of threads.
+     *
+     * @return The total number of operations per second across all threads
+     */
+    public static long run(final SessionStore store, final int sessions, int threads, int seconds)
+            throws InterruptedException {
+        final String[] ids = new String[sessions];
+        for (int i = 0; i < sessions; i++) {
+            SessionState ss = new SessionState(i, "10.0.0.1", 1, "bench");
+            ids[i] = ss.getSessionId();
+            store.put(ss);
+        }
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong total = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            Thread worker = new Thread() {
+                @Override
+                public void run() {
+                    Random rand = new Random(seed);
+                    long ops = 0;
+                    try {
+                        start.await();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    while (running.get()) {
+                        String id = ids[rand.nextInt(ids.length)];
+                        int op = rand.nextInt(10);
+                        if (op < 7) {
+                            store.get(id);
+                        } else if (op < 9) {
+                            // the servlet path: take the session out, bump it, put it back
+                            SessionState ss = store.remove(id);
+                            if (null != ss) {
+                                ss.incrementVersion();
+                                store.put(ss);
+                            }
+                        } else {
+                            SessionState ss = store.get(id);
+                            if (null != ss) {
+                                store.replaceIfVersion(ss.getVersion(), new SessionState(
+                                        id, ss.getVersion(), ss.getMessage()));
+                            }
+                        }
+                        ops++;
+                    }
+                    total.addAndGet(ops);
+                    done.countDown();
+                }
+            };
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        start.countDown();
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        done.await();
+        return total.get() / seconds;
+    }
+}
@@ -0,0 +1,26 @@
+package servlet;
+
+import java.util.List;
+
+/** Where instances find each other: a shared list of servers that every instance reads
+ *  when it starts (and periodically after) and writes its own view back to.
+ */
+public interface BootstrapRegistry {
+    /** Read the servers currently registered.
+     *
+     * @return Their IP addresses as strings
+     */
+    public List<String> lookup();
+
+    /** Write a view back to the registry. Registries whose entries expire renew only this
+     *  instance's own, so that nobody keeps a dead server registered.
+     *
+     * @param ips The IP addresses to register, this instance's included
+     */
+    public void publish(List<String> ips);
+
+    /** Release whatever the registry holds open (sockets, threads, connections), when the
+     *  instance is undeployed.
+     */
+    public void close();
+}
@@ -0,0 +1,619 @@
+package servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Runs a cluster of instances inside one JVM and puts the servlets under load.
+ *
+ *  Every instance gets its own copy of the servlet package (through a child-first class
+ *  loader, so each has its own static state), its own loopback address (127.0.0.2, .3, ...)
+ *  given as proj1b.ip, and a MemoryRegistry shared with the others in place of SimpleDB.
+ *  A population of virtual users, each keeping the cookie it was last given, is driven
+ *  through EnterServlet, RefreshServlet, ReplaceServlet and LogOutServlet by a set of
+ *  closed-loop threads; each request goes to a random live instance, as behind a
+ *  non-sticky load balancer. Instances can be killed part way through.
+ *
+ *  Reports throughput, latency percentiles, how often sessions had to be read from another
+ *  instance, how many sessions were lost (a user with a live cookie was told the session
+ *  had expired) or stale (a page showed an older message than the user last set), and how
+ *  often writes and reads fell short of their quorum, and how much RepairService re-replicated.
+ *
+ *  With -check, once the load has stopped one more instance is killed and every other
+ *  instance suspects it, and the simulator waits (up to CHECK_SECS) until every session a
+ *  user still holds a cookie for is back at N copies of its latest version, then reports
+ *  how many are not. With no traffic, nothing but RepairService can add those copies.
+ *
+ *  Usage: java servlet.ClusterSim [-nodes 3] [-users 500] [-threads 8] [-secs 20]
+ *                                 [-warmup 5] [-kill secs:node,...] [-n N] [-w W] [-r R]
+ *                                 [-check node] [-v]
+ *  e.g. -kill 10:1 kills the second instance ten seconds into the measurement, and -n 3 -w 2
+ *  -r 2 sets replication.n, .w and .r on every instance. Linux routes
+ *  all of 127/8 to loopback; elsewhere the addresses have to be added as aliases first.
+ */
+public class ClusterSim {
+    private static final String EXPIRED = "Session Has Expired";
+    private static final String[] SERVLETS =
+        {"EnterServlet", "RefreshServlet", "ReplaceServlet", "LogOutServlet"};
+    private static final int ENTER = 0;
+    private static final int REFRESH = 1;
+    private static final int REPLACE = 2;
+    private static final int LOGOUT = 3;
+    private static final int CHECK_SECS = 15; // within the 20s cookies and 25s sessions live
+
+    /** Loads the servlet package itself rather than asking its parent, so every instance
+     *  has its own statics. Everything else (the JDK, the servlet API, this class) is shared.
+     */
+    private static class NodeLoader extends URLClassLoader {
+        NodeLoader(URL[] urls, ClassLoader parent) {
+            super(urls, parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.startsWith("servlet.") || name.startsWith(ClusterSim.class.getName())) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (null == c) {
+                    c = findClass(name);
+                }
+                if (resolve) {
+                    resolveClass(c);
+                }
+                return c;
+            }
+        }
+    }
+
+    /** One instance of the cluster.
+     */
+    private static class Node {
+        final int index;
+        final String ip;
+        final NodeLoader loader;
+        final Object[] servlets = new Object[SERVLETS.length];
+        final Method[] doPosts = new Method[SERVLETS.length];
+        volatile boolean alive = true;
+        Map<String, Number> before;
+
+        Node(int index, String ip, URL[] urls, ConcurrentMap<String, String> registry,
+                Map<String, String> settings) throws Exception {
+            this.index = index;
+            this.ip = ip;
+            this.loader = new NodeLoader(urls, ClusterSim.class.getClassLoader());
+
+            invoke("servlet.Config", "set", new Class<?>[]{String.class, String.class}, "ip", ip);
+            for (Map.Entry<String, String> setting : settings.entrySet()) {
+                invoke("servlet.Config", "set", new Class<?>[]{String.class, String.class},
+                        setting.getKey(), setting.getValue());
+            }
+            Class<?> registryType = loader.loadClass("servlet.BootstrapRegistry");
+            Object memory = loader.loadClass("servlet.MemoryRegistry")
+                .getConstructor(ConcurrentMap.class).newInstance(registry);
+            invoke("servlet.View", "setRegistry", new Class<?>[]{registryType}, memory);
+            invoke("servlet.NetUtils", "initThreads", new Class<?>[0]);
+
+            for (int i = 0; i < SERVLETS.length; i++) {
+                Class<?> c = loader.loadClass("servlet." + SERVLETS[i]);
+                servlets[i] = c.getDeclaredConstructor().newInstance();
+                doPosts[i] = c.getMethod("doPost", HttpServletRequest.class,
+                        HttpServletResponse.class);
+            }
+        }
+
+        Object invoke(String className, String method, Class<?>[] types, Object... args)
+                throws Exception {
+            return loader.loadClass(className).getMethod(method, types).invoke(null, args);
+        }
+
+        void serve(int servlet, HttpServletRequest request, HttpServletResponse response)
+                throws Exception {
+            try {
+                doPosts[servlet].invoke(servlets[servlet], request, response);
+            } catch (InvocationTargetException ite) {
+                throw (Exception) ite.getCause();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        Map<String, Number> metrics() throws Exception {
+            return (Map<String, Number>) invoke("servlet.Metrics", "snapshot", new Class<?>[0]);
+        }
+
+        void kill() throws Exception {
+            alive = false;
+            invoke("servlet.NetUtils", "shutdown", new Class<?>[0]);
+        }
+    }
+
+    /** A virtual user: the cookie its browser holds and the message it expects to see.
+     */
+    private static class User {
+        Cookie cookie = null;
+        long cookieExpires = 0;
+        String message = Utils.defaultMsg;
+        int replaces = 0;
+    }
+
+    /** What a servlet wrote back.
+     */
+    private static class Response implements InvocationHandler {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final List<Cookie> cookies = new ArrayList<Cookie>();
+
+        public Object invoke(Object proxy, Method m, Object[] args) {
+            if ("getOutputStream".equals(m.getName())) {
+                return new ServletOutputStream() {
+                    public void write(int b) {
+                        body.write(b);
+                    }
+                    public void write(byte[] b, int off, int len) {
+                        body.write(b, off, len);
+                    }
+                };
+            } else if ("getWriter".equals(m.getName())) {
+                return new PrintWriter(new OutputStreamWriter(body, SessionCodec.UTF8), true);
+            } else if ("addCookie".equals(m.getName())) {
+                cookies.add((Cookie) args[0]);
+                return null;
+            }
+            return defaultValue(m.getReturnType());
+        }
+
+        String getBody() {
+            return new String(body.toByteArray(), SessionCodec.UTF8);
+        }
+    }
+
+    private static volatile Node[] live;
+    private static final Metrics.Histogram latency = new Metrics.Histogram();
+    private static final AtomicLong requests = new AtomicLong();
+    private static final AtomicLong errors = new AtomicLong();
+    private static final AtomicLong withCookie = new AtomicLong();
+    private static final AtomicLong lost = new AtomicLong();
+    private static final AtomicLong stale = new AtomicLong();
+    private static volatile boolean measuring = false;
+    private static volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        int nodeCount = 3;
+        int userCount = 500;
+        int threadCount = 8;
+        int secs = 20;
+        int warmup = 5;
+        String kills = "";
+        int checkVictim = -1;
+        Map<String, String> settings = new TreeMap<String, String>();
+        boolean verbose = false;
+        for (int a = 0; a < args.length; a++) {
+            if ("-v".equals(args[a])) {
+                verbose = true;
+            } else if (a + 1 < args.length) {
+                String val = args[++a];
+                if ("-nodes".equals(args[a - 1])) {
+                    nodeCount = Integer.parseInt(val);
+                } else if ("-users".equals(args[a - 1])) {
+                    userCount = Integer.parseInt(val);
+                } else if ("-threads".equals(args[a - 1])) {
+                    threadCount = Integer.parseInt(val);
+                } else if ("-secs".equals(args[a - 1])) {
+                    secs = Integer.parseInt(val);
+                } else if ("-warmup".equals(args[a - 1])) {
+                    warmup = Integer.parseInt(val);
+                } else if ("-kill".equals(args[a - 1])) {
+                    kills = val;
+                } else if ("-check".equals(args[a - 1])) {
+                    checkVictim = Integer.parseInt(val);
+                } else if ("-n".equals(args[a - 1])) {
+                    settings.put("replication.n", val);
+                } else if ("-w".equals(args[a - 1])) {
+                    settings.put("replication.w", val);
+                } else if ("-r".equals(args[a - 1])) {
+                    settings.put("replication.r", val);
+                }
+            }
+        }
+
+        final PrintStream report = System.out;
+        if (!verbose) {
+            // the instances are chatty; keep the report readable
+            System.setOut(new PrintStream(new OutputStream() {
+                public void write(int b) {
+                }
+                public void write(byte[] b, int off, int len) {
+                }
+            }));
+        }
+
+        // start the cluster, then let everyone see everyone else
+        URL[] urls = new URL[]{ClusterSim.class.getProtectionDomain().getCodeSource().getLocation()};
+        ConcurrentMap<String, String> registry = new ConcurrentHashMap<String, String>();
+        final Node[] nodes = new Node[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            nodes[i] = new Node(i, "127.0.0." + (i + 2), urls, registry, settings);
+        }
+        for (Node node : nodes) {
+            node.invoke("servlet.View", "bootstrapView", new Class<?>[0]);
+        }
+        live = nodes.clone();
+
+        final User[] users = new User[userCount];
+        for (int i = 0; i < userCount; i++) {
+            users[i] = new User();
+        }
+        Thread[] workers = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final long seed = t;
+            workers[t] = new Thread() {
+                public void run() {
+                    Random rand = new Random(seed);
+                    while (running) {
+                        User user = users[rand.nextInt(users.length)];
+                        synchronized (user) {
+                            request(user, rand);
+                        }
+                    }
+                }
+            };
+            workers[t].setDaemon(true);
+            workers[t].start();
+        }
+
+        report.println("Started " + nodeCount + " instances, " + userCount + " users, "
+                + threadCount + " threads" + (settings.isEmpty() ? "" : ", " + settings)
+                + "; warming up for " + warmup + "s");
+        Thread.sleep(warmup * 1000L);
+
+        // measure
+        for (Node node : nodes) {
+            node.before = node.metrics();
+        }
+        TreeMap<Integer, Integer> schedule = new TreeMap<Integer, Integer>();
+        for (String kill : kills.split(",")) {
+            if (kill.contains(":")) {
+                String[] parts = kill.split(":");
+                schedule.put(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+            }
+        }
+        AtomicLongArray perSecond = new AtomicLongArray(secs);
+        measuring = true;
+        long start = System.nanoTime();
+        for (int s = 0; s < secs; s++) {
+            Integer victim = schedule.get(s);
+            if (null != victim && victim < nodes.length && nodes[victim].alive) {
+                kill(nodes, victim);
+                report.println("t=" + s + "s killed " + nodes[victim].ip);
+            }
+            long before = requests.get();
+            long wake = start + (s + 1) * 1000000000L;
+            Thread.sleep(Math.max(0, (wake - System.nanoTime()) / 1000000));
+            perSecond.set(s, requests.get() - before);
+        }
+        measuring = false;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        running = false;
+        for (Thread worker : workers) {
+            worker.join(5000);
+        }
+
+        // report
+        report.println();
+        report.println("requests\tops/s\tp50 ms\tp99 ms\tp999 ms\tmax ms\terrors");
+        report.println(requests.get() + "\t" + Math.round(requests.get() / elapsed)
+                + "\t" + ms(latency.getQuantile(0.5)) + "\t" + ms(latency.getQuantile(0.99))
+                + "\t" + ms(latency.getQuantile(0.999)) + "\t" + ms(latency.getMax())
+                + "\t" + errors.get());
+        StringBuilder timeline = new StringBuilder("ops per second:");
+        for (int s = 0; s < secs; s++) {
+            timeline.append(' ').append(perSecond.get(s));
+        }
+        report.println(timeline);
+
+        long local = 0;
+        long remote = 0;
+        long missing = 0;
+        long writeMisses = 0;
+        long readMisses = 0;
+        long repaired = 0;
+        long divergent = 0;
+        report.println();
+        report.println("instance\talive\tsessions\tlocal\tremote\tmissing reads"
+                + "\tmembers alive/suspect/dead");
+        for (Node node : nodes) {
+            Map<String, Number> after = node.metrics();
+            long l = delta(node, after, "proj1b_session_reads_total{source=\"local\"}");
+            long r = delta(node, after, "proj1b_session_reads_total{source=\"remote\"}");
+            long m = delta(node, after, "proj1b_session_reads_total{source=\"missing\"}");
+            report.println(node.ip + "\t" + node.alive + "\t" + after.get("proj1b_sessions").intValue()
+                    + "\t" + l + "\t" + r + "\t" + m
+                    + "\t" + after.get("proj1b_members{state=\"alive\"}").intValue()
+                    + "/" + after.get("proj1b_members{state=\"suspect\"}").intValue()
+                    + "/" + after.get("proj1b_members{state=\"dead\"}").intValue());
+            writeMisses += delta(node, after, "proj1b_quorum_misses_total{op=\"write\"}");
+            readMisses += delta(node, after, "proj1b_quorum_misses_total{op=\"read\"}");
+            repaired += delta(node, after, "proj1b_repair_sessions_total{outcome=\"stored\"}");
+            divergent += delta(node, after, "proj1b_repair_divergent_buckets_total");
+            local += l;
+            remote += r;
+            missing += m;
+        }
+        long reads = local + remote + missing;
+        report.println();
+        report.println("remote-read ratio: " + ratio(remote, reads) + " (" + remote + " of "
+                + reads + " reads)");
+        report.println("lost sessions: " + lost.get() + " of " + withCookie.get()
+                + " requests with a live cookie (" + ratio(lost.get(), withCookie.get()) + ")");
+        report.println("stale pages: " + stale.get());
+        report.println("servers per cookie: at most " + maxCookieServers(users));
+        long attempts = requests.get() + errors.get();
+        report.println("availability: " + ratio(requests.get() - lost.get(), attempts)
+                + " (requests answered without an error or a lost session)");
+        report.println("quorum misses: " + writeMisses + " writes, " + readMisses + " reads");
+        report.println("repairs: " + repaired + " copies stored, " + divergent
+                + " divergent digest buckets");
+
+        if (checkVictim >= 0 && checkVictim < nodes.length && nodes[checkVictim].alive) {
+            int copies = settings.containsKey("replication.n")
+                ? Math.max(1, Integer.parseInt(settings.get("replication.n")))
+                : NetUtils.REPLICATION_N;
+            checkReplicas(nodes, checkVictim, users, copies, report);
+        }
+        System.exit(0);
+    }
+
+    /** Kill an instance with no load running, have the others suspect it, and wait for the
+     *  sessions users still hold cookies for to get back to the given number of copies.
+     */
+    private static void checkReplicas(Node[] nodes, int victim, User[] users, int copies,
+            PrintStream report) throws Exception {
+        kill(nodes, victim);
+        InetAddress addr = InetAddress.getByName(nodes[victim].ip);
+        for (Node node : live) {
+            node.invoke("servlet.Membership", "suspect", new Class<?>[]{InetAddress.class},
+                    addr);
+        }
+        report.println();
+        report.println("replica check: killed " + nodes[victim].ip + " with no load, want "
+                + copies + " copies of each session");
+
+        long start = System.nanoTime();
+        int[] counts = new int[3];
+        for (int s = 0; s <= CHECK_SECS; s++) {
+            for (Node node : live) {
+                // what the view watcher does every few seconds
+                node.invoke("servlet.Membership", "sweep", new Class<?>[]{long.class},
+                        ExpiryWheel.now());
+            }
+            counts = countCopies(users, copies);
+            report.println("  t=" + s + "s: " + counts[1] + " of " + counts[0]
+                    + " sessions below " + copies + " copies, " + counts[2] + " held nowhere");
+            if (0 == counts[1]) {
+                break;
+            }
+            Thread.sleep(1000);
+        }
+        report.println("replica check: " + (0 == counts[1] ? "PASS" : "FAIL") + " after "
+                + Math.round((System.nanoTime() - start) / 1e9) + "s");
+    }
+
+    /** @return {sessions with a live cookie, of those below the given number of copies of
+     *          the cookie's version on live instances, of those held by none}
+     */
+    private static int[] countCopies(User[] users, int copies) throws Exception {
+        int[] counts = new int[3];
+        long now = System.currentTimeMillis();
+        for (User user : users) {
+            if (null == user.cookie || now >= user.cookieExpires) {
+                continue;
+            }
+            SessionCookie cookie = SessionCookie.parse(user.cookie.getValue());
+            if (null == cookie) {
+                continue;
+            }
+            int held = 0;
+            for (Node node : live) {
+                Object session = node.invoke("servlet.SessionState", "getSession",
+                        new Class<?>[]{String.class}, cookie.getSessionId());
+                if (null != session && cookie.getVersion()
+                        <= (Integer) session.getClass().getMethod("getVersion").invoke(session)) {
+                    held++;
+                }
+            }
+            counts[0]++;
+            if (held < copies) {
+                counts[1]++;
+            }
+            if (0 == held) {
+                counts[2]++;
+            }
+        }
+        return counts;
+    }
+
+    /** @return The most servers any user's cookie names
+     */
+    private static int maxCookieServers(User[] users) {
+        int max = 0;
+        for (User user : users) {
+            if (null == user.cookie) {
+                continue;
+            }
+            SessionCookie cookie = SessionCookie.parse(user.cookie.getValue());
+            if (null == cookie) {
+                continue;
+            }
+            int named = 0;
+            for (int ip : cookie.getReplicas()) {
+                if (0 != ip) {
+                    named++;
+                }
+            }
+            max = Math.max(max, named);
+        }
+        return max;
+    }
+
+    /** Send one request for a user to a random live instance and check the answer.
+     */
+    private static void request(User user, Random rand) {
+        Node[] nodes = live;
+        if (0 == nodes.length) {
+            return;
+        }
+        Node node = nodes[rand.nextInt(nodes.length)];
+
+        long now = System.currentTimeMillis();
+        if (null != user.cookie && now >= user.cookieExpires) {
+            // the browser throws the cookie away
+            user.cookie = null;
+            user.message = Utils.defaultMsg;
+        }
+        int servlet = ENTER;
+        String message = null;
+        if (null != user.cookie) {
+            int r = rand.nextInt(100);
+            servlet = r < 55 ? REFRESH : r < 85 ? REPLACE : r < 95 ? ENTER : LOGOUT;
+            if (REPLACE == servlet) {
+                message = "Message " + (++user.replaces);
+            }
+        }
+        final Cookie sent = user.cookie;
+        final String param = message;
+        HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+                ClusterSim.class.getClassLoader(), new Class<?>[]{HttpServletRequest.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method m, Object[] args) {
+                        if ("getCookies".equals(m.getName())) {
+                            return null == sent ? null : new Cookie[]{copy(sent)};
+                        } else if ("getParameter".equals(m.getName())) {
+                            return "replaceName".equals(args[0]) ? param : null;
+                        } else if ("getMethod".equals(m.getName())) {
+                            return "POST";
+                        }
+                        return defaultValue(m.getReturnType());
+                    }
+                });
+        Response handler = new Response();
+        HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+                ClusterSim.class.getClassLoader(), new Class<?>[]{HttpServletResponse.class},
+                handler);
+
+        long start = System.nanoTime();
+        try {
+            node.serve(servlet, request, response);
+        } catch (Exception e) {
+            if (measuring && node.alive) {
+                errors.incrementAndGet();
+            }
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        String body = handler.getBody();
+
+        if (measuring) {
+            latency.record(nanos);
+            requests.incrementAndGet();
+            if (null != sent) {
+                withCookie.incrementAndGet();
+                if (body.contains(EXPIRED)) {
+                    lost.incrementAndGet();
+                } else if (LOGOUT != servlet && null == param
+                        && !body.contains(">" + user.message + "<")) {
+                    stale.incrementAndGet();
+                }
+            }
+        }
+
+        // take the cookie the way a browser would
+        for (Cookie cookie : handler.cookies) {
+            if (0 == cookie.getMaxAge()) {
+                user.cookie = null;
+                user.message = Utils.defaultMsg;
+            } else {
+                user.cookie = copy(cookie);
+                user.cookieExpires = now + cookie.getMaxAge() * 1000L;
+            }
+        }
+        if (null != param && null != user.cookie) {
+            user.message = param;
+        }
+    }
+
+    private static void kill(Node[] nodes, int victim) throws Exception {
+        nodes[victim].kill();
+        List<Node> rest = new ArrayList<Node>();
+        for (Node node : nodes) {
+            if (node.alive) {
+                rest.add(node);
+            }
+        }
+        live = rest.toArray(new Node[rest.size()]);
+    }
+
+    /** @return A copy of the cookie, so the servlets cannot change the one the user holds
+     */
+    private static Cookie copy(Cookie cookie) {
+        Cookie c = new Cookie(cookie.getName(), cookie.getValue());
+        c.setMaxAge(cookie.getMaxAge());
+        return c;
+    }
+
+    private static long delta(Node node, Map<String, Number> after, String key) {
+        Number was = node.before.get(key);
+        return after.get(key).longValue() - (null == was ? 0 : was.longValue());
+    }
+
+    private static String ms(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+
+    private static String ratio(long part, long whole) {
+        return 0 == whole ? "n/a" : String.format("%.4f", (double) part / whole);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (boolean.class == type) {
+            return false;
+        } else if (int.class == type) {
+            return 0;
+        } else if (long.class == type) {
+            return 0L;
+        } else if (double.class == type) {
+            return 0.0;
+        } else if (float.class == type) {
+            return 0.0f;
+        } else if (short.class == type) {
+            return (short) 0;
+        } else if (byte.class == type) {
+            return (byte) 0;
+        } else if (char.class == type) {
+            return (char) 0;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,97 @@
+package servlet;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/** SessionStore backed by a lock-striped ConcurrentHashMap.
+ *
+ *  Reads never block, and writers only contend when they land on the same stripe.
+ *  Conditional operations are done with compare-and-set on the stored object rather
+ *  than by taking a table-wide lock.
+ */
+public class ConcurrentSessionStore implements SessionStore {
+    private static final int DEFAULT_STRIPES = 64;
+
+    private final ConcurrentHashMap<String, SessionState> statemap;
+
+    public ConcurrentSessionStore() {
+        this(DEFAULT_STRIPES);
+    }
+
+    public ConcurrentSessionStore(int stripes) {
+        this(1024, stripes);
+    }
+
+    /** @param capacity The number of sessions to size the table for
+     *  @param stripes The number of lock stripes
+     */
+    public ConcurrentSessionStore(int capacity, int stripes) {
+        statemap = new ConcurrentHashMap<String, SessionState>(capacity, 0.75f, stripes);
+    }
+
+    public void put(SessionState session) {
+        statemap.put(session.getSessionId(), session);
+    }
+
+    public SessionState get(String sessionid) {
+        return statemap.get(sessionid);
+    }
+
+    public SessionState remove(String sessionid) {
+        return statemap.remove(sessionid);
+    }
+
+    public SessionState removeIfVersion(String sessionid, int version) {
+        while (true) {
+            SessionState session = statemap.get(sessionid);
+            if (null == session || session.getVersion() != version) {
+                return null;
+            }
+            // only succeeds if nobody swapped the entry since we looked at it
+            if (statemap.remove(sessionid, session)) {
+                return session;
+            }
+        }
+    }
+
+    public boolean replaceIfVersion(int expectedVersion, SessionState session) {
+        String sessionid = session.getSessionId();
+        while (true) {
+            SessionState current = statemap.get(sessionid);
+            if (null == current || current.getVersion() != expectedVersion) {
+                return false;
+            }
+            if (statemap.replace(sessionid, current, session)) {
+                return true;
+            }
+        }
+    }
+
+    public boolean touch(String sessionid, int oldVersion, int newVersion, long expiresAt) {
+        SessionState session = statemap.get(sessionid);
+        return null != session && session.touch(oldVersion, newVersion, expiresAt);
+    }
+
+    public SessionState removeIfExpired(String sessionid, long now) {
+        SessionState session = statemap.get(sessionid);
+        if (null == session || session.getExpiresAt() > now) {
+            return null;
+        }
+        if (!statemap.remove(sessionid, session)) {
+            return null;
+        }
+        // the same object may have been taken out, refreshed and put back while we looked
+        if (session.getExpiresAt() > now) {
+            statemap.putIfAbsent(sessionid, session);
+            return null;
+        }
+        return session;
+    }
+
+    public String[] getSessionIds() {
+        return statemap.keySet().toArray(new String[0]);
+    }
+
+    public int size() {
+        return statemap.size();
+    }
+}
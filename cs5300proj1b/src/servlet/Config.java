@@ -0,0 +1,72 @@
+package servlet;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Tunables for an instance, read from system properties (e.g. -Dproj1b.rpc.shards=4)
+ *  with a built-in default for each. Values given to set() take precedence over the
+ *  system properties, which lets several instances in one JVM (see ClusterSim) differ.
+ */
+public class Config {
+    public static final String PREFIX = "proj1b.";
+
+    private static final ConcurrentHashMap<String, String> overrides =
+        new ConcurrentHashMap<String, String>();
+
+    /** Override a setting for this copy of the class, whatever the system properties say.
+     *
+     * @param name The setting name, without the "proj1b." prefix
+     * @param value The value to use
+     */
+    public static void set(String name, String value) {
+        overrides.put(name, value);
+    }
+
+    private static String lookup(String name) {
+        String val = overrides.get(name);
+        return null == val ? System.getProperty(PREFIX + name) : val;
+    }
+
+    /** Read an integer setting.
+     *
+     * @param name The setting name, without the "proj1b." prefix
+     * @param def The value to use if the property is missing or not a number
+     * @return The configured value
+     */
+    public static int getInt(String name, int def) {
+        String val = lookup(name);
+        if (null == val) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(val.trim());
+        } catch (NumberFormatException nfe) {
+            System.out.println("Bad value for " + PREFIX + name + ": " + val);
+            return def;
+        }
+    }
+
+    /** Read a boolean setting.
+     *
+     * @param name The setting name, without the "proj1b." prefix
+     * @param def The value to use if the property is missing
+     * @return The configured value
+     */
+    public static boolean getBoolean(String name, boolean def) {
+        String val = lookup(name);
+        if (null == val) {
+            return def;
+        }
+        return Boolean.parseBoolean(val.trim());
+    }
+
+    /** Read a string setting.
+     *
+     * @param name The setting name, without the "proj1b." prefix
+     * @param def The value to use if the property is missing
+     * @return The configured value
+     */
+    public static String getString(String name, String def) {
+        String val = lookup(name);
+        return null == val ? def : val;
+    }
+}
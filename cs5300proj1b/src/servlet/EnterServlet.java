@@ -20,19 +20,16 @@ public class EnterServlet extends HttpServlet {
     public void doGet(HttpServletRequest request, HttpServletResponse response)
         throws ServletException, IOException {
 
-        //Initialize Threads that have to run on this instance
+        // Make sure this instance is up (NodeLifecycle normally did this at deployment)
         NetUtils.initThreads();
         
         Cookie sessionCookie = null;
         SessionState state = null;
-        String[] cookieips = new String[]{};
+        SessionCookie parsed = null;
+        int[] cookieips = new int[]{};
 
         // Title for this servlet
         String title = "EnterServlet";
-
-        // start response initialization
-        response.setContentType("text/html");
-        PrintWriter out = response.getWriter();
         
         // retrieve cookies
         Cookie[] cookies = request.getCookies();
@@ -56,31 +53,32 @@ public class EnterServlet extends HttpServlet {
 
                 //retrive session state
                 //state = SessionState.removeSession(Utils.getCookieSessionId(sessionCookie));
-                state = SessionState.readSession(Utils.getCookieSessionId(sessionCookie),
-                                                Utils.getCookieVersion(sessionCookie),
-                                                Utils.getCookieIps(sessionCookie));
+                parsed = Utils.parseCookie(sessionCookie);
+                state = SessionState.readSession(parsed);
 
                 // check that session retrieved is actually in state table
                 // if it is not, assume session has expired, but user's cookies haven't
                 // been cleared (can be triggered by restarting the Tomcat instance but not
                 // restarting/clearing the browser's cookies)
                 if(null == state) {
-                    out.println(Utils.genHTML(title, "Session Has Expired", ""));
                     // we don't have this session state, so remove user's cookie
                     sessionCookie.setMaxAge(0);
                     response.addCookie(sessionCookie);
+                    Utils.writeHTML(response, title, "Session Has Expired", "");
                     return;
                 }
 
-                cookieips = Utils.getCookieIps(sessionCookie);
+                cookieips = parsed.getReplicas();
                 state.incrementVersion();
             }
         }
 
 
 
-        // Add session to session table
-        String[] hostips = SessionState.writeSession(state, cookieips);
+        // Add session to session table; a returning user's backup only needs a version bump
+        int[] hostips = (0 == cookieips.length)
+            ? SessionState.writeSession(state, cookieips)
+            : SessionState.touchSession(state, cookieips);
 
         // Send user a new cookie
         sessionCookie = new Cookie( Utils.cookieName, 
@@ -91,7 +89,7 @@ public class EnterServlet extends HttpServlet {
         // Display form
         String extra = Utils.entryForm + "\n" 
             + "<p>Session Cookie: " + Utils.cookieString(sessionCookie) + "</p>";
-        out.println(Utils.genHTML(title, state.getMessage(), extra));
+        Utils.writeHTML(response, title, state.getMessage(), extra);
     }
 
 
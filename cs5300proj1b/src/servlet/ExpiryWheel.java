@@ -0,0 +1,156 @@
+package servlet;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/** A hashed timer wheel for session expiration.
+ *
+ *  Deadlines are monotonic millisecond values (see now()). Scheduling is O(1): the entry is
+ *  appended to the bucket its deadline falls in. Rescheduling a refreshed session is just
+ *  another schedule(); the stale entry is dropped when its bucket comes due, because the
+ *  Handler sees that the session's current deadline has moved on. Each tick only touches
+ *  the one bucket that is due, so sweep cost follows the number of expiring sessions
+ *  rather than the size of the table.
+ *
+ *  Deadlines further out than one full rotation stay in their bucket until the rotation
+ *  that actually contains them.
+ */
+public class ExpiryWheel {
+
+    /** Called for every entry that comes due.
+     */
+    public interface Handler {
+        /** @param sessionid The id of a session whose scheduled deadline has passed
+         *  @param now The current time (as given by now())
+         *  @return True if the session was actually expired and removed
+         */
+        public boolean expire(String sessionid, long now);
+    }
+
+    private static class Entry {
+        final String sessionid;
+        final long deadline;
+
+        Entry(String sessionid, long deadline) {
+            this.sessionid = sessionid;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tickMs;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Entry>[] buckets;
+    private long lastTick; // last tick that was fully processed, only touched by advance()
+
+    // sweep metrics, written only by the thread calling advance()
+    private volatile long lastSweepNanos = 0;
+    private volatile int lastExpired = 0;
+    private volatile long totalExpired = 0;
+    private volatile long maxSweepNanos = 0;
+
+    /** @param tickMs The width of one bucket in milliseconds
+     *  @param wheelSize The number of buckets (rounded up to a power of two)
+     */
+    public ExpiryWheel(long tickMs, int wheelSize) {
+        int size = Integer.highestOneBit(Math.max(wheelSize - 1, 1)) << 1;
+        this.tickMs = tickMs;
+        this.mask = size - 1;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ConcurrentLinkedQueue<Entry>[] queues = new ConcurrentLinkedQueue[size];
+        this.buckets = queues;
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new ConcurrentLinkedQueue<Entry>();
+        }
+        this.lastTick = now() / tickMs;
+    }
+
+    /** The clock all deadlines are measured against.
+     *
+     * @return Monotonic time in milliseconds
+     */
+    public static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    /** Schedule a session to be looked at once its deadline has passed.
+     *
+     * @param sessionid The id of the session
+     * @param deadline The deadline, in now() milliseconds
+     */
+    public void schedule(String sessionid, long deadline) {
+        // round up so an entry never fires before its deadline
+        long tick = (deadline + tickMs - 1) / tickMs;
+        buckets[(int) (tick & mask)].add(new Entry(sessionid, deadline));
+    }
+
+    /** Process every bucket up to the given time.
+     *
+     * @param now The current time (as given by now())
+     * @param handler Called for each entry that is due
+     * @return The number of sessions the handler expired
+     */
+    public int advance(long now, Handler handler) {
+        long start = System.nanoTime();
+        long nowTick = now / tickMs;
+        int expired = 0;
+
+        // if we fell more than a rotation behind every bucket is due, but only once
+        long fromTick = Math.max(lastTick + 1, nowTick - mask);
+        for (long tick = fromTick; tick <= nowTick; tick++) {
+            ConcurrentLinkedQueue<Entry> bucket = buckets[(int) (tick & mask)];
+            // only look at what is in the bucket now, so entries we put back are not seen again
+            int pending = bucket.size();
+            for (int i = 0; i < pending; i++) {
+                Entry e = bucket.poll();
+                if (null == e) {
+                    break;
+                }
+                if (e.deadline > now) {
+                    // belongs to a later rotation
+                    bucket.add(e);
+                } else if (handler.expire(e.sessionid, now)) {
+                    expired++;
+                }
+            }
+        }
+        lastTick = nowTick;
+
+        long elapsed = System.nanoTime() - start;
+        lastSweepNanos = elapsed;
+        if (elapsed > maxSweepNanos) {
+            maxSweepNanos = elapsed;
+        }
+        lastExpired = expired;
+        totalExpired += expired;
+        return expired;
+    }
+
+    /** @return The width of one bucket in milliseconds
+     */
+    public long getTickMs() {
+        return tickMs;
+    }
+
+    /** @return How long the most recent tick took, in nanoseconds
+     */
+    public long getLastSweepNanos() {
+        return lastSweepNanos;
+    }
+
+    /** @return The longest tick seen so far, in nanoseconds
+     */
+    public long getMaxSweepNanos() {
+        return maxSweepNanos;
+    }
+
+    /** @return The number of sessions expired by the most recent tick
+     */
+    public int getLastExpired() {
+        return lastExpired;
+    }
+
+    /** @return The number of sessions expired since the wheel was created
+     */
+    public long getTotalExpired() {
+        return totalExpired;
+    }
+}
@@ -0,0 +1,140 @@
+package servlet;
+
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Tracks the health of every peer we talk to (see PeerStats) and decides when one is suspect.
+ *  Only Membership's members are tracked, and a member's stats go when Membership forgets it.
+ *
+ *  RPCClient reports every request sent, every answer (with its round-trip time) and every
+ *  timeout; RPCListener reports every request received. A single lost packet only raises a
+ *  peer's suspicion level. Once phi crosses the threshold the peer's circuit opens and we
+ *  tell Membership to suspect it, which spreads the word and, unless the peer refutes,
+ *  eventually declares it dead and drops it from the View.
+ *
+ *  Settings (see Config): fd.phi (threshold, default 8), fd.pause (msecs of silence that
+ *  are not yet suspicious, default RPC_TIMEOUT), fd.cooldown (msecs before probing an open circuit,
+ *  default 5000) and fd.min.timeout (lower bound on request timeouts, default 100).
+ */
+public class FailureDetector {
+    protected static final double MIN_STDDEV = 100.0; // msecs; keeps phi sane for quiet LANs
+
+    private static final double PHI_THRESHOLD = Config.getInt("fd.phi", 8);
+    private static final long PAUSE = Config.getInt("fd.pause", NetUtils.RPC_TIMEOUT);
+    private static final long COOLDOWN = Config.getInt("fd.cooldown", 5000);
+    private static final long MIN_TIMEOUT = Config.getInt("fd.min.timeout", 100);
+
+    private static final ConcurrentHashMap<InetAddress, PeerStats> peers =
+        new ConcurrentHashMap<InetAddress, PeerStats>();
+
+    /** @return The stats for a peer, created on first use, or null if it is not a member
+     *          (otherwise any UDP sender would get an entry that is never removed)
+     */
+    private static PeerStats stats(InetAddress addr) {
+        PeerStats stats = peers.get(addr);
+        if (null == stats) {
+            if (null == Membership.getState(addr)) {
+                return null;
+            }
+            PeerStats fresh = new PeerStats();
+            stats = peers.putIfAbsent(addr, fresh);
+            if (null == stats) {
+                stats = fresh;
+                if (null == Membership.getState(addr)) {
+                    peers.remove(addr, fresh); // Membership forgot it meanwhile
+                }
+            }
+        }
+        return stats;
+    }
+
+    /** Drop a peer's stats, once Membership has forgotten it.
+     */
+    public static void forget(InetAddress addr) {
+        peers.remove(addr);
+    }
+
+    /** Note that a request was sent to a peer.
+     */
+    public static void onSent(InetAddress addr) {
+        PeerStats stats = stats(addr);
+        if (null != stats) {
+            stats.onSent(ExpiryWheel.now());
+        }
+    }
+
+    /** Record the round-trip time of a request a peer answered.
+     *
+     * @param addr The peer
+     * @param rttNanos How long after the request the answer arrived
+     */
+    public static void onRtt(InetAddress addr, long rttNanos) {
+        PeerStats stats = stats(addr);
+        if (null != stats) {
+            stats.onRtt(rttNanos / 1e6);
+        }
+    }
+
+    /** Note that a packet (a request, a reply or a late reply) arrived from a peer.
+     */
+    public static void onHeard(InetAddress addr) {
+        PeerStats stats = stats(addr);
+        if (null != stats) {
+            stats.onHeard(ExpiryWheel.now());
+        }
+        Membership.onHeard(addr);
+    }
+
+    /** Note that requests to these peers went unanswered until their deadline, and have
+     *  Membership suspect any whose circuit this opens.
+     */
+    public static void onTimeout(Collection<InetAddress> addrs) {
+        long now = ExpiryWheel.now();
+        for (InetAddress addr : addrs) {
+            PeerStats stats = stats(addr);
+            if (null != stats && stats.onTimeout(now, PHI_THRESHOLD, PAUSE)) {
+                Membership.suspect(addr);
+            }
+        }
+    }
+
+    /** Decide whether to send a request to a peer. False while its circuit is open.
+     */
+    public static boolean allowRequest(InetAddress addr) {
+        PeerStats stats = peers.get(addr);
+        return null == stats || stats.allowRequest(ExpiryWheel.now(), COOLDOWN, NetUtils.RPC_TIMEOUT);
+    }
+
+    /** The time to wait for a request sent to all of the given peers: the largest of their
+     *  adaptive timeouts, and never more than RPC_TIMEOUT.
+     *
+     * @param addrs The peers
+     * @return The timeout in msecs
+     */
+    public static long timeoutFor(InetAddress[] addrs) {
+        long timeout = MIN_TIMEOUT;
+        for (InetAddress addr : addrs) {
+            PeerStats stats = peers.get(addr);
+            long t = null == stats ? NetUtils.RPC_TIMEOUT
+                : stats.getTimeout(MIN_TIMEOUT, NetUtils.RPC_TIMEOUT);
+            timeout = Math.max(timeout, t);
+        }
+        return timeout;
+    }
+
+    /** @return The current suspicion level of a peer (0 if unknown)
+     */
+    public static double getPhi(InetAddress addr) {
+        PeerStats stats = peers.get(addr);
+        return null == stats ? 0.0 : stats.phi(ExpiryWheel.now(), PAUSE);
+    }
+
+    /** @return A snapshot of the stats for every peer we have talked to
+     */
+    public static Map<InetAddress, PeerStats> getPeers() {
+        return new HashMap<InetAddress, PeerStats>(peers);
+    }
+}
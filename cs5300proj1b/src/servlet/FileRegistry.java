@@ -0,0 +1,109 @@
+package servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A bootstrap registry in a local (or shared) file, for running without AWS.
+ *
+ *  Each line is "ip lastPublished" with the time in epoch milliseconds. Publishing renews
+ *  only the publisher's own line (under an exclusive file lock), and entries nobody has
+ *  renewed for the expiry time are dropped, so servers that went away fall out of the file
+ *  even while others still have them in their views.
+ */
+public class FileRegistry implements BootstrapRegistry {
+    private final File file;
+    private final long expiry;
+
+    /** @param file The registry file (created if missing)
+     *  @param expiry Msecs after which an entry nobody has republished is dropped
+     */
+    public FileRegistry(File file, long expiry) {
+        this.file = file;
+        this.expiry = expiry;
+    }
+
+    public List<String> lookup() {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileLock lock = raf.getChannel().lock(0, Long.MAX_VALUE, true);
+                try {
+                    return new ArrayList<String>(read(raf.getChannel()).keySet());
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                raf.close();
+            }
+        } catch (IOException ioe) {
+            System.out.println("Could not read registry " + file + ": " + ioe.getMessage());
+            return new ArrayList<String>();
+        }
+    }
+
+    public void publish(List<String> ips) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel ch = raf.getChannel();
+                FileLock lock = ch.lock();
+                try {
+                    Map<String, Long> entries = read(ch);
+                    entries.put(NetUtils.getIP(), System.currentTimeMillis());
+                    StringBuilder out = new StringBuilder();
+                    for (Map.Entry<String, Long> e : entries.entrySet()) {
+                        out.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+                    }
+                    ch.truncate(0);
+                    ch.write(ByteBuffer.wrap(out.toString().getBytes(SessionCodec.UTF8)), 0);
+                    ch.force(false);
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                raf.close();
+            }
+        } catch (IOException ioe) {
+            System.out.println("Could not write registry " + file + ": " + ioe.getMessage());
+        }
+    }
+
+    public void close() {
+        // nothing is held open between calls
+    }
+
+    /** Read the unexpired entries of the file.
+     */
+    private Map<String, Long> read(FileChannel ch) throws IOException {
+        ByteBuffer buff = ByteBuffer.allocate((int) ch.size());
+        while (buff.hasRemaining() && ch.read(buff, buff.position()) > 0) {
+        }
+        String text = new String(buff.array(), 0, buff.position(), SessionCodec.UTF8);
+
+        Map<String, Long> entries = new LinkedHashMap<String, Long>();
+        long cutoff = System.currentTimeMillis() - expiry;
+        for (String line : text.split("\n")) {
+            String[] parts = line.trim().split(" ");
+            if (2 != parts.length) {
+                continue;
+            }
+            try {
+                long published = Long.parseLong(parts[1]);
+                if (published >= cutoff) {
+                    entries.put(parts[0], published);
+                }
+            } catch (NumberFormatException nfe) {
+                // a torn or hand-edited line; skip it
+            }
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,68 @@
+package servlet;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/** Sends RPC payloads that are too big for one packet as a sequence of FRAGMENT packets.
+ *
+ *  Each fragment looks like:
+ *  <pre>
+ *  int     call id
+ *  short   FRAGMENT (plus FLAG_MTU)
+ *  short   op code of the request/reply being carried
+ *  short   index of this fragment
+ *  short   total number of fragments
+ *  bytes   the next slice of the payload
+ *  </pre>
+ *  The receiving side puts them back together with a Reassembler.
+ */
+public final class Fragmenter {
+    public static final int HEADER_LEN = 4 + 2 + 2 + 2 + 2;
+
+    private Fragmenter() {
+    }
+
+    /** @return The number of fragments needed to carry a payload in packets of packetLimit bytes
+     */
+    public static int fragmentCount(int payloadLen, int packetLimit) {
+        int chunk = packetLimit - HEADER_LEN;
+        return Math.max(1, (payloadLen + chunk - 1) / chunk);
+    }
+
+    /** Send a payload as fragments.
+     *
+     * @param channel The channel to send on
+     * @param to Where to send the fragments
+     * @param cid The call id of the request/reply
+     * @param op The op code of the request/reply
+     * @param payload The payload, from its position to its limit (left unchanged)
+     * @param packetLimit The largest packet the receiver accepts
+     * @param scratch A buffer of at least packetLimit bytes to build packets in
+     */
+    public static void send(DatagramChannel channel, SocketAddress to, int cid, short op,
+            ByteBuffer payload, int packetLimit, ByteBuffer scratch) throws IOException {
+        int chunk = packetLimit - HEADER_LEN;
+        int start = payload.position();
+        int len = payload.remaining();
+        int count = fragmentCount(len, packetLimit);
+        ByteBuffer slice = payload.duplicate();
+
+        for (int i = 0; i < count; i++) {
+            int from = start + i * chunk;
+            slice.limit(Math.min(from + chunk, start + len));
+            slice.position(from);
+
+            scratch.clear();
+            scratch.putInt(cid);
+            scratch.putShort((short) (NetUtils.FRAGMENT | NetUtils.FLAG_MTU));
+            scratch.putShort(op);
+            scratch.putShort((short) i);
+            scratch.putShort((short) count);
+            scratch.put(slice);
+            scratch.flip();
+            channel.send(scratch, to);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package servlet;
+
+import java.io.*;
+import javax.servlet.*;
+import javax.servlet.annotation.*;
+import javax.servlet.http.*;
+
+
+/** Tells a load balancer whether this instance should get users: 200 once NodeLifecycle has
+ *  started everything, 503 while it is starting or stopping, or if startup failed. The body
+ *  says which, with a few details for people reading it.
+ */
+@WebServlet("/health")
+public class HealthServlet extends HttpServlet {
+
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException {
+        NodeLifecycle.Status status = NodeLifecycle.getStatus();
+        StringBuilder text = new StringBuilder();
+        text.append(status).append('\n');
+        if (NodeLifecycle.Status.READY == status) {
+            text.append("ip ").append(NetUtils.getIP()).append('\n');
+            text.append("view ").append(View.getString()).append('\n');
+            text.append("sessions ").append(SessionState.getSessionCount()).append('\n');
+            text.append("startup_ms ").append(NodeLifecycle.getStartMillis()).append('\n');
+        }
+        byte[] body = text.toString().getBytes(SessionCodec.UTF8);
+
+        response.setStatus(NodeLifecycle.Status.READY == status
+                ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setContentType("text/plain; charset=utf-8");
+        response.setContentLength(body.length);
+        OutputStream out = response.getOutputStream();
+        out.write(body);
+        out.flush();
+    }
+}
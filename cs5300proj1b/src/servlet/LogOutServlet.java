@@ -20,16 +20,16 @@ public class LogOutServlet extends HttpServlet {
     public void doPost(HttpServletRequest request, HttpServletResponse response)
         throws ServletException, IOException {
 
+        // Make sure this instance is up (NodeLifecycle normally did this at deployment)
+        NetUtils.initThreads();
+
         Cookie sessionCookie = null;
         SessionState state = null;
+        SessionCookie parsed = null;
         
         // Title for this servlet
         String title = "LogOutServlet";
         
-        // start response initialization
-        response.setContentType("text/html");
-        PrintWriter out = response.getWriter();
-        
         // retrieve cookies
         Cookie[] cookies = request.getCookies();
 
@@ -43,7 +43,7 @@ public class LogOutServlet extends HttpServlet {
 
             // Can't find a correct cookie?
             if(i == cookies.length) {
-                out.println(Utils.genHTML(title, "No Session to Log Out Of", ""));
+                Utils.writeHTML(response, title, "No Session to Log Out Of", "");
                 return;
             }
 
@@ -51,27 +51,26 @@ public class LogOutServlet extends HttpServlet {
 
             // retrieve session state
             //state = SessionState.removeSession(Utils.getCookieSessionId(sessionCookie));
-            state = SessionState.readSession(Utils.getCookieSessionId(sessionCookie),
-                                            Utils.getCookieVersion(sessionCookie),
-                                            Utils.getCookieIps(sessionCookie));
+            parsed = Utils.parseCookie(sessionCookie);
+            state = SessionState.readSession(parsed);
 
             //check that session retrieved is actually in state table
             if(null == state) {
-                out.println(Utils.genHTML(title, "Session Has Expired", ""));
                 sessionCookie.setMaxAge(0);
                 response.addCookie(sessionCookie);
+                Utils.writeHTML(response, title, "Session Has Expired", "");
                 return;
             }
 
             state.incrementVersion();
 
-            out.println(Utils.genHTML(title, "Bye!", ""));
-
             // Don't bother setting anything extra since we are removing the cookie
             sessionCookie.setMaxAge(0);
             response.addCookie(sessionCookie);
+
+            Utils.writeHTML(response, title, "Bye!", "");
         } else {
-            out.println(Utils.genHTML(title, "No Session to Log Out Of", ""));
+            Utils.writeHTML(response, title, "No Session to Log Out Of", "");
         }
     }
 }
@@ -0,0 +1,378 @@
+package servlet;
+
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** SWIM-style cluster membership: every known server is ALIVE, SUSPECT or DEAD at some
+ *  incarnation number, and changes spread by infection rather than by copying whole views.
+ *
+ *  Updates are piggybacked on RPC packets we send anyway (requests and replies alike, see
+ *  appendGossip()), each one about lambda * log2(N) times, which reaches everybody in
+ *  O(log N) rounds. A server that hears it is suspected (or dead) refutes it by bumping its
+ *  own incarnation. Suspects are declared dead after swim.suspect.ms (default 6000) unless
+ *  they refute, and the View holds the servers that are not dead.
+ *
+ *  Wire form of the updates, appended after a packet's arguments when the header carries
+ *  NetUtils.FLAG_GOSSIP:
+ *    varint  count
+ *    count * (int ip, byte state, varint incarnation)
+ *    short   length of the above
+ */
+public class Membership {
+    public enum State { ALIVE, SUSPECT, DEAD }
+
+    protected static final int MAX_PIGGYBACK = 8; // updates per packet
+    // the most appendGossip() writes: count, MAX_PIGGYBACK entries, trailing length
+    protected static final int MAX_GOSSIP_LEN = 1 + MAX_PIGGYBACK * (4 + 1 + 5) + 2;
+
+    private static final int LAMBDA = Config.getInt("swim.lambda", 3);
+    private static final long SUSPECT_TIMEOUT = Config.getInt("swim.suspect.ms", 6000);
+    // msecs we remember the dead: at least as long as a registry may still list them, or
+    // View.bootstrapView() would bring them back as alive
+    private static final long TOMBSTONE_TIME = Math.max(60 * 1000, View.REGISTRY_EXPIRY);
+
+    /** What we know about one server.
+     */
+    private static class Member {
+        final InetAddress addr;
+        final int ip;
+        volatile State state = State.ALIVE;
+        int incarnation;
+        long changedAt;
+        int transmits = 0; // times the current update has been piggybacked
+        volatile boolean queued = false;
+
+        Member(InetAddress addr, int incarnation, long now) {
+            this.addr = addr;
+            this.ip = SessionCodec.ipToInt(addr);
+            this.incarnation = incarnation;
+            this.changedAt = now;
+        }
+    }
+
+    private static final Object lock = new Object();
+    private static final ConcurrentHashMap<InetAddress, Member> members =
+        new ConcurrentHashMap<InetAddress, Member>();
+    private static final List<Member> queue = new ArrayList<Member>(); // guarded by lock
+    private static volatile int queued = 0;
+    private static volatile InetAddress[] live = null; // getLive(), rebuilt after a change
+
+    // ourselves; starting at the boot time means a restart outranks rumours of our death
+    private static final Member self = new Member(
+            SessionCodec.intToInetAddress(SessionCodec.ipToInt(NetUtils.getIP())),
+            (int) (System.currentTimeMillis() / 1000), ExpiryWheel.now());
+    static {
+        synchronized (lock) {
+            enqueue(self);
+        }
+    }
+
+    private static final Comparator<Member> FEWEST_TRANSMITS = new Comparator<Member>() {
+        public int compare(Member a, Member b) {
+            return a.transmits < b.transmits ? -1 : (a.transmits == b.transmits ? 0 : 1);
+        }
+    };
+
+    /** Learn of a server from outside the protocol (e.g. the bootstrap registry). Servers we
+     *  already know about, in whatever state, are left alone.
+     *
+     * @param addr The server
+     */
+    public static void discover(InetAddress addr) {
+        if (self.addr.equals(addr) || members.containsKey(addr)) {
+            return;
+        }
+        synchronized (lock) {
+            if (!members.containsKey(addr)) {
+                members.put(addr, new Member(addr, 0, ExpiryWheel.now()));
+                live = null;
+                View.addAddr(addr);
+            }
+        }
+    }
+
+    /** Suspect a server we cannot reach. Does nothing unless we think it is alive.
+     *
+     * @param addr The server
+     */
+    public static void suspect(InetAddress addr) {
+        Member m = members.get(addr);
+        if (null == m || State.ALIVE != m.state) {
+            return;
+        }
+        synchronized (lock) {
+            if (State.ALIVE == m.state) {
+                System.out.println("Suspecting ip: " + addr);
+                change(m, State.SUSPECT, m.incarnation, ExpiryWheel.now());
+            }
+        }
+    }
+
+    /** Note a packet from a server. If we think it is suspect or dead, make sure our next
+     *  packets say so, so that it gets the chance to refute.
+     *
+     * @param addr The sender
+     */
+    public static void onHeard(InetAddress addr) {
+        Member m = members.get(addr);
+        if (null == m || State.ALIVE == m.state || m.queued) {
+            return;
+        }
+        synchronized (lock) {
+            if (!m.queued) {
+                m.transmits = 0;
+                enqueue(m);
+            }
+        }
+    }
+
+    /** Declare suspects that have not refuted in time dead, and forget long-dead servers.
+     *
+     * @param now The current time, as given by ExpiryWheel.now()
+     */
+    public static void sweep(long now) {
+        synchronized (lock) {
+            Iterator<Member> it = members.values().iterator();
+            while (it.hasNext()) {
+                Member m = it.next();
+                if (State.SUSPECT == m.state && now - m.changedAt >= SUSPECT_TIMEOUT) {
+                    change(m, State.DEAD, m.incarnation, now);
+                } else if (State.DEAD == m.state && now - m.changedAt >= TOMBSTONE_TIME
+                        && !m.queued) {
+                    it.remove();
+                    FailureDetector.forget(m.addr);
+                }
+            }
+        }
+    }
+
+    /** Pick a server to probe: any we do not believe dead, at random.
+     *
+     * @return The server, or null if we know of none
+     */
+    public static InetAddress pickProbeTarget(Random rand) {
+        List<InetAddress> candidates = new ArrayList<InetAddress>();
+        for (Member m : members.values()) {
+            if (State.DEAD != m.state) {
+                candidates.add(m.addr);
+            }
+        }
+        return candidates.isEmpty() ? null : candidates.get(rand.nextInt(candidates.size()));
+    }
+
+    /** The servers we do not believe dead, not counting ourselves. Unlike the View, which
+     *  only keeps a few of them, this is every server we know of, so it is what sessions
+     *  are placed over.
+     *
+     * @return The servers; callers must not modify the array
+     */
+    public static InetAddress[] getLive() {
+        InetAddress[] addrs = live;
+        if (null == addrs) {
+            synchronized (lock) {
+                List<InetAddress> alive = new ArrayList<InetAddress>(members.size());
+                for (Member m : members.values()) {
+                    if (State.DEAD != m.state) {
+                        alive.add(m.addr);
+                    }
+                }
+                addrs = alive.toArray(new InetAddress[alive.size()]);
+                live = addrs;
+            }
+        }
+        return addrs;
+    }
+
+    /** @return The state we believe a server is in (null if we have never heard of it)
+     */
+    public static State getState(InetAddress addr) {
+        Member m = members.get(addr);
+        return null == m ? null : m.state;
+    }
+
+    /** @return The number of servers we believe to be in the given state
+     */
+    public static int count(State state) {
+        int n = 0;
+        for (Member m : members.values()) {
+            if (state == m.state) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /** @return Our own incarnation number
+     */
+    public static int getIncarnation() {
+        synchronized (lock) {
+            return self.incarnation;
+        }
+    }
+
+    /** Append pending updates to an outgoing packet, if there are any.
+     *
+     * @param buff The packet, positioned after its arguments, with MAX_GOSSIP_LEN bytes free
+     * @return True if anything was appended (the caller sets FLAG_GOSSIP)
+     */
+    public static boolean appendGossip(ByteBuffer buff) {
+        if (0 == queued) {
+            return false;
+        }
+        synchronized (lock) {
+            if (queue.isEmpty()) {
+                return false;
+            }
+            // the least-spread updates go first
+            Collections.sort(queue, FEWEST_TRANSMITS);
+            int limit = LAMBDA * (32 - Integer.numberOfLeadingZeros(members.size() + 1));
+            int start = buff.position();
+            int count = Math.min(MAX_PIGGYBACK, queue.size());
+            SessionCodec.putVarint(buff, count);
+            for (int i = 0; i < count; i++) {
+                Member m = queue.get(i);
+                buff.putInt(m.ip);
+                buff.put((byte) m.state.ordinal());
+                SessionCodec.putVarint(buff, m.incarnation);
+                m.transmits++;
+            }
+            buff.putShort((short) (buff.position() - start));
+
+            Iterator<Member> it = queue.iterator();
+            while (it.hasNext()) {
+                Member m = it.next();
+                if (m.transmits >= limit) {
+                    m.queued = false;
+                    it.remove();
+                }
+            }
+            queued = queue.size();
+            return true;
+        }
+    }
+
+    /** Strip the piggybacked updates from the end of a received packet and apply them.
+     *
+     * @param packet The packet, positioned at its arguments; its limit is moved back to the
+     *          end of the arguments
+     * @return False if the trailer was malformed (the packet should be treated as truncated)
+     */
+    public static boolean readGossip(ByteBuffer packet) {
+        int end = packet.limit();
+        if (end - packet.position() < 2) {
+            return false;
+        }
+        int len = packet.getShort(end - 2);
+        int start = end - 2 - len;
+        if (len < 1 || start < packet.position()) {
+            return false;
+        }
+        ByteBuffer gossip = packet.duplicate();
+        gossip.position(start);
+        gossip.limit(end - 2);
+        packet.limit(start);
+
+        try {
+            int count = SessionCodec.getVarint(gossip);
+            long now = ExpiryWheel.now();
+            for (int i = 0; i < count; i++) {
+                int ip = gossip.getInt();
+                int state = gossip.get();
+                int incarnation = SessionCodec.getVarint(gossip);
+                if (state >= 0 && state < State.values().length) {
+                    apply(ip, State.values()[state], incarnation, now);
+                }
+            }
+            return true;
+        } catch (BufferUnderflowException bue) {
+            return false;
+        }
+    }
+
+    /** Apply one update, if it is news, and pass it on.
+     */
+    private static void apply(int ip, State state, int incarnation, long now) {
+        InetAddress addr = SessionCodec.intToInetAddress(ip);
+        synchronized (lock) {
+            if (self.ip == ip) {
+                if (State.ALIVE != state && incarnation >= self.incarnation) {
+                    // refute: we are alive, at a newer incarnation than the rumour
+                    self.incarnation = incarnation + 1;
+                    self.transmits = 0;
+                    enqueue(self);
+                }
+                return;
+            }
+
+            Member m = members.get(addr);
+            if (null == m) {
+                m = new Member(addr, incarnation, now);
+                m.state = state;
+                members.put(addr, m);
+                live = null;
+                if (State.DEAD != state) {
+                    View.addAddr(addr);
+                }
+                enqueue(m);
+                return;
+            }
+
+            boolean newer;
+            switch (state) {
+                case ALIVE:
+                    newer = incarnation > m.incarnation;
+                    break;
+                case SUSPECT:
+                    newer = incarnation > m.incarnation
+                        || (State.ALIVE == m.state && incarnation == m.incarnation);
+                    break;
+                default:
+                    newer = incarnation > m.incarnation
+                        || (State.DEAD != m.state && incarnation == m.incarnation);
+                    break;
+            }
+            if (newer) {
+                change(m, state, incarnation, now);
+            }
+        }
+    }
+
+    /** Move a member to a new state and queue the news. Called holding lock.
+     */
+    private static void change(Member m, State state, int incarnation, long now) {
+        State old = m.state;
+        m.incarnation = incarnation;
+        m.changedAt = now;
+        m.state = state;
+        m.transmits = 0;
+        enqueue(m);
+        live = null;
+
+        if (State.DEAD == state && State.DEAD != old) {
+            System.out.println("Removing ip: " + m.addr);
+            View.removeAddr(m.addr);
+            // whether or not it was in our View, it may have held copies of our sessions
+            RepairService.peerRemoved(m.addr);
+        } else if (State.DEAD != state && State.DEAD == old) {
+            View.addAddr(m.addr);
+        }
+    }
+
+    /** Called holding lock.
+     */
+    private static void enqueue(Member m) {
+        if (!m.queued) {
+            m.queued = true;
+            queue.add(m);
+            queued = queue.size();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package servlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+/** A bootstrap registry held in a map, for instances that share a JVM (see ClusterSim).
+ *  The map is keyed by IP address; the instances must all be given the same one.
+ */
+public class MemoryRegistry implements BootstrapRegistry {
+    private final ConcurrentMap<String, String> servers;
+
+    /** @param servers The shared map of registered servers
+     */
+    public MemoryRegistry(ConcurrentMap<String, String> servers) {
+        this.servers = servers;
+    }
+
+    public List<String> lookup() {
+        return new ArrayList<String>(servers.keySet());
+    }
+
+    public void publish(List<String> ips) {
+        for (String ip : ips) {
+            servers.put(ip, ip);
+        }
+    }
+
+    public void close() {
+        // the map belongs to ClusterSim
+    }
+}
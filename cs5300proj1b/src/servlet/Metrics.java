@@ -0,0 +1,507 @@
+package servlet;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+/** Counters, gauges and latency histograms for this instance.
+ *
+ *  Recording is lock free: counters are AtomicLongs and histograms are arrays of them, so
+ *  the RPC and session paths only pay for an atomic increment. Gauges are read when the
+ *  metrics are collected. Everything is exposed in the Prometheus text format (see
+ *  MetricsServlet, at /metrics) and as attributes of the proj1b:type=Metrics MBean.
+ */
+public class Metrics {
+    private static final int OPS = 16; // op codes we keep per-op metrics for
+
+    /** A metric that can write itself out.
+     */
+    public interface Metric {
+        /** @return The Prometheus type: counter, gauge or summary
+         */
+        public String getType();
+
+        /** Add the metric's current values to a snapshot.
+         *
+         * @param key The metric's name and labels, e.g. name{op="session_read"}
+         * @param values Where to put the values
+         */
+        public void snapshot(String key, Map<String, Number> values);
+
+        /** Append the metric in the text exposition format.
+         */
+        public void write(String name, String labels, StringBuilder out);
+    }
+
+    /** A monotonically increasing count.
+     */
+    public static class Counter implements Metric {
+        private final AtomicLong count = new AtomicLong();
+
+        public void inc() {
+            count.incrementAndGet();
+        }
+
+        public void add(long n) {
+            count.addAndGet(n);
+        }
+
+        public long get() {
+            return count.get();
+        }
+
+        public String getType() {
+            return "counter";
+        }
+
+        public void snapshot(String key, Map<String, Number> values) {
+            values.put(key, get());
+        }
+
+        public void write(String name, String labels, StringBuilder out) {
+            line(out, name, labels, null, get());
+        }
+    }
+
+    /** A value read from elsewhere when the metrics are collected.
+     */
+    public abstract static class Gauge implements Metric {
+        private final String type;
+
+        public Gauge() {
+            this("gauge");
+        }
+
+        /** @param type "counter" for a count kept by someone else, "gauge" otherwise
+         */
+        public Gauge(String type) {
+            this.type = type;
+        }
+
+        public abstract double get();
+
+        public String getType() {
+            return type;
+        }
+
+        public void snapshot(String key, Map<String, Number> values) {
+            values.put(key, get());
+        }
+
+        public void write(String name, String labels, StringBuilder out) {
+            line(out, name, labels, null, get());
+        }
+    }
+
+    /** A log-linear histogram of nanosecond durations, in the manner of HdrHistogram:
+     *  8 buckets per power of two, so values are kept to within 12.5% from 1ns to ~18 minutes.
+     */
+    public static class Histogram implements Metric {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int MAX_EXP = 40;
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+        private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+        private final AtomicLongArray buckets = new AtomicLongArray((MAX_EXP - 1) * SUB_COUNT);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        /** Record one duration.
+         *
+         * @param nanos The duration in nanoseconds
+         */
+        public void record(long nanos) {
+            long v = Math.max(0, nanos);
+            buckets.incrementAndGet(index(v));
+            count.incrementAndGet();
+            sum.addAndGet(v);
+            long m = max.get();
+            while (v > m && !max.compareAndSet(m, v)) {
+                m = max.get();
+            }
+        }
+
+        private static int index(long v) {
+            if (v < SUB_COUNT) {
+                return (int) v;
+            }
+            int exp = Math.min(63 - Long.numberOfLeadingZeros(v), MAX_EXP);
+            int sub = (int) ((v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1));
+            return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+        }
+
+        /** @return The middle of the values that land in bucket i
+         */
+        private static long midpoint(int i) {
+            if (i < SUB_COUNT) {
+                return i;
+            }
+            int exp = i / SUB_COUNT + SUB_BITS - 1;
+            long width = 1L << (exp - SUB_BITS);
+            return (SUB_COUNT + i % SUB_COUNT) * width + width / 2;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /** @param q The quantile, between 0 and 1
+         *  @return The value (in nanoseconds) below which that share of the durations fall
+         */
+        public long getQuantile(double q) {
+            long total = count.get();
+            if (0 == total) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(midpoint(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        public String getType() {
+            return "summary";
+        }
+
+        public void snapshot(String key, Map<String, Number> values) {
+            values.put(key + ".count", getCount());
+            for (int i = 0; i < QUANTILES.length; i++) {
+                values.put(key + "." + QUANTILE_NAMES[i], getQuantile(QUANTILES[i]) / 1e9);
+            }
+            values.put(key + ".max", getMax() / 1e9);
+        }
+
+        public void write(String name, String labels, StringBuilder out) {
+            for (double q : QUANTILES) {
+                line(out, name, labels, "quantile=\"" + q + "\"", getQuantile(q) / 1e9);
+            }
+            line(out, name + "_sum", labels, null, sum.get() / 1e9);
+            line(out, name + "_count", labels, null, getCount());
+        }
+    }
+
+    // name{labels} -> metric, sorted so every series of a name is written together
+    private static final ConcurrentSkipListMap<String, Metric> registry =
+        new ConcurrentSkipListMap<String, Metric>();
+
+    // the op codes that are requests; replies and anything unknown share an "other" slot
+    private static final short[] REQUEST_OPS = {NetUtils.SESSION_READ, NetUtils.SESSION_WRITE,
+        NetUtils.GET_VIEW, NetUtils.SESSION_WRITE_BATCH, NetUtils.SESSION_TOUCH, NetUtils.PING,
+        NetUtils.SESSION_DIGEST, NetUtils.SESSION_SYNC, NetUtils.SESSION_REPAIR};
+
+    // RPC, indexed by slot(op code)
+    public static final Histogram[] RPC_CLIENT_LATENCY = new Histogram[OPS + 1];
+    public static final Counter[] RPC_REPLIES = new Counter[OPS + 1];
+    public static final Counter[] RPC_NO_REPLIES = new Counter[OPS + 1];
+    public static final Counter[] RPC_TIMEOUTS = new Counter[OPS + 1];
+    public static final Histogram[] RPC_SERVER_LATENCY = new Histogram[OPS + 1];
+    static {
+        registerOp(OPS, "other");
+        for (int op = 0; op < OPS; op++) {
+            RPC_CLIENT_LATENCY[op] = RPC_CLIENT_LATENCY[OPS];
+            RPC_REPLIES[op] = RPC_REPLIES[OPS];
+            RPC_NO_REPLIES[op] = RPC_NO_REPLIES[OPS];
+            RPC_TIMEOUTS[op] = RPC_TIMEOUTS[OPS];
+            RPC_SERVER_LATENCY[op] = RPC_SERVER_LATENCY[OPS];
+        }
+        for (short op : REQUEST_OPS) {
+            registerOp(op, opName(op));
+        }
+    }
+
+    private static void registerOp(int slot, String name) {
+        String l = "op=\"" + name + "\"";
+        RPC_CLIENT_LATENCY[slot] = histogram("proj1b_rpc_client_latency_seconds", l);
+        RPC_REPLIES[slot] = counter("proj1b_rpc_client_responses_total", l + ",outcome=\"reply\"");
+        RPC_NO_REPLIES[slot] = counter("proj1b_rpc_client_responses_total",
+                l + ",outcome=\"no_reply\"");
+        RPC_TIMEOUTS[slot] = counter("proj1b_rpc_client_responses_total",
+                l + ",outcome=\"timeout\"");
+        RPC_SERVER_LATENCY[slot] = histogram("proj1b_rpc_server_latency_seconds", l);
+    }
+
+    public static final Counter CLIENT_TRUNCATED =
+        counter("proj1b_rpc_truncated_packets_total", "side=\"client\"");
+    public static final Counter SERVER_TRUNCATED =
+        counter("proj1b_rpc_truncated_packets_total", "side=\"server\"");
+
+    // where SessionState.readSession() found sessions
+    public static final Counter READS_LOCAL = counter("proj1b_session_reads_total", "source=\"local\"");
+    public static final Counter READS_REMOTE =
+        counter("proj1b_session_reads_total", "source=\"remote\"");
+    public static final Counter READS_MISSING =
+        counter("proj1b_session_reads_total", "source=\"missing\"");
+
+    // session writes and remote reads that heard from fewer replicas than their quorum
+    public static final Counter WRITE_QUORUM_MISSES =
+        counter("proj1b_quorum_misses_total", "op=\"write\"");
+    public static final Counter READ_QUORUM_MISSES =
+        counter("proj1b_quorum_misses_total", "op=\"read\"");
+
+    // RepairService: copies sent to backups, and leaves found to differ by reconciliation
+    public static final Counter REPAIR_STORED =
+        counter("proj1b_repair_sessions_total", "outcome=\"stored\"");
+    public static final Counter REPAIR_FAILED =
+        counter("proj1b_repair_sessions_total", "outcome=\"failed\"");
+    public static final Counter REPAIR_BUCKETS = counter("proj1b_repair_divergent_buckets_total", null);
+
+    // the session table and its expiry sweep
+    public static final Histogram SWEEP_LATENCY = histogram("proj1b_sweep_duration_seconds", null);
+    public static final Counter SWEEP_EVICTIONS = counter("proj1b_sweep_evictions_total", null);
+
+    // membership
+    public static final Counter VIEW_ADDED = counter("proj1b_view_changes_total", "change=\"added\"");
+    public static final Counter VIEW_REMOVED =
+        counter("proj1b_view_changes_total", "change=\"removed\"");
+
+    static {
+        register("proj1b_sessions", null, new Gauge() {
+            public double get() {
+                return SessionState.getSessionCount();
+            }
+        });
+        register("proj1b_repair_queue", null, new Gauge() {
+            public double get() {
+                return RepairService.getQueued();
+            }
+        });
+        register("proj1b_view_size", null, new Gauge() {
+            public double get() {
+                return View.getView().length;
+            }
+        });
+        for (final Membership.State state : Membership.State.values()) {
+            register("proj1b_members", "state=\"" + state.name().toLowerCase() + "\"",
+                    new Gauge() {
+                        public double get() {
+                            return Membership.count(state);
+                        }
+                    });
+        }
+        register("proj1b_peers_open", null, new Gauge() {
+            public double get() {
+                int open = 0;
+                for (PeerStats stats : FailureDetector.getPeers().values()) {
+                    if (PeerStats.State.CLOSED != stats.getState()) {
+                        open++;
+                    }
+                }
+                return open;
+            }
+        });
+        register("proj1b_journal_high_water", null, new Gauge() {
+            public double get() {
+                SessionJournal journal = SessionState.getJournal();
+                return null == journal ? 0 : journal.getHighWater();
+            }
+        });
+    }
+
+    /** @return The name used in metric labels for an op code
+     */
+    public static String opName(int op) {
+        switch (op) {
+            case NetUtils.SESSION_READ:
+                return "session_read";
+            case NetUtils.SESSION_WRITE:
+                return "session_write";
+            case NetUtils.GET_VIEW:
+                return "get_view";
+            case NetUtils.SESSION_WRITE_BATCH:
+                return "session_write_batch";
+            case NetUtils.SESSION_TOUCH:
+                return "session_touch";
+            case NetUtils.PING:
+                return "ping";
+            case NetUtils.SESSION_DIGEST:
+                return "session_digest";
+            case NetUtils.SESSION_SYNC:
+                return "session_sync";
+            case NetUtils.SESSION_REPAIR:
+                return "session_repair";
+            default:
+                return "op_" + op;
+        }
+    }
+
+    /** @return The index into the per-op metric arrays for an op code
+     */
+    public static int slot(int op) {
+        return op >= 0 && op < OPS ? op : OPS;
+    }
+
+    /** Add a metric to the registry, replacing any with the same name and labels.
+     *
+     * @param name The metric name
+     * @param labels The labels without braces, e.g. op="session_read" (or null for none)
+     * @param metric The metric
+     */
+    public static <M extends Metric> M register(String name, String labels, M metric) {
+        registry.put(null == labels ? name : name + "{" + labels + "}", metric);
+        return metric;
+    }
+
+    public static Counter counter(String name, String labels) {
+        return register(name, labels, new Counter());
+    }
+
+    public static Histogram histogram(String name, String labels) {
+        return register(name, labels, new Histogram());
+    }
+
+    /** @return Every metric in the Prometheus text exposition format (version 0.0.4)
+     */
+    public static String toText() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        String lastName = null;
+        for (Map.Entry<String, Metric> e : registry.entrySet()) {
+            String key = e.getKey();
+            int brace = key.indexOf('{');
+            String name = brace < 0 ? key : key.substring(0, brace);
+            String labels = brace < 0 ? null : key.substring(brace + 1, key.length() - 1);
+            if (!name.equals(lastName)) {
+                out.append("# TYPE ").append(name).append(' ').append(e.getValue().getType())
+                    .append('\n');
+                lastName = name;
+            }
+            e.getValue().write(name, labels, out);
+        }
+        return out.toString();
+    }
+
+    /** @return Every metric value, keyed by name{labels} (histograms get .count, .p50, etc.)
+     */
+    public static Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<String, Number>();
+        for (Map.Entry<String, Metric> e : registry.entrySet()) {
+            e.getValue().snapshot(e.getKey(), values);
+        }
+        return values;
+    }
+
+    private static void line(StringBuilder out, String name, String labels, String extra,
+            double value) {
+        out.append(name);
+        if (null != labels || null != extra) {
+            out.append('{');
+            if (null != labels) {
+                out.append(labels);
+            }
+            if (null != extra) {
+                out.append(null != labels ? "," : "").append(extra);
+            }
+            out.append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static boolean registered = false; // whether the MBean is ours
+
+    /** Register the proj1b:type=Metrics MBean with the platform MBean server, once.
+     */
+    public static synchronized void registerMBean() {
+        try {
+            ObjectName name = new ObjectName("proj1b:type=Metrics");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), name);
+                registered = true;
+            }
+        } catch (JMException jme) {
+            System.out.println("Could not register metrics MBean: " + jme.getMessage());
+        }
+    }
+
+    /** Unregister the MBean if we registered it (when the instance is undeployed), so the
+     *  next deployment exports its own counters rather than finding the name taken.
+     */
+    public static synchronized void unregisterMBean() {
+        if (!registered) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                    new ObjectName("proj1b:type=Metrics"));
+        } catch (JMException jme) {
+            System.out.println("Could not unregister metrics MBean: " + jme.getMessage());
+        }
+        registered = false;
+    }
+
+    /** Read-only view of snapshot() over JMX, one attribute per value.
+     */
+    private static class MetricsMBean implements DynamicMBean {
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = snapshot().get(attribute);
+            if (null == value) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value.doubleValue();
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Number value = values.get(attribute);
+                if (null != value) {
+                    list.add(new Attribute(attribute, value.doubleValue()));
+                }
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Metrics are read-only");
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+            for (String key : snapshot().keySet()) {
+                attrs.add(new MBeanAttributeInfo(key, "double", key, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "proj1b metrics",
+                    attrs.toArray(new MBeanAttributeInfo[attrs.size()]), null,
+                    new MBeanOperationInfo[0], null);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package servlet;
+
+import java.io.*;
+import javax.servlet.*;
+import javax.servlet.annotation.*;
+import javax.servlet.http.*;
+
+
+/** Serves this instance's Metrics in the Prometheus text exposition format.
+ */
+@WebServlet("/metrics")
+public class MetricsServlet extends HttpServlet {
+
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException {
+        byte[] body = Metrics.toText().getBytes(SessionCodec.UTF8);
+        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        response.setContentLength(body.length);
+        OutputStream out = response.getOutputStream();
+        out.write(body);
+        out.flush();
+    }
+}
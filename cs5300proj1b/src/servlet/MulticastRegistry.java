@@ -0,0 +1,115 @@
+package servlet;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** A bootstrap registry with no server at all: publishing multicasts the view to a group on
+ *  the local network, and every instance in the group remembers what it hears.
+ *
+ *  Each instance announces only its own address, which stays registered until it has not
+ *  been heard for the expiry time, so instances must keep publishing (View republishes at
+ *  least every bootstrap.ttl seconds) and one that dies drops out whoever still lists it.
+ */
+public class MulticastRegistry implements BootstrapRegistry {
+    private static final String MAGIC = "proj1b-view ";
+
+    private final InetAddress group;
+    private final int port;
+    private final long expiry;
+    private final ConcurrentHashMap<String, Long> heard = new ConcurrentHashMap<String, Long>();
+    private MulticastSocket socket = null;
+
+    /** @param group The multicast group, e.g. 239.53.0.0
+     *  @param port The port to use
+     *  @param expiry Msecs after which an address nobody has announced is forgotten
+     */
+    public MulticastRegistry(InetAddress group, int port, long expiry) {
+        this.group = group;
+        this.port = port;
+        this.expiry = expiry;
+    }
+
+    /** Join the group and start listening, the first time we are used.
+     */
+    private synchronized MulticastSocket getSocket() throws IOException {
+        if (null == socket) {
+            final MulticastSocket s = new MulticastSocket(port);
+            s.setTimeToLive(1);
+            s.joinGroup(new InetSocketAddress(group, port), null); // null: the default interface
+            Thread listener = new Thread("MulticastRegistry") {
+                public void run() {
+                    listen(s);
+                }
+            };
+            listener.setDaemon(true);
+            listener.start();
+            socket = s;
+        }
+        return socket;
+    }
+
+    private void listen(MulticastSocket s) {
+        byte[] buff = new byte[NetUtils.MTU_PACKET_LEN];
+        while (!s.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buff, buff.length);
+                s.receive(packet);
+                String text = new String(buff, 0, packet.getLength(), SessionCodec.UTF8);
+                if (!text.startsWith(MAGIC)) {
+                    continue;
+                }
+                long now = System.currentTimeMillis();
+                for (String ip : text.substring(MAGIC.length()).split("_")) {
+                    if (ip.matches(NetUtils.ip_pattern)) {
+                        heard.put(ip, now);
+                    }
+                }
+            } catch (IOException ioe) {
+                System.out.println("MulticastRegistry: " + ioe.getMessage());
+            }
+        }
+    }
+
+    public List<String> lookup() {
+        try {
+            getSocket();
+        } catch (IOException ioe) {
+            System.out.println("Could not join " + group + ": " + ioe.getMessage());
+        }
+        long cutoff = System.currentTimeMillis() - expiry;
+        List<String> ips = new ArrayList<String>();
+        for (Map.Entry<String, Long> e : heard.entrySet()) {
+            if (e.getValue() < cutoff) {
+                heard.remove(e.getKey(), e.getValue());
+            } else {
+                ips.add(e.getKey());
+            }
+        }
+        return ips;
+    }
+
+    /** Leave the group; the listener thread ends with the socket.
+     */
+    public synchronized void close() {
+        if (null != socket) {
+            socket.close();
+            socket = null;
+        }
+    }
+
+    public void publish(List<String> ips) {
+        byte[] bytes = (MAGIC + NetUtils.getIP()).getBytes(SessionCodec.UTF8);
+        try {
+            getSocket().send(new DatagramPacket(bytes, bytes.length, group, port));
+        } catch (IOException ioe) {
+            System.out.println("Could not announce to " + group + ": " + ioe.getMessage());
+        }
+    }
+}
@@ -4,79 +4,244 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.regex.*;
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 
 public class NetUtils {
     protected static final String ip_pattern = "^\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}$";
     protected static final String nullIP = "0.0.0.0";
+    private static final String ROUTE_PROBE = "192.0.2.1"; // TEST-NET-1; only used to find a route
 
-    protected static Integer callID = 0;
-    protected static int MAX_PACKET_LEN = 512;
+    protected static int MAX_PACKET_LEN = 512; // packet size every instance is sure to accept
+    protected static final int MTU_PACKET_LEN = 1472; // 1500 byte Ethernet MTU less IP/UDP headers
+    protected static final int MAX_PAYLOAD_LEN = 60 * 1024; // largest (fragmented) RPC payload
     protected static final int PROJ1BRPC_PORT = 5300;
-    protected static Boolean initRun = false;
+    protected static final int RPC_TIMEOUT = 2000; // most msecs to wait for a round of replies
+    // N: copies kept of each session, counting the one on the instance that handled the request.
+    // W: copies that must be stored before a write returns (our own copy counts as one).
+    // R: replicas a remote read waits to hear from before taking the newest version.
+    // The defaults (N=2, W=N, R=1) are the original scheme of one backup per session. Keeping
+    // W + R > N means every read hears from at least one server the last write reached.
+    protected static final int REPLICATION_N = Math.max(1, Config.getInt("replication.n", 2));
+    protected static final int WRITE_QUORUM =
+        Math.max(1, Math.min(REPLICATION_N, Config.getInt("replication.w", REPLICATION_N)));
+    protected static final int READ_QUORUM =
+        Math.max(1, Math.min(REPLICATION_N, Config.getInt("replication.r", 1)));
+    protected static final int WRITE_REPLICAS = REPLICATION_N - 1; // remote copies each write makes
+    protected static final int WRITE_ACKS = WRITE_QUORUM - 1; // remote acks each write waits for
+    // msecs a session write may wait to share a packet with others to the same server
+    protected static final int BATCH_WINDOW = Config.getInt("rpc.batch.window", 2);
 
-    private static String serverip = null;
-    private static RPCListener clientListener = new RPCListener();
+    private static volatile String serverip = null;
+    private static RPCServer rpcServer = null;
+    private static RPCClient rpcClient = null;
+    private static WriteBatcher writeBatcher = null;
+    private static final Object clientLock = new Object();
+    private static volatile boolean stopped = false; // set by shutdown()
 
     public static final short SESSION_READ = 0;
     public static final short SESSION_WRITE = 1;
     public static final short GET_VIEW = 2;
     public static final short REPLY = 3;
     public static final short NO_REPLY = 4;
+    public static final short FRAGMENT = 5;
+    public static final short SESSION_WRITE_BATCH = 6;
+    public static final short SESSION_TOUCH = 7;
+    public static final short PING = 8;
+    public static final short SESSION_DIGEST = 9; // see RepairService
+    public static final short SESSION_SYNC = 10;
+    public static final short SESSION_REPAIR = 11;
+
+    // Set on every packet we send to say "I accept MTU_PACKET_LEN packets"; masked off on receipt
+    public static final short FLAG_MTU = 0x4000;
+    // Set when membership updates trail the arguments (see Membership); never on fragments
+    public static final short FLAG_GOSSIP = 0x2000;
+    public static final short OP_MASK = 0x00FF;
+
+    // Peers that have told us they accept MTU_PACKET_LEN packets
+    private static final ConcurrentHashMap<InetAddress, Boolean> mtuPeers =
+        new ConcurrentHashMap<InetAddress, Boolean>();
 
     
+    /** Where a session write (or touch) went: the servers that acknowledged it, and the
+     *  servers it was still on its way to when enough others had acknowledged it.
+     */
+    public static class Replicas {
+        private final int[] acked;
+        private final int[] inFlight;
+
+        Replicas(int[] acked, int[] inFlight) {
+            this.acked = acked;
+            this.inFlight = inFlight;
+        }
+
+        /** @return The servers (IPv4 addresses as ints) that acknowledged the write
+         */
+        public int[] getAcked() {
+            return acked;
+        }
+
+        /** @return The servers (IPv4 addresses as ints) that had not answered yet
+         */
+        public int[] getInFlight() {
+            return inFlight;
+        }
+    }
+
     /** Request a session (given by session id) from a selection of servers.
+     *  All servers are asked at once; once READ_QUORUM of them have answered with a copy (or
+     *  everyone has answered or timed out) the newest copy wins.
      *
      *  @param sessionid The ID of the session requested
-     *  @param version The version of the session we are looking for
+     *  @param version The oldest version of the session we will take
      *  @param addrs The IP addresses of the servers we are requesting from
      *  @return The SessionState object representing the requested session
      */
     public static SessionState sessionReadClient(String sessionid, int version, InetAddress[] addrs) {
         //generate request args
-        byte[] args = (sessionid + "_" + version).getBytes();
+        byte[] args = SessionCodec.encodeReadArgs(sessionid, version);
 
-        // send request and get reply
-        byte[] reply = sendRequest(SESSION_READ, args, addrs);
+        // send request and get replies
+        int needed = Math.min(READ_QUORUM, addrs.length);
+        List<RPCReply> replies = sendRequest(SESSION_READ, args, addrs, addrs.length, needed);
+        if (replies.size() < needed) {
+            Metrics.READ_QUORUM_MISSES.inc();
+        }
 
-        // convert reply to session state object
-        return SessionState.fromBytes(reply);
+        // convert the newest reply to a session state object (null if nobody had it)
+        SessionState latest = null;
+        for (RPCReply reply : replies) {
+            SessionState session = SessionState.fromBytes(reply.getArgs());
+            if (null != session && (null == latest || session.getVersion() > latest.getVersion())) {
+                latest = session;
+            }
+        }
+        return latest;
     }
 
     /** Request that a selection of servers store (write) the given session.
-     *  Servers are asked until the list provided is exhausted or we get a successful reply
+     *  The first WRITE_REPLICAS servers are asked at once, and this returns as soon as
+     *  WRITE_ACKS of them have stored it. If too few do, the next servers in the list are
+     *  asked in place of the ones that failed until the list is exhausted.
      *
      * @param session The SessionState object representing the session to be written
      * @param addrs List of IP address of servers to ask to write the session
-     * @return String ip address of write server if there was a successful write, null IP otherwise.
+     * @return The servers that stored the session, and the ones still being written to
      */
-    public static String sessionWriteClient(SessionState session, InetAddress[] addrs) {
+    public static Replicas sessionWriteClient(SessionState session, InetAddress[] addrs) {
+        WriteBatcher batcher = getBatcher();
+        if (null != batcher) {
+            return batchedWriteClient(batcher, session, addrs);
+        }
+
         //generate request args
         byte[] args = session.toBytes();
 
-        // send request and get reply
-        byte[] reply = sendRequest(SESSION_WRITE, args, addrs);
+        // send request and get replies
+        List<InetAddress> inFlight = new ArrayList<InetAddress>();
+        List<RPCReply> replies =
+            sendRequest(SESSION_WRITE, args, addrs, WRITE_REPLICAS, WRITE_ACKS, inFlight);
+        if (replies.size() < WRITE_ACKS) {
+            Metrics.WRITE_QUORUM_MISSES.inc();
+        }
+        return replicas(replies, inFlight);
+    }
+
+    /** Ask the servers holding the previous version of a session to bump their copy to the
+     *  session's current version, without resending the session itself. Waits for all of
+     *  them: a server whose copy is missing or stale answers NO_REPLY, and must not be named
+     *  in the cookie as holding the new version.
+     *
+     * @param session The session, already at its new version
+     * @param oldVersion The version the servers' copies should have
+     * @param addrs The servers thought to hold a copy (usually from the cookie)
+     * @return The servers that applied the touch (none are left in flight)
+     */
+    public static Replicas sessionTouchClient(SessionState session, int oldVersion,
+            InetAddress[] addrs) {
+        byte[] args = SessionCodec.encodeTouchArgs(
+                session.getSessionId(), oldVersion, session.getVersion());
+
+        List<RPCReply> replies = sendRequest(SESSION_TOUCH, args, addrs,
+                addrs.length, addrs.length);
+        return replicas(replies, new ArrayList<InetAddress>(0));
+    }
+
+    /** Write a session through the WriteBatcher, with the same rules as sessionWriteClient():
+     *  WRITE_REPLICAS servers at once, returning after WRITE_ACKS of them have stored it, and
+     *  moving down the list when too few do.
+     */
+    private static Replicas batchedWriteClient(WriteBatcher batcher, SessionState session,
+            InetAddress[] addrs) {
+        List<InetAddress> acked = new ArrayList<InetAddress>(WRITE_REPLICAS);
+        List<InetAddress> inFlight = new ArrayList<InetAddress>();
+        int next = 0;
+        int batch = WRITE_REPLICAS;
+        try {
+            while (batch > 0 && next < addrs.length) {
+                WriteBatcher.Quorum quorum = new WriteBatcher.Quorum();
+                List<WriteBatcher.PendingWrite> round = new ArrayList<WriteBatcher.PendingWrite>();
+                for (; next < addrs.length && round.size() < batch; next++) {
+                    if (FailureDetector.allowRequest(addrs[next])) {
+                        round.add(batcher.submit(addrs[next], session, quorum));
+                    }
+                }
+                int needed = WRITE_ACKS - acked.size();
+                if (needed > 0) {
+                    quorum.await(needed, RPC_TIMEOUT + 2 * BATCH_WINDOW);
+                }
+                for (WriteBatcher.PendingWrite write : round) {
+                    if (write.isStored()) {
+                        acked.add(write.getAddr());
+                    } else if (!write.isDone()) {
+                        inFlight.add(write.getAddr());
+                    }
+                }
+                batch = WRITE_ACKS - acked.size();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        if (acked.size() < WRITE_ACKS) {
+            Metrics.WRITE_QUORUM_MISSES.inc();
+            inFlight.clear(); // whatever did not answer timed out
+        }
+        return new Replicas(toInts(acked), toInts(inFlight));
+    }
+
+    /** Collect the servers a write reached: the address each one put in its reply (its own
+     *  idea of its address) for those that answered, and the address we sent to otherwise.
+     */
+    private static Replicas replicas(List<RPCReply> replies, List<InetAddress> inFlight) {
+        int[] acked = new int[replies.size()];
+        for (int i = 0; i < acked.length; i++) {
+            byte[] args = replies.get(i).getArgs();
+            acked[i] = 4 == args.length
+                ? ByteBuffer.wrap(args).getInt() : SessionCodec.ipToInt(replies.get(i).getAddr());
+        }
+        return new Replicas(acked, toInts(inFlight));
+    }
 
-        if(null != reply) {
-            return new String(reply);
-        } else {
-            return nullIP;
+    private static int[] toInts(List<InetAddress> addrs) {
+        int[] ips = new int[addrs.size()];
+        for (int i = 0; i < ips.length; i++) {
+            ips[i] = SessionCodec.ipToInt(addrs.get(i));
         }
+        return ips;
     }
 
     /** Send a request to a selection of servers.
-     *  Only one server is required to give a successful reply.
+     *  The request goes to every server at once, and only one server is required to give a
+     *  successful reply.
      *
      *  @param opCode The op code for then request we are making
      *  @param args The arguments for the operation as a byte[]
@@ -84,105 +249,227 @@ public class NetUtils {
      *  @return The arguments of a successful reply (if there was one), and null otherwise
      */
     public static byte[] sendRequest(short opCode, byte[] args, InetAddress[] addrs) {
-        DatagramSocket rpcSocket = null;
-        Integer cid;
-        ByteBuffer sendPacketBuff, recvPacketBuff = null;
-        int recvCID;
-        short recvCode;
-        DatagramPacket recvPacket, sendPacket = null;
-        byte[] inbuff = new byte[MAX_PACKET_LEN];
-        byte[] replybuff = null;
-
-        // Make sure to truncate args if larger than we can send
-        int len_args_sent = Math.min(args.length, MAX_PACKET_LEN - (4 + 2));
+        List<RPCReply> replies = sendRequest(opCode, args, addrs, addrs.length, 1);
+        if (replies.isEmpty()) {
+            return null;
+        }
+        return replies.get(0).getArgs();
+    }
 
-        try {
-            // Init new socket and set 2 second timeout on recieves
-            rpcSocket = new DatagramSocket();
-            rpcSocket.setSoTimeout(2000);
+    /** Send a request to several servers in parallel and collect successful replies.
+     *
+     *  The datagram goes out to the first fanout addresses at once. Once every one of them
+     *  has answered or timed out, any shortfall is made up from the addresses not yet tried,
+     *  until needed REPLYs have arrived or the list is exhausted. Replies with the wrong call
+     *  id, duplicates and anything arriving after we have enough are discarded. Each round
+     *  waits for the slowest of its servers' adaptive timeouts, and servers whose circuit is
+     *  open (see FailureDetector) are skipped.
+     *
+     *  @param opCode The op code for the request we are making
+     *  @param args The arguments for the operation as a byte[]
+     *  @param addrs List of IP addresses of servers, in order of preference
+     *  @param fanout The number of servers to contact in the first round
+     *  @param needed The number of successful replies wanted
+     *  @return The successful replies, in order of arrival (at most needed of them)
+     */
+    public static List<RPCReply> sendRequest(short opCode, byte[] args, InetAddress[] addrs,
+            int fanout, int needed) {
+        return sendRequest(opCode, args, addrs, fanout, needed, null);
+    }
 
-            // get new (unique) call id
-            synchronized (callID) {
-                cid = callID++;
-            }
+    /** Send a request to several servers in parallel and collect successful replies, as
+     *  above, noting which servers were still to answer when the call got enough replies.
+     *  With needed 0 the request goes out to the first fanout servers and this returns at
+     *  once, all of them counted as still to answer. With fanout 0 nothing is sent.
+     *
+     *  @param inFlight Collects the servers that had not answered by the time needed REPLYs
+     *          arrived (may be null)
+     */
+    public static List<RPCReply> sendRequest(short opCode, byte[] args, InetAddress[] addrs,
+            int fanout, int needed, List<InetAddress> inFlight) {
+        List<RPCReply> replies = new ArrayList<RPCReply>(Math.max(0, needed));
 
-            // initialize and populate new packet
-            sendPacketBuff = ByteBuffer.allocate(4 + 2 + args.length);
-            sendPacketBuff.putInt(cid);
-            sendPacketBuff.putShort(opCode);
-            sendPacketBuff.put(args, 0, len_args_sent);
-            sendPacket = 
-                new DatagramPacket(sendPacketBuff.array(), sendPacketBuff.capacity());
-
-            // Set correct port
-            sendPacket.setPort(PROJ1BRPC_PORT);
-            
-            // iterate through all possible addresses
-            for (InetAddress ip : addrs) {
-                sendPacket.setAddress(ip);
-                rpcSocket.send(sendPacket);
-
-                recvPacket = new DatagramPacket(inbuff, inbuff.length);
-                
-                // wait for a response until we get one with the correct call id
-                // or the socket times out
-                try {
-                    do {
-                        recvPacket.setLength(inbuff.length);
-
-                        rpcSocket.receive(recvPacket);
-
-                        recvPacketBuff = ByteBuffer.wrap(inbuff);
-                        recvCID = recvPacketBuff.getInt();
-                        recvCode = recvPacketBuff.getShort();
-                    } while (recvCID != cid && recvCode != REPLY);
-                } catch (SocketTimeoutException ste) {
-                    //reset recvPacket and the buffer if we time out
-                    recvPacketBuff = null;
-                    recvPacket = null;
-                    //remove the address from our view
-                    System.out.println("Removing ip: " + ip);
-                    View.removeAddr(ip);
-                    //move onto next address
-                    continue;
-                }
+        // Anything up to MAX_PAYLOAD_LEN goes out in fragments if it has to, beyond that we refuse
+        if (args.length > MAX_PAYLOAD_LEN) {
+            System.out.println("Request too large to send: " + args.length + " bytes");
+            return replies;
+        }
 
-                // Got a reply, but not of success
-                if(NO_REPLY == recvCode) {
-                    continue;
+        try {
+            RPCClient client = getClient();
+            int next = 0;
+            int batch = fanout;
+
+            while (batch > 0 && next < addrs.length) {
+                // pick this round's addresses
+                List<InetAddress> round = new ArrayList<InetAddress>(batch);
+                for (; next < addrs.length && round.size() < batch; next++) {
+                    // skip peers whose circuit is open
+                    if (!round.contains(addrs[next]) && FailureDetector.allowRequest(addrs[next])) {
+                        round.add(addrs[next]);
+                    }
+                }
+                if (round.isEmpty()) {
+                    break;
                 }
 
-                // extract packet contents we care about and return to caller
-                if (recvPacket.getLength() - (4 + 2) > 0) {
-                    replybuff = new byte[recvPacket.getLength() - (4 + 2)];
-                    recvPacketBuff.get(replybuff, 0, replybuff.length);
-                } else {
-                    replybuff = new byte[1];
+                // send to all of them at once and wait for enough replies (or the deadline);
+                // the FailureDetector decides whether anyone who never answered is dead
+                InetAddress[] roundAddrs = round.toArray(new InetAddress[0]);
+                RPCFuture call = client.call(opCode, args, roundAddrs,
+                        needed - replies.size(), FailureDetector.timeoutFor(roundAddrs));
+                if (needed <= 0) {
+                    if (null != inFlight) {
+                        inFlight.addAll(round);
+                    }
+                    break;
                 }
+                replies.addAll(call.getReplies());
+                if (null != inFlight && replies.size() >= needed) {
+                    // the call finished early; the rest of the round is still on its way
+                    inFlight.addAll(call.getUnanswered());
+                }
+
+                // make up any shortfall from the remaining addresses
+                batch = needed - replies.size();
             }
-        } catch (SocketException se) {
-            //TODO: Handle differently
-            System.out.println(se.getMessage());
         } catch (IOException ioe) {
             //TODO: Handle differently
             System.out.println(ioe.getMessage());
-        } finally {
-            // Always close the socket
-            if (null != rpcSocket && rpcSocket.isConnected()) {
-                rpcSocket.close();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        return replies;
+    }
+
+    /** The largest packet we may send to a peer: MTU_PACKET_LEN once it has told us it
+     *  accepts them, MAX_PACKET_LEN until then.
+     *
+     * @param addr The peer
+     * @return The packet size limit in bytes
+     */
+    public static int packetLimit(InetAddress addr) {
+        return mtuPeers.containsKey(addr) ? MTU_PACKET_LEN : MAX_PACKET_LEN;
+    }
+
+    /** Record what a received packet's op code says about its sender.
+     *
+     * @param addr The sender
+     * @param rawOp The op code as received, flags included
+     */
+    public static void notePeerFlags(InetAddress addr, short rawOp) {
+        if (0 != (rawOp & FLAG_MTU) && !mtuPeers.containsKey(addr)) {
+            mtuPeers.put(addr, Boolean.TRUE);
+        }
+    }
+
+    /** Get the shared write batcher, starting it if necessary.
+     *
+     * @return The batcher, or null if batching is turned off (proj1b.rpc.batch.window=0)
+     */
+    public static WriteBatcher getBatcher() {
+        if (BATCH_WINDOW <= 0) {
+            return null;
+        }
+        synchronized (clientLock) {
+            if (stopped) {
+                return null;
+            }
+            if (null == writeBatcher) {
+                writeBatcher = new WriteBatcher(BATCH_WINDOW);
+                writeBatcher.start();
+            }
+            return writeBatcher;
+        }
+    }
+
+    /** Get the shared RPC client for this instance, starting it if necessary.
+     */
+    public static RPCClient getClient() throws IOException {
+        synchronized (clientLock) {
+            if (stopped) {
+                throw new IOException("RPC client is shut down");
             }
+            if (null == rpcClient) {
+                rpcClient = new RPCClient();
+                rpcClient.start();
+            }
+            return rpcClient;
         }
-        //Just return null if we get an exception
-        //TODO: Is this wanted behavior?
-        return replybuff;
     }
 
 
-    /** Get the IP address of the machine this function runs on.
+    /** Find our address, unless proj1b.ip gives it (see getIP()). ip.source says how:
+     *    - "route" (the default): the address the kernel would send from on the default
+     *      route, i.e. the interface peers on other hosts are most likely to reach
+     *    - "interface": the first IPv4 address of an interface that is up and not a
+     *      loopback, in the order the OS lists them; on hosts with bridges such as docker0
+     *      or virbr0 that can be an address other hosts cannot reach
+     *    - "ec2": the public IPv4 address from the EC2 metadata tool
+     *  If "route" or "interface" find nothing, the EC2 tool is tried.
      *
-     * @return The non-loopback IP address of this machine, if one exists, and localhost otherwise
+     * @return Our IPv4 address in dotted-quad form (127.0.0.1 if nothing works)
      */
     private static String retrieveIP() {
+        String source = Config.getString("ip.source", "route");
+        String ip = null;
+        if ("route".equals(source)) {
+            ip = routeIP();
+        } else if ("interface".equals(source)) {
+            ip = interfaceIP();
+        }
+        return null == ip ? ec2IP() : ip;
+    }
+
+    /** Connect a UDP socket to an outside address (which sends nothing) and see which local
+     *  address the kernel picked for it.
+     */
+    private static String routeIP() {
+        DatagramSocket probe = null;
+        try {
+            probe = new DatagramSocket();
+            probe.connect(InetAddress.getByName(ROUTE_PROBE), 9);
+            InetAddress local = probe.getLocalAddress();
+            String ip = local.getHostAddress();
+            if (!local.isLoopbackAddress() && !local.isAnyLocalAddress()
+                    && Pattern.matches(ip_pattern, ip)) {
+                return ip;
+            }
+        } catch (IOException ioe) {
+            System.out.println("No default route: " + ioe.getMessage());
+        } finally {
+            if (null != probe) {
+                probe.close();
+            }
+        }
+        return interfaceIP();
+    }
+
+    private static String interfaceIP() {
+        try {
+            Enumeration<NetworkInterface> eni =  NetworkInterface.getNetworkInterfaces();
+            if (null == eni) {
+                return null;
+            }
+            for (NetworkInterface ni : Collections.list(eni)) {
+                if(ni.isLoopback() || !ni.isUp()) {
+                    continue;
+                }
+                Enumeration<InetAddress> eia = ni.getInetAddresses();
+                for (InetAddress ia : Collections.list(eia)) {
+                    String ip = ia.getHostAddress();
+                    if(Pattern.matches(ip_pattern, ip)) {
+                        return ip;
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            System.out.println("Cannot list network interfaces: " + ioe.getMessage());
+        }
+        return null;
+    }
+
+    private static String ec2IP() {
         try {
             Runtime rt= Runtime.getRuntime();
             //Process pro= rt.exec("curl http://169.254.169.254/latest/meta-data/public-ipv4");
@@ -209,63 +496,92 @@ public class NetUtils {
         }
     }
     
-//    private static String retrieveIP() {
-//        try {
-//            Enumeration<NetworkInterface> eni =  NetworkInterface.getNetworkInterfaces();
-//            for (NetworkInterface ni : Collections.list(eni)) {
-//                if(ni.isLoopback() || !ni.isUp()) {
-//                    continue;
-//                }
-//                Enumeration<InetAddress> eia = ni.getInetAddresses();
-//                for (InetAddress ia : Collections.list(eia)) {
-//                    String ip = ia.getHostAddress();
-//                    if(Pattern.matches(ip_pattern, ip)) {
-//                        return ip;
-//                    }
-//                }
-//            }
-//            return InetAddress.getLocalHost().getHostAddress();
-//        } catch (Exception e) {
-//            System.out.println(e.getMessage());
-//            return "127.0.0.1";
-//        }
-//    }
-
     /** Retrive the ip address of this instance (cached if possible, retrieve if not).
+     *  A configured proj1b.ip wins over the one we would look up; set it on hosts with
+     *  several networks where the default route is not the one peers share.
      */
     public static String getIP() {
-        if(null == serverip) {
-            serverip = retrieveIP();
+        String ip = serverip;
+        if(null == ip) {
+            synchronized (NetUtils.class) {
+                if (null == serverip) {
+                    String configured = Config.getString("ip", null);
+                    serverip = (null == configured) ? retrieveIP() : configured;
+                }
+                ip = serverip;
+            }
         }
-        return serverip;
+        return ip;
     }
 
-
-    /** Start the RPCListener thread for this instance if it is not already started.
+    /** Get the local address our sockets should bind to.
+     *
+     * @return The configured proj1b.ip, so that several instances can share a host (e.g. on
+     *          127.0.0.x), or null to bind to every address
      */
-    public static void startRPCListener() {
-        if(!clientListener.isAlive()) {
-            clientListener.setDaemon(true);
-            clientListener.start();
+    public static InetAddress getBindAddress() {
+        String configured = Config.getString("ip", null);
+        if (null == configured) {
+            return null;
+        }
+        try {
+            return InetAddress.getByName(configured);
+        } catch (UnknownHostException uhe) {
+            System.out.println("Bad value for " + Config.PREFIX + "ip: " + configured);
+            return null;
         }
     }
 
-    /** Run initializations for starting an instance.
+
+    /** Start the RPC server for this instance if it is not already started.
+     *  Runs proj1b.rpc.shards listener threads (one per core by default).
      *
-     *  Including initializing the garbage collector for the SessionState, the RPCListener,
-     *  and bootstrapping an instance's view.
+     * @return True if the RPC server is running
      */
-    public static synchronized void initThreads() {
-        if(!initRun) {
-            SessionState.startStateGC();
-            NetUtils.getIP();
-            NetUtils.startRPCListener();
-    
-            //boostrap view
-            View.bootstrapView();
-            View.startViewWatcher();
+    public static synchronized boolean startRPCListener() {
+        if(!stopped && (null == rpcServer || !rpcServer.isAlive())) {
+            try {
+                int shards = Config.getInt("rpc.shards", Runtime.getRuntime().availableProcessors());
+                rpcServer = new RPCServer(getBindAddress(), PROJ1BRPC_PORT, shards);
+                rpcServer.start();
+            } catch (IOException ioe) {
+                System.out.println("Could not start RPC server: " + ioe.getMessage());
+                return false;
+            }
+        }
+        return !stopped && null != rpcServer && rpcServer.isAlive();
+    }
 
-            initRun = true;
+    /** Stop this instance talking to the others: stops the view watcher, the repair thread
+     *  and the write batcher, and closes the RPC server and client. Outstanding calls finish
+     *  with what they have. NodeLifecycle calls this when the instance is undeployed, and
+     *  ClusterSim to kill an instance; there is no way to start it again.
+     */
+    public static synchronized void shutdown() {
+        View.stopViewWatcher();
+        RepairService.stopRepairs();
+        if (null != rpcServer) {
+            rpcServer.close();
         }
+        synchronized (clientLock) {
+            stopped = true;
+            if (null != writeBatcher) {
+                writeBatcher.close();
+                writeBatcher = null;
+            }
+            if (null != rpcClient) {
+                rpcClient.close();
+                rpcClient = null;
+            }
+        }
+    }
+
+    /** Run initializations for starting an instance, if NodeLifecycle has not already.
+     *
+     *  Including initializing the garbage collector for the SessionState, the RPCListener,
+     *  and bootstrapping an instance's view. Returns once they are all up.
+     */
+    public static void initThreads() {
+        NodeLifecycle.start();
     }
 }
@@ -0,0 +1,147 @@
+package servlet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+/** Starts this instance's subsystems when the application is deployed, rather than inside
+ *  the first user request, and stops them when it is undeployed.
+ *
+ *  Startup runs on a background thread, with the independent parts in parallel:
+ *    - reloading the journal and starting the session table's garbage collection
+ *    - finding our IP address, then bootstrapping the view and starting the view watcher
+ *    - once the journal is reloaded, starting the RPC listener and the repair service, and
+ *      registering the metrics MBean (so no peer's write can be overwritten by an older
+ *      copy from the journal, or go unlogged)
+ *  The instance reports itself ready (see HealthServlet) once all of them are done, so a
+ *  load balancer checking /health only sends users to instances that are warm. If any of
+ *  them fails it reports itself FAILED instead, and stays that way.
+ */
+@WebListener
+public class NodeLifecycle implements ServletContextListener {
+    public enum Status { STOPPED, STARTING, READY, FAILED, STOPPING }
+
+    private static final Object lock = new Object();
+    private static volatile Status status = Status.STOPPED;
+    private static volatile long startMillis = 0; // how long startup took
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        Thread starter = new Thread() {
+            public void run() {
+                start();
+            }
+        };
+        starter.setDaemon(true);
+        starter.setName("NodeLifecycle startup");
+        starter.start();
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        stop();
+    }
+
+    /** Start every subsystem, unless that is already done, and wait until they are up.
+     *  If another thread is already starting them, this waits for it to finish.
+     */
+    public static void start() {
+        if (Status.READY == status) {
+            return;
+        }
+        synchronized (lock) {
+            if (Status.STOPPED != status) {
+                return; // another thread started us while we waited, or we are stopping
+            }
+            status = Status.STARTING;
+            long begin = System.nanoTime();
+
+            ExecutorService pool = Executors.newFixedThreadPool(3);
+            List<Future<Object>> tasks = new ArrayList<Future<Object>>();
+            final Future<Object> reload = pool.submit(new Callable<Object>() {
+                public Object call() {
+                    SessionState.startJournal();
+                    SessionState.startStateGC();
+                    return null;
+                }
+            });
+            tasks.add(reload);
+            tasks.add(pool.submit(new Callable<Object>() {
+                public Object call() {
+                    NetUtils.getIP();
+                    View.bootstrapView();
+                    View.startViewWatcher();
+                    return null;
+                }
+            }));
+            tasks.add(pool.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    reload.get();
+                    if (!NetUtils.startRPCListener()) {
+                        throw new IOException("the RPC listener is not running");
+                    }
+                    RepairService.startRepairs();
+                    Metrics.registerMBean();
+                    return null;
+                }
+            }));
+            boolean failed = false;
+            for (Future<Object> task : tasks) {
+                try {
+                    task.get();
+                } catch (Exception e) {
+                    Throwable cause = (null == e.getCause()) ? e : e.getCause();
+                    System.out.println("Startup task failed: " + cause.getMessage());
+                    failed = true;
+                }
+            }
+            pool.shutdown();
+
+            startMillis = (System.nanoTime() - begin) / 1000000;
+            if (failed) {
+                System.out.println("Instance " + NetUtils.getIP() + " failed to start");
+                status = Status.FAILED;
+                return;
+            }
+            System.out.println("Instance " + NetUtils.getIP() + " ready in " + startMillis + "ms");
+            status = Status.READY;
+        }
+    }
+
+    /** Stop talking to the other instances, flush the journal, and stop every thread and
+     *  registration that would otherwise outlive the deployment (and pin its class loader).
+     */
+    public static void stop() {
+        synchronized (lock) {
+            status = Status.STOPPING;
+            NetUtils.shutdown();
+            View.closeRegistry();
+            SessionState.stopStateGC();
+            SessionJournal journal = SessionState.getJournal();
+            if (null != journal) {
+                journal.close();
+            }
+            Metrics.unregisterMBean();
+        }
+    }
+
+    /** @return Where this instance is in its lifecycle
+     */
+    public static Status getStatus() {
+        return status;
+    }
+
+    /** @return How long startup took, in msecs (0 until it is done)
+     */
+    public static long getStartMillis() {
+        return startMillis;
+    }
+}
@@ -0,0 +1,479 @@
+package servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** SessionStore that keeps sessions outside the Java heap.
+ *
+ *  Sessions are keyed by (session number, server IPv4 int) packed into a long plus the id's
+ *  epoch, and the index is an open-addressing (linear probing) table of primitive arrays, so
+ *  it holds no object
+ *  references for the garbage collector to trace. Each entry points at a record in a slab
+ *  (a direct ByteBuffer, or a memory-mapped file if a directory is given):
+ *  <pre>
+ *  int     version
+ *  long    expiresAt (ExpiryWheel.now() msecs)
+ *  int     message length
+ *  byte[]  UTF-8 message
+ *  </pre>
+ *  Records are rounded up to a power of two and freed records are reused by size class.
+ *  The table is split into segments, each with its own lock, index and slabs.
+ *
+ *  SessionState objects only exist while a caller holds one: get() and friends build a
+ *  fresh copy from the record, and put() copies the session in. Session ids must have the
+ *  "epoch.number/IPv4" (or "number/IPv4") form that newSession() gives them.
+ */
+public class OffHeapSessionStore implements SessionStore {
+    private static final int DEFAULT_SEGMENTS = 64;
+    private static final int RECORD_HEADER = 4 + 8 + 4;
+    private static final int MIN_CLASS = 5; // 32 byte records
+    private static final long INVALID_KEY = -1L;
+    private static final long EMPTY = -1L;
+    private static final long DELETED = -2L;
+
+    /** One lock's worth of the table.
+     */
+    private static class Segment {
+        long[] keys = new long[64];
+        int[] epochs = new int[64];
+        long[] refs = new long[64]; // (slab << 32) | offset, or EMPTY / DELETED
+        int count = 0;
+        int used = 0; // live entries plus DELETED markers
+
+        final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+        int top = 0; // next free byte in the newest shared slab
+        int topSlab = -1;
+        final long[][] free = new long[32][];
+        final int[] freeCount = new int[32];
+
+        Segment() {
+            Arrays.fill(refs, EMPTY);
+        }
+    }
+
+    private final Segment[] segments;
+    private final int segmentShift; // segments are picked by the top bits of the hash
+    private final int slabSize;
+    private final File mmapDir;
+
+    /** A store with 1MB direct slabs.
+     */
+    public OffHeapSessionStore() {
+        this(DEFAULT_SEGMENTS, 1 << 20, null);
+    }
+
+    /** @param segmentCount The number of independently locked segments (a power of two)
+     *  @param slabSize The size of each slab in bytes
+     *  @param mmapDir A directory for memory-mapped slab files, or null for direct buffers
+     */
+    public OffHeapSessionStore(int segmentCount, int slabSize, File mmapDir) {
+        int n = Integer.highestOneBit(Math.max(1, segmentCount));
+        segments = new Segment[n];
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment();
+        }
+        segmentShift = 32 - Integer.numberOfTrailingZeros(n);
+        this.slabSize = slabSize;
+        this.mmapDir = mmapDir;
+    }
+
+    /** Pack the number and IPv4 address of a session id into a long key (the epoch is kept
+     *  alongside, see epochOf()).
+     *
+     * @return The key, or INVALID_KEY if the id does not have that form
+     */
+    static long keyOf(String sessionid) {
+        int no;
+        int ip;
+        try {
+            SessionCodec.epochOf(sessionid); // so that epochOf() cannot fail on a valid key
+            no = SessionCodec.sessionNoOf(sessionid);
+            ip = SessionCodec.serverOf(sessionid);
+        } catch (NumberFormatException nfe) {
+            return INVALID_KEY;
+        }
+        if (no < 0 || (0 == ip && !sessionid.endsWith("/0.0.0.0"))) {
+            return INVALID_KEY;
+        }
+        return ((long) no << 32) | (ip & 0xFFFFFFFFL);
+    }
+
+    /** @return The epoch of a session id that keyOf() accepted
+     */
+    private static int epochOf(String sessionid) {
+        return SessionCodec.epochOf(sessionid);
+    }
+
+    private static String idOf(long key, int epoch) {
+        return SessionCodec.formatSessionId(epoch, (int) (key >>> 32), (int) key);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /** Slots within a segment are picked by the low bits of the same hash, so the two only
+     *  overlap once a segment holds more than 2^(32 - log2(segments)) slots.
+     */
+    private Segment segmentFor(int hash) {
+        return segments[(int) ((hash & 0xFFFFFFFFL) >>> segmentShift)];
+    }
+
+    /** Find the slot holding a key. Caller holds the segment lock.
+     *
+     * @return The slot, or -1 if the key is not present
+     */
+    private static int find(Segment seg, long key, int epoch, int hash) {
+        int mask = seg.keys.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            long ref = seg.refs[i];
+            if (EMPTY == ref) {
+                return -1;
+            }
+            if (DELETED != ref && seg.keys[i] == key && seg.epochs[i] == epoch) {
+                return i;
+            }
+        }
+    }
+
+    public void put(SessionState session) {
+        long key = keyOf(session.getSessionId());
+        if (INVALID_KEY == key) {
+            throw new IllegalArgumentException("Not a number/IPv4 session id: "
+                    + session.getSessionId());
+        }
+        int epoch = epochOf(session.getSessionId());
+        byte[] msg = session.getMessage().getBytes(SessionCodec.UTF8);
+        int hash = hash(key);
+        Segment seg = segmentFor(hash);
+        synchronized (seg) {
+            int slot = find(seg, key, epoch, hash);
+            long ref;
+            if (slot >= 0) {
+                ref = seg.refs[slot];
+                if (sizeClass(RECORD_HEADER + msg.length) != sizeClass(RECORD_HEADER + length(seg, ref))) {
+                    release(seg, ref);
+                    ref = allocate(seg, RECORD_HEADER + msg.length);
+                    seg.refs[slot] = ref;
+                }
+            } else {
+                ref = allocate(seg, RECORD_HEADER + msg.length);
+                insert(seg, key, epoch, hash, ref);
+            }
+            ByteBuffer slab = seg.slabs.get((int) (ref >>> 32));
+            int off = (int) ref;
+            slab.putInt(off, session.getVersion());
+            slab.putLong(off + 4, session.getExpiresAt());
+            slab.putInt(off + 12, msg.length);
+            slab.position(off + RECORD_HEADER);
+            slab.put(msg);
+        }
+    }
+
+    public SessionState get(String sessionid) {
+        long key = keyOf(sessionid);
+        if (INVALID_KEY == key) {
+            return null;
+        }
+        int epoch = epochOf(sessionid);
+        int hash = hash(key);
+        Segment seg = segmentFor(hash);
+        synchronized (seg) {
+            int slot = find(seg, key, epoch, hash);
+            return slot < 0 ? null : read(seg, seg.refs[slot], sessionid);
+        }
+    }
+
+    public SessionState remove(String sessionid) {
+        long key = keyOf(sessionid);
+        if (INVALID_KEY == key) {
+            return null;
+        }
+        int epoch = epochOf(sessionid);
+        int hash = hash(key);
+        Segment seg = segmentFor(hash);
+        synchronized (seg) {
+            int slot = find(seg, key, epoch, hash);
+            if (slot < 0) {
+                return null;
+            }
+            SessionState session = read(seg, seg.refs[slot], sessionid);
+            delete(seg, slot);
+            return session;
+        }
+    }
+
+    public SessionState removeIfVersion(String sessionid, int version) {
+        long key = keyOf(sessionid);
+        if (INVALID_KEY == key) {
+            return null;
+        }
+        int epoch = epochOf(sessionid);
+        int hash = hash(key);
+        Segment seg = segmentFor(hash);
+        synchronized (seg) {
+            int slot = find(seg, key, epoch, hash);
+            if (slot < 0 || version(seg, seg.refs[slot]) != version) {
+                return null;
+            }
+            SessionState session = read(seg, seg.refs[slot], sessionid);
+            delete(seg, slot);
+            return session;
+        }
+    }
+
+    public boolean replaceIfVersion(int expectedVersion, SessionState session) {
+        long key = keyOf(session.getSessionId());
+        if (INVALID_KEY == key) {
+            return false;
+        }
+        int epoch = epochOf(session.getSessionId());
+        int hash = hash(key);
+        Segment seg = segmentFor(hash);
+        // the lock is reentrant, so the check and the put are one atomic step
+        synchronized (seg) {
+            int slot = find(seg, key, epoch, hash);
+            if (slot < 0 || version(seg, seg.refs[slot]) != expectedVersion) {
+                return false;
+            }
+            put(session);
+            return true;
+        }
+    }
+
+    public boolean touch(String sessionid, int oldVersion, int newVersion, long expiresAt) {
+        long key = keyOf(sessionid);
+        if (INVALID_KEY == key) {
+            return false;
+        }
+        int epoch = epochOf(sessionid);
+        int hash = hash(key);
+        Segment seg = segmentFor(hash);
+        synchronized (seg) {
+            int slot = find(seg, key, epoch, hash);
+            if (slot < 0) {
+                return false;
+            }
+            long ref = seg.refs[slot];
+            if (version(seg, ref) != oldVersion) {
+                return false;
+            }
+            ByteBuffer slab = seg.slabs.get((int) (ref >>> 32));
+            slab.putInt((int) ref, newVersion);
+            slab.putLong((int) ref + 4, expiresAt);
+            return true;
+        }
+    }
+
+    public SessionState removeIfExpired(String sessionid, long now) {
+        long key = keyOf(sessionid);
+        if (INVALID_KEY == key) {
+            return null;
+        }
+        int epoch = epochOf(sessionid);
+        int hash = hash(key);
+        Segment seg = segmentFor(hash);
+        synchronized (seg) {
+            int slot = find(seg, key, epoch, hash);
+            if (slot < 0) {
+                return null;
+            }
+            long ref = seg.refs[slot];
+            ByteBuffer slab = seg.slabs.get((int) (ref >>> 32));
+            if (slab.getLong((int) ref + 4) > now) {
+                return null;
+            }
+            SessionState session = read(seg, ref, sessionid);
+            delete(seg, slot);
+            return session;
+        }
+    }
+
+    public String[] getSessionIds() {
+        List<String> ids = new ArrayList<String>();
+        for (Segment seg : segments) {
+            synchronized (seg) {
+                for (int i = 0; i < seg.keys.length; i++) {
+                    if (seg.refs[i] >= 0) {
+                        ids.add(idOf(seg.keys[i], seg.epochs[i]));
+                    }
+                }
+            }
+        }
+        return ids.toArray(new String[ids.size()]);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment seg : segments) {
+            synchronized (seg) {
+                size += seg.count;
+            }
+        }
+        return size;
+    }
+
+    /** @return The bytes of slab memory allocated (outside the heap)
+     */
+    public long getSlabBytes() {
+        long bytes = 0;
+        for (Segment seg : segments) {
+            synchronized (seg) {
+                for (ByteBuffer slab : seg.slabs) {
+                    bytes += slab.capacity();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /** @return The bytes of heap taken by the index arrays
+     */
+    public long getIndexBytes() {
+        long bytes = 0;
+        for (Segment seg : segments) {
+            synchronized (seg) {
+                bytes += 20L * seg.keys.length;
+            }
+        }
+        return bytes;
+    }
+
+    private static int version(Segment seg, long ref) {
+        return seg.slabs.get((int) (ref >>> 32)).getInt((int) ref);
+    }
+
+    private static int length(Segment seg, long ref) {
+        return seg.slabs.get((int) (ref >>> 32)).getInt((int) ref + 12);
+    }
+
+    /** Build a SessionState from a record.
+     */
+    private static SessionState read(Segment seg, long ref, String sessionid) {
+        ByteBuffer slab = seg.slabs.get((int) (ref >>> 32));
+        int off = (int) ref;
+        byte[] msg = new byte[slab.getInt(off + 12)];
+        slab.position(off + RECORD_HEADER);
+        slab.get(msg);
+        SessionState session = new SessionState(sessionid, slab.getInt(off),
+                new String(msg, SessionCodec.UTF8));
+        session.setExpiresAt(slab.getLong(off + 4));
+        return session;
+    }
+
+    private static int sizeClass(int len) {
+        return Math.max(MIN_CLASS, 32 - Integer.numberOfLeadingZeros(len - 1));
+    }
+
+    /** Take a record of at least len bytes from the free list, the current slab or a new one.
+     */
+    private long allocate(Segment seg, int len) {
+        int cls = sizeClass(len);
+        if (seg.freeCount[cls] > 0) {
+            return seg.free[cls][--seg.freeCount[cls]];
+        }
+        int size = 1 << cls;
+        if (size > slabSize) {
+            // too big to share a slab, so it gets one of its own
+            seg.slabs.add(newSlab(size));
+            return (long) (seg.slabs.size() - 1) << 32;
+        }
+        if (seg.topSlab < 0 || seg.top + size > slabSize) {
+            seg.slabs.add(newSlab(slabSize));
+            seg.topSlab = seg.slabs.size() - 1;
+            seg.top = 0;
+        }
+        long ref = ((long) seg.topSlab << 32) | seg.top;
+        seg.top += size;
+        return ref;
+    }
+
+    private static void release(Segment seg, long ref) {
+        int cls = sizeClass(RECORD_HEADER + length(seg, ref));
+        long[] list = seg.free[cls];
+        if (null == list) {
+            list = seg.free[cls] = new long[16];
+        } else if (seg.freeCount[cls] == list.length) {
+            list = seg.free[cls] = Arrays.copyOf(list, list.length * 2);
+        }
+        list[seg.freeCount[cls]++] = ref;
+    }
+
+    private static void delete(Segment seg, int slot) {
+        release(seg, seg.refs[slot]);
+        seg.refs[slot] = DELETED;
+        seg.count--;
+    }
+
+    private static void insert(Segment seg, long key, int epoch, int hash, long ref) {
+        if (3 * (seg.used + 1) > 2 * seg.keys.length) {
+            // grow if mostly live, otherwise just clear out the DELETED markers
+            rehash(seg, 2 * seg.count >= seg.keys.length / 2 ? 2 * seg.keys.length : seg.keys.length);
+        }
+        int mask = seg.keys.length - 1;
+        int i = hash & mask;
+        while (seg.refs[i] >= 0) {
+            i = (i + 1) & mask;
+        }
+        if (EMPTY == seg.refs[i]) {
+            seg.used++;
+        }
+        seg.keys[i] = key;
+        seg.epochs[i] = epoch;
+        seg.refs[i] = ref;
+        seg.count++;
+    }
+
+    private static void rehash(Segment seg, int capacity) {
+        long[] oldKeys = seg.keys;
+        int[] oldEpochs = seg.epochs;
+        long[] oldRefs = seg.refs;
+        seg.keys = new long[capacity];
+        seg.epochs = new int[capacity];
+        seg.refs = new long[capacity];
+        Arrays.fill(seg.refs, EMPTY);
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldRefs[j] < 0) {
+                continue;
+            }
+            int i = hash(oldKeys[j]) & mask;
+            while (EMPTY != seg.refs[i]) {
+                i = (i + 1) & mask;
+            }
+            seg.keys[i] = oldKeys[j];
+            seg.epochs[i] = oldEpochs[j];
+            seg.refs[i] = oldRefs[j];
+        }
+        seg.used = seg.count;
+    }
+
+    /** Allocate one slab: a direct buffer, or a mapping of a scratch file in mmapDir.
+     */
+    private ByteBuffer newSlab(int size) {
+        if (null == mmapDir) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        try {
+            File file = File.createTempFile("slab", ".bin", mmapDir);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                // the mapping outlives the file and the channel
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                raf.close();
+                file.delete();
+            }
+        } catch (IOException ioe) {
+            System.out.println("Cannot map slab, using direct memory: " + ioe.getMessage());
+            return ByteBuffer.allocateDirect(size);
+        }
+    }
+}
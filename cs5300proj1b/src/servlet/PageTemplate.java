@@ -0,0 +1,141 @@
+package servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+/** The page every servlet answers with, kept as pre-encoded UTF-8 pieces with the
+ *  per-request fields (title, message, extra HTML) written in between:
+ *
+ *    HEAD title BODY message AFTER_MSG other [Handling Server: ip, View: ] view FOOT
+ *
+ *  The page is put together in a per-thread buffer and handed to the response's
+ *  OutputStream in one write, so a request allocates nothing for the static parts and
+ *  the view string is only rebuilt when the View changes (see View.getStringBytes()).
+ */
+public class PageTemplate {
+    private static final byte[] HEAD = bytes(
+            "<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 4.0 Transitional//EN\">\n"
+            + "<HTML>\n<HEAD><TITLE>");
+    private static final byte[] BODY = bytes(
+            "</TITLE></HEAD>\n<BODY BGCOLOR=\"#FDF5E6\">\n<H1 ALIGN=\"CENTER\">");
+    private static final byte[] AFTER_MSG = bytes("</H1>\n");
+    private static final byte[] FOOT = bytes("</p></BODY></HTML>");
+    private static final byte[] NEWLINE = bytes("\n");
+    private static final int KEEP_LIMIT = 64 * 1024; // larger buffers are not kept per thread
+
+    private static volatile byte[] server = null; // "Handling Server" paragraph and "View: "
+
+    private static final ThreadLocal<Buffer> buffers = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return new Buffer(8 * 1024);
+        }
+    };
+
+    /** A growable byte buffer with a fast path for ASCII strings.
+     */
+    private static class Buffer {
+        byte[] bytes;
+        int len = 0;
+
+        Buffer(int size) {
+            bytes = new byte[size];
+        }
+
+        void ensure(int more) {
+            if (len + more > bytes.length) {
+                byte[] bigger = new byte[Math.max(bytes.length * 2, len + more)];
+                System.arraycopy(bytes, 0, bigger, 0, len);
+                bytes = bigger;
+            }
+        }
+
+        void put(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, bytes, len, b.length);
+            len += b.length;
+        }
+
+        void put(String s) {
+            int n = s.length();
+            ensure(n);
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    // not ASCII; let the JDK encode the rest
+                    put(s.substring(i).getBytes(SessionCodec.UTF8));
+                    return;
+                }
+                bytes[len++] = (byte) c;
+            }
+        }
+    }
+
+    /** Write a page as the response, with its content type and length.
+     *
+     * @param response The response to write to
+     * @param title The page title
+     * @param msg The message to display
+     * @param other Any other HTML (e.g. form, errors)
+     */
+    public static void write(HttpServletResponse response, String title, String msg, String other)
+            throws IOException {
+        Buffer buff = fill(title, msg, other);
+        buff.put(NEWLINE);
+        response.setContentType("text/html; charset=UTF-8");
+        response.setContentLength(buff.len);
+        OutputStream out = response.getOutputStream();
+        out.write(buff.bytes, 0, buff.len);
+        release(buff);
+    }
+
+    /** Render a page as a string.
+     *
+     * @param title The page title
+     * @param msg The message to display
+     * @param other Any other HTML (e.g. form, errors)
+     * @return The complete HTML page
+     */
+    public static String render(String title, String msg, String other) {
+        Buffer buff = fill(title, msg, other);
+        String page = new String(buff.bytes, 0, buff.len, SessionCodec.UTF8);
+        release(buff);
+        return page;
+    }
+
+    private static Buffer fill(String title, String msg, String other) {
+        Buffer buff = buffers.get();
+        buff.len = 0;
+        buff.put(HEAD);
+        buff.put(title);
+        buff.put(BODY);
+        buff.put(msg);
+        buff.put(AFTER_MSG);
+        buff.put(other);
+        buff.put(getServer());
+        buff.put(View.getStringBytes());
+        buff.put(FOOT);
+        return buff;
+    }
+
+    private static void release(Buffer buff) {
+        if (buff.bytes.length > KEEP_LIMIT) {
+            buffers.remove();
+        }
+    }
+
+    private static byte[] getServer() {
+        byte[] s = server;
+        if (null == s) {
+            s = bytes("<p>Handling Server: " + NetUtils.getIP() + "</p><p>View: ");
+            server = s;
+        }
+        return s;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(SessionCodec.UTF8);
+    }
+}
@@ -0,0 +1,181 @@
+package servlet;
+
+/** What we know about one peer: its round-trip times, how long it has been silent and the
+ *  state of its circuit breaker. Kept by FailureDetector; all times are ExpiryWheel.now()
+ *  milliseconds.
+ *
+ *  The circuit is CLOSED while the peer is healthy. It OPENs when the peer's suspicion level
+ *  (phi) crosses the threshold, and no requests are sent to it. After a cooldown it goes
+ *  HALF_OPEN and a single probe request is let through; any packet from the peer closes it
+ *  again, and a probe that times out re-opens it.
+ */
+public class PeerStats {
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final double ALPHA = 0.125; // srtt gain, as in TCP (RFC 6298)
+    private static final double BETA = 0.25;   // rttvar gain
+
+    private double srtt = 0;     // smoothed round-trip time
+    private double rttvar = 0;   // smoothed mean deviation of the round-trip time
+    private long samples = 0;
+    private long pendingSince = 0; // when we first asked since we last heard from it, 0 if not waiting
+    private long lastHeard = 0;
+    private State state = State.CLOSED;
+    private long openedAt = 0;
+    private long probeAt = 0;
+    private long timeouts = 0;
+    private long opened = 0;
+
+    /** Note that we sent the peer a request. */
+    synchronized void onSent(long now) {
+        if (0 == pendingSince) {
+            pendingSince = now;
+        }
+    }
+
+    /** Fold in one round-trip time sample.
+     *
+     * @param rtt The round-trip time in msecs (fractional)
+     */
+    synchronized void onRtt(double rtt) {
+        if (0 == samples++) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+        }
+    }
+
+    /** Note that a packet arrived from the peer.
+     *
+     * @return True if this closed a circuit that was open or half open
+     */
+    synchronized boolean onHeard(long now) {
+        lastHeard = now;
+        pendingSince = 0;
+        if (State.CLOSED == state) {
+            return false;
+        }
+        state = State.CLOSED;
+        return true;
+    }
+
+    /** Note that a request to the peer timed out.
+     *
+     * @param threshold The phi at which to open the circuit
+     * @param pause How long (msecs) a peer may be silent before it becomes suspect
+     * @return True if this opened the circuit
+     */
+    synchronized boolean onTimeout(long now, double threshold, long pause) {
+        timeouts++;
+        if (State.OPEN == state) {
+            return false;
+        }
+        if (State.HALF_OPEN == state || phi(now, pause) >= threshold) {
+            boolean wasClosed = State.CLOSED == state;
+            state = State.OPEN;
+            openedAt = now;
+            if (wasClosed) {
+                opened++;
+            }
+            return wasClosed;
+        }
+        return false;
+    }
+
+    /** Decide whether a request may be sent to the peer now.
+     *
+     * @param cooldown How long (msecs) an open circuit stays open before a probe
+     * @param probeTimeout How long (msecs) to wait on a probe before allowing another
+     */
+    synchronized boolean allowRequest(long now, long cooldown, long probeTimeout) {
+        switch (state) {
+        case OPEN:
+            if (now - openedAt < cooldown) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            probeAt = now;
+            return true;
+        case HALF_OPEN:
+            // the probe may have gone out with a call that finished without it
+            if (now - probeAt < probeTimeout) {
+                return false;
+            }
+            probeAt = now;
+            return true;
+        default:
+            return true;
+        }
+    }
+
+    /** The suspicion level: -log10 of the probability that a live peer would still not have
+     *  answered, treating its response time as normal around srtt + pause. 0 while nothing
+     *  is outstanding. Uses the logistic approximation of the normal CDF.
+     *
+     * @param now The current time
+     * @param pause How long (msecs) a peer may be silent before it becomes suspect
+     * @return phi; 1 means a 10% chance the peer is fine, 2 means 1%, and so on
+     */
+    public synchronized double phi(long now, long pause) {
+        if (0 == pendingSince) {
+            return 0.0;
+        }
+        double elapsed = now - pendingSince;
+        double mean = srtt + pause;
+        double stddev = Math.max(rttvar, FailureDetector.MIN_STDDEV);
+        double y = (elapsed - mean) / stddev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (elapsed > mean) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    /** The request timeout for this peer: srtt + 4 * rttvar, within the given bounds.
+     *  Peers we have no samples for get the maximum.
+     */
+    public synchronized long getTimeout(long min, long max) {
+        if (0 == samples) {
+            return max;
+        }
+        long timeout = (long) Math.ceil(srtt + 4 * rttvar);
+        return Math.max(min, Math.min(max, timeout));
+    }
+
+    /** @return The smoothed round-trip time in msecs */
+    public synchronized double getSrtt() {
+        return srtt;
+    }
+
+    /** @return The smoothed round-trip time deviation in msecs */
+    public synchronized double getRttVar() {
+        return rttvar;
+    }
+
+    /** @return The number of round-trip samples taken */
+    public synchronized long getSamples() {
+        return samples;
+    }
+
+    /** @return When we last heard from the peer (0 for never) */
+    public synchronized long getLastHeard() {
+        return lastHeard;
+    }
+
+    /** @return The circuit breaker state */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /** @return The number of requests to this peer that have timed out */
+    public synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    /** @return The number of times the circuit has opened */
+    public synchronized long getOpenCount() {
+        return opened;
+    }
+}
@@ -0,0 +1,18 @@
+package servlet;
+
+import java.net.InetAddress;
+
+/** Decides which servers should hold the copies of a session.
+ */
+public interface PlacementStrategy {
+
+    /** Order servers by how strongly they are preferred for a key.
+     *  The order must depend only on the key and the set of servers (not on the order they
+     *  are given in), so every instance with the same view makes the same choice.
+     *
+     * @param key The key being placed (e.g. a session id)
+     * @param members The candidate servers
+     * @return The same servers, most preferred first
+     */
+    public InetAddress[] rank(String key, InetAddress[] members);
+}
@@ -0,0 +1,211 @@
+package servlet;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** The client end of our RPC protocol: one long-lived datagram channel shared by every caller.
+ *
+ *  Requests go out on the caller's thread. A single receiver thread reads every reply and
+ *  hands it to the pending call with the matching call id, and also times out calls whose
+ *  deadline has passed. Sends, replies and timeouts are all reported to the FailureDetector.
+ */
+public class RPCClient extends Thread {
+    private static final long SWEEP_INTERVAL = 50; // msecs between deadline checks
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final AtomicInteger callSeq = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, RPCFuture> pending =
+        new ConcurrentHashMap<Integer, RPCFuture>();
+    private final Reassembler reassembler = new Reassembler(2 * NetUtils.RPC_TIMEOUT, 256,
+            Fragmenter.fragmentCount(NetUtils.MAX_PAYLOAD_LEN + 64, NetUtils.MAX_PACKET_LEN));
+
+    /** Open the channel on an ephemeral port of the instance's bind address.
+     *  Call start() to begin receiving replies.
+     */
+    public RPCClient() throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(NetUtils.getBindAddress(), 0));
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        setDaemon(true);
+        setName("RPCClient");
+    }
+
+    /** Send a request to every given server at once.
+     *
+     * @param opCode The op code for the request
+     * @param args The arguments (fragmented if they do not fit in one packet)
+     * @param addrs The servers to send to
+     * @param needed The number of REPLYs after which the call is complete
+     * @param timeout How long to wait for replies, in msecs
+     * @return The pending call
+     */
+    public RPCFuture call(short opCode, byte[] args, InetAddress[] addrs, int needed, long timeout)
+            throws IOException {
+        int cid = callSeq.getAndIncrement();
+        RPCFuture future = new RPCFuture(cid, opCode, addrs, needed, ExpiryWheel.now() + timeout);
+        pending.put(cid, future);
+
+        ByteBuffer packet = ByteBuffer.allocate(4 + 2 + args.length + Membership.MAX_GOSSIP_LEN);
+        packet.putInt(cid);
+        packet.putShort((short) (opCode | NetUtils.FLAG_MTU));
+        packet.put(args);
+        // piggyback membership updates if the packet still fits whoever it goes to
+        if (packet.position() + Membership.MAX_GOSSIP_LEN <= NetUtils.MAX_PACKET_LEN
+                && Membership.appendGossip(packet)) {
+            packet.putShort(4, (short) (opCode | NetUtils.FLAG_MTU | NetUtils.FLAG_GOSSIP));
+        }
+        packet.flip();
+        ByteBuffer scratch = null;
+        try {
+            for (InetAddress addr : addrs) {
+                FailureDetector.onSent(addr);
+                InetSocketAddress to = new InetSocketAddress(addr, NetUtils.PROJ1BRPC_PORT);
+                int limit = NetUtils.packetLimit(addr);
+                if (packet.limit() <= limit) {
+                    packet.rewind();
+                    channel.send(packet, to);
+                } else {
+                    if (null == scratch) {
+                        scratch = ByteBuffer.allocate(NetUtils.MTU_PACKET_LEN);
+                    }
+                    Fragmenter.send(channel, to, cid, opCode, ByteBuffer.wrap(args), limit, scratch);
+                }
+            }
+        } catch (IOException ioe) {
+            pending.remove(cid);
+            future.expire();
+            throw ioe;
+        }
+        return future;
+    }
+
+    /** @return The number of calls currently waiting for replies
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer recvBuff = ByteBuffer.allocateDirect(NetUtils.MTU_PACKET_LEN);
+
+        try {
+            while (channel.isOpen()) {
+                selector.select(SWEEP_INTERVAL);
+                selector.selectedKeys().clear();
+
+                // drain everything that has arrived
+                while (true) {
+                    recvBuff.clear();
+                    InetSocketAddress from = (InetSocketAddress) channel.receive(recvBuff);
+                    if (null == from) {
+                        break;
+                    }
+                    recvBuff.flip();
+                    dispatch(from, recvBuff);
+                }
+
+                expireOverdue();
+                reassembler.sweep(ExpiryWheel.now());
+            }
+        } catch (ClosedSelectorException cse) {
+            // close() was called
+        } catch (IOException ioe) {
+            System.out.println("Exception in RPCClient: " + ioe.toString());
+        }
+    }
+
+    /** Route one reply packet to the call waiting for it.
+     */
+    private void dispatch(InetSocketAddress from, ByteBuffer packet) {
+        if (packet.remaining() < 4 + 2) {
+            Metrics.CLIENT_TRUNCATED.inc();
+            return;
+        }
+        int cid = packet.getInt();
+        short rawCode = packet.getShort();
+        short code = (short) (rawCode & NetUtils.OP_MASK);
+        NetUtils.notePeerFlags(from.getAddress(), rawCode);
+        FailureDetector.onHeard(from.getAddress());
+        if (0 != (rawCode & NetUtils.FLAG_GOSSIP) && NetUtils.FRAGMENT != code
+                && !Membership.readGossip(packet)) {
+            Metrics.CLIENT_TRUNCATED.inc();
+            return;
+        }
+
+        RPCFuture future = pending.get(cid);
+        if (null == future) {
+            // late reply for a call that is already done
+            return;
+        }
+
+        byte[] args;
+        if (NetUtils.FRAGMENT == code) {
+            if (packet.remaining() < Fragmenter.HEADER_LEN - (4 + 2)) {
+                Metrics.CLIENT_TRUNCATED.inc();
+                return;
+            }
+            code = packet.getShort();
+            int index = packet.getShort();
+            int count = packet.getShort();
+            args = reassembler.offer(from, cid, index, count, packet);
+            if (null == args) {
+                // wait for the rest
+                return;
+            }
+        } else {
+            args = new byte[packet.remaining()];
+            packet.get(args);
+        }
+
+        if (future.onReply(from.getAddress(), NetUtils.REPLY == code, args)) {
+            pending.remove(cid, future);
+        }
+    }
+
+    private void expireOverdue() {
+        long now = ExpiryWheel.now();
+        Iterator<RPCFuture> it = pending.values().iterator();
+        while (it.hasNext()) {
+            RPCFuture future = it.next();
+            if (future.isDone()) {
+                it.remove();
+            } else if (future.getDeadline() <= now) {
+                // judge the silent peers before waking the caller
+                Set<InetAddress> silent = future.getUnanswered();
+                Metrics.RPC_TIMEOUTS[Metrics.slot(future.getOpCode())].add(silent.size());
+                FailureDetector.onTimeout(silent);
+                future.expire();
+                it.remove();
+            }
+        }
+    }
+
+    /** Stop receiving and close the channel. Outstanding calls finish with what they have.
+     */
+    public void close() {
+        try {
+            channel.close();
+            selector.close();
+        } catch (IOException ioe) {
+            System.out.println(ioe.getMessage());
+        }
+        for (RPCFuture future : pending.values()) {
+            future.expire();
+        }
+        pending.clear();
+    }
+}
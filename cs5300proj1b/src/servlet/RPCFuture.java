@@ -0,0 +1,191 @@
+package servlet;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/** An outstanding call made through RPCClient.
+ *
+ *  The call is done once enough servers have sent a REPLY, once every server it was sent
+ *  to has answered, or once its deadline passes, whichever comes first. get() returns the
+ *  arguments of the first REPLY (or null if there was none); getReplies() returns all of them.
+ */
+public class RPCFuture implements Future<byte[]> {
+
+    /** Notified once when a call is done, on whichever thread finished it.
+     */
+    public interface Listener {
+        public void done(RPCFuture future);
+    }
+
+    private final int callid;
+    private final short opCode;
+    private final int needed;
+    private final long deadline;
+    private final long sentNanos = System.nanoTime();
+    private final Set<InetAddress> outstanding;
+    private final List<RPCReply> replies;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private boolean cancelled = false;
+    private final List<Listener> listeners = new ArrayList<Listener>(1);
+
+    /** @param callid The call id the request was sent with
+     *  @param opCode The op code of the request
+     *  @param addrs The servers the request was sent to
+     *  @param needed The number of REPLYs that completes the call
+     *  @param deadline When to give up, in ExpiryWheel.now() milliseconds
+     */
+    public RPCFuture(int callid, short opCode, InetAddress[] addrs, int needed, long deadline) {
+        this.callid = callid;
+        this.opCode = opCode;
+        this.needed = needed;
+        this.deadline = deadline;
+        this.outstanding = new HashSet<InetAddress>(addrs.length * 2);
+        for (InetAddress addr : addrs) {
+            outstanding.add(addr);
+        }
+        this.replies = new ArrayList<RPCReply>(needed);
+    }
+
+    /** @return The call id this call was sent with
+     */
+    public int getCallId() {
+        return callid;
+    }
+
+    /** @return The op code of the request
+     */
+    public short getOpCode() {
+        return opCode;
+    }
+
+    /** @return When this call gives up, in ExpiryWheel.now() milliseconds
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /** Record an answer from a server. Answers from servers we did not ask, second answers
+     *  and anything after the call is done are ignored.
+     *
+     * @param addr The server that answered
+     * @param success True for REPLY, false for NO_REPLY
+     * @param args The reply arguments
+     * @return True if this answer completed the call
+     */
+    boolean onReply(InetAddress addr, boolean success, byte[] args) {
+        boolean completed;
+        synchronized (this) {
+            if (isDone() || !outstanding.remove(addr)) {
+                return false;
+            }
+            if (success) {
+                replies.add(new RPCReply(addr, args));
+            }
+            completed = replies.size() >= needed || outstanding.isEmpty();
+            if (completed) {
+                done.countDown();
+            }
+        }
+        long rtt = System.nanoTime() - sentNanos;
+        FailureDetector.onRtt(addr, rtt);
+        int slot = Metrics.slot(opCode);
+        Metrics.RPC_CLIENT_LATENCY[slot].record(rtt);
+        (success ? Metrics.RPC_REPLIES[slot] : Metrics.RPC_NO_REPLIES[slot]).inc();
+        if (completed) {
+            fireListeners();
+        }
+        return completed;
+    }
+
+    /** Finish the call with whatever replies have arrived so far.
+     */
+    void expire() {
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            done.countDown();
+        }
+        fireListeners();
+    }
+
+    /** Have the listener called when the call is done (right away if it already is).
+     */
+    public void addListener(Listener listener) {
+        synchronized (this) {
+            if (!isDone()) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.done(this);
+    }
+
+    private void fireListeners() {
+        List<Listener> toCall;
+        synchronized (this) {
+            toCall = new ArrayList<Listener>(listeners);
+            listeners.clear();
+        }
+        for (Listener listener : toCall) {
+            listener.done(this);
+        }
+    }
+
+    /** Block until the call is done.
+     *
+     * @return The successful replies, in order of arrival
+     */
+    public List<RPCReply> getReplies() throws InterruptedException {
+        done.await();
+        synchronized (this) {
+            return new ArrayList<RPCReply>(replies);
+        }
+    }
+
+    /** @return The servers that have not answered (only meaningful once the call is done)
+     */
+    public synchronized Set<InetAddress> getUnanswered() {
+        return new HashSet<InetAddress>(outstanding);
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            cancelled = true;
+            done.countDown();
+        }
+        fireListeners();
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return 0 == done.getCount();
+    }
+
+    public byte[] get() throws InterruptedException {
+        done.await();
+        return firstReply();
+    }
+
+    public byte[] get(long timeout, TimeUnit unit) throws InterruptedException {
+        done.await(timeout, unit);
+        return firstReply();
+    }
+
+    private synchronized byte[] firstReply() {
+        return replies.isEmpty() ? null : replies.get(0).getArgs();
+    }
+}
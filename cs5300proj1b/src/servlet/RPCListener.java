@@ -1,132 +1,381 @@
 package servlet;
 
+import java.io.IOException;
 import java.net.InetAddress;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
 
+/** One shard of the RPCServer: receives requests, handles them and sends the replies.
+ */
 public class RPCListener extends Thread {
-    private DatagramSocket rpcSocket = null;
-    private static boolean listenerRunning = false;
+    private final DatagramChannel channel;
+    private final Reassembler reassembler;
+
+    // Preallocated for this shard; no other thread touches them
+    private final ByteBuffer recvBuffer = ByteBuffer.allocateDirect(NetUtils.MTU_PACKET_LEN);
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final ByteBuffer fragBuffer = ByteBuffer.allocateDirect(NetUtils.MTU_PACKET_LEN);
+
+    /** @param channel The (bound) channel to serve, possibly shared with other shards
+     *  @param shard The number of this shard, used to name the thread
+     *  @param reassembler Where to collect fragmented requests (shared by all shards)
+     */
+    public RPCListener(DatagramChannel channel, int shard, Reassembler reassembler) {
+        this.channel = channel;
+        this.reassembler = reassembler;
+        setName("RPCListener-" + shard);
+    }
 
     public void run() {
         try {
-            rpcSocket = new DatagramSocket(NetUtils.PROJ1BRPC_PORT);
+            // Loop until the server is closed
+            while(channel.isOpen()) {
+                recvBuffer.clear();
 
-            // Loop indefinitely
-            while(true) {
-                byte[] recvBuffer = new byte[512];
-                DatagramPacket recvPacket = new DatagramPacket(recvBuffer, recvBuffer.length);
-                
                 // Wait for a reqest to arrive
-                rpcSocket.receive(recvPacket);
+                InetSocketAddress retAddr = (InetSocketAddress) channel.receive(recvBuffer);
+                recvBuffer.flip();
+                FailureDetector.onHeard(retAddr.getAddress());
 
-                // Extract basic information about the recieved request
-                int len_recv = recvPacket.getLength();
-                InetAddress retAddr = recvPacket.getAddress();
-                int retPort = recvPacket.getPort();
-                View.addAddr(retAddr);
+                // Too short to even hold a header, so nothing to reply to
+                if (recvBuffer.remaining() < 4 + 2) {
+                    Metrics.SERVER_TRUNCATED.inc();
+                    continue;
+                }
 
                 // Extract the request components from the packet
-                ByteBuffer buff = ByteBuffer.wrap(recvBuffer, 0, len_recv);
-                int callid = buff.getInt();
-                short opcode = buff.getShort();
-                byte[] args = new byte[len_recv - (4 + 2)];
-                buff.get(args, 0, args.length);
-
-                // handle the request and get the response
-                byte[] res = handleRequest(opcode, args);
-
-                // Package up the response with the call id and REPLY op code
-                buff = ByteBuffer.allocate(4 + res.length);
-                buff.putInt(callid);
-                buff.put(res);
-                
-                // Send the results to the address and port we got the request from
-                DatagramPacket sendPacket = 
-                    new DatagramPacket(buff.array(), buff.capacity(), retAddr, retPort);
-                rpcSocket.send(sendPacket);
+                int callid = recvBuffer.getInt();
+                short rawOpcode = recvBuffer.getShort();
+                short opcode = (short) (rawOpcode & NetUtils.OP_MASK);
+                NetUtils.notePeerFlags(retAddr.getAddress(), rawOpcode);
+                if (0 != (rawOpcode & NetUtils.FLAG_GOSSIP) && NetUtils.FRAGMENT != opcode
+                        && !Membership.readGossip(recvBuffer)) {
+                    Metrics.SERVER_TRUNCATED.inc();
+                    continue;
+                }
+                ByteBuffer args = recvBuffer;
+
+                if (NetUtils.FRAGMENT == opcode) {
+                    if (recvBuffer.remaining() < Fragmenter.HEADER_LEN - (4 + 2)) {
+                        Metrics.SERVER_TRUNCATED.inc();
+                        continue;
+                    }
+                    opcode = recvBuffer.getShort();
+                    int index = recvBuffer.getShort();
+                    int count = recvBuffer.getShort();
+                    byte[] whole = reassembler.offer(retAddr, callid, index, count, recvBuffer);
+                    if (null == whole) {
+                        // wait for the rest of the request
+                        continue;
+                    }
+                    args = ByteBuffer.wrap(whole);
+                }
+
+                // Package up the response with the call id, then let the handler add the
+                // REPLY/NO_REPLY op code and its results
+                sendBuffer.clear();
+                sendBuffer.putInt(callid);
+                long start = System.nanoTime();
+                handleRequest(opcode, retAddr.getAddress(), args, sendBuffer);
+                Metrics.RPC_SERVER_LATENCY[Metrics.slot(opcode)].record(System.nanoTime() - start);
+
+                // Piggyback membership updates if there is room for them in one packet
+                int limit = NetUtils.packetLimit(retAddr.getAddress());
+                if (sendBuffer.position() + Membership.MAX_GOSSIP_LEN <= limit
+                        && Membership.appendGossip(sendBuffer)) {
+                    sendBuffer.putShort(4, (short) (sendBuffer.getShort(4) | NetUtils.FLAG_GOSSIP));
+                }
+                sendBuffer.flip();
+
+                // Send the results to the address and port we got the request from,
+                // in fragments if they do not fit in one packet
+                try {
+                    if (sendBuffer.remaining() <= limit) {
+                        sendBuffer.putShort(4, (short) (sendBuffer.getShort(4) | NetUtils.FLAG_MTU));
+                        channel.send(sendBuffer, retAddr);
+                    } else {
+                        short replyOp = sendBuffer.getShort(4);
+                        sendBuffer.position(4 + 2);
+                        Fragmenter.send(channel, retAddr, callid, replyOp, sendBuffer, limit,
+                                fragBuffer);
+                    }
+                } catch (ClosedChannelException cce) {
+                    throw cce;
+                } catch (IOException ioe) {
+                    // the requester went away; carry on with the next request
+                    System.out.println("RPCListener could not reply: " + ioe.getMessage());
+                }
             }
+        } catch (ClosedChannelException cce) {
+            // the server was shut down
         } catch (Exception e) {
             System.out.println("Exception in RPCListener: " + e.toString());
             e.printStackTrace();
-        } finally {
-            if (null != rpcSocket && rpcSocket.isConnected()) {
-                rpcSocket.close();
-            }
         }
     }
 
 
-    public byte[] handleRequest(short op, byte[] args) {
-        switch(op) {
-            case NetUtils.SESSION_READ:
-                return sessionRead(args);
-            case NetUtils.SESSION_WRITE:
-                return sessionWrite(args);
-            case NetUtils.GET_VIEW:
-                return getView();
-            default:
-                ByteBuffer bb = ByteBuffer.allocate(2);
-                bb.putShort(NetUtils.NO_REPLY);
-                return bb.array();
+    /** Handle one request, writing the reply op code and results into reply.
+     *
+     * @param op The op code of the request
+     * @param from The server that sent the request
+     * @param args The request arguments, positioned at their start
+     * @param reply The buffer to write the reply to, positioned after the call id
+     */
+    public void handleRequest(short op, InetAddress from, ByteBuffer args, ByteBuffer reply) {
+        int sender = SessionCodec.ipToInt(from);
+        int start = reply.position();
+        try {
+            switch(op) {
+                case NetUtils.SESSION_READ:
+                    sessionRead(args, reply);
+                    return;
+                case NetUtils.SESSION_WRITE:
+                    sessionWrite(sender, args, reply);
+                    return;
+                case NetUtils.SESSION_TOUCH:
+                    sessionTouch(sender, args, reply);
+                    return;
+                case NetUtils.SESSION_WRITE_BATCH:
+                    sessionWriteBatch(sender, args, reply);
+                    return;
+                case NetUtils.SESSION_DIGEST:
+                    sessionDigest(sender, args, reply);
+                    return;
+                case NetUtils.SESSION_SYNC:
+                    sessionSync(sender, args, reply);
+                    return;
+                case NetUtils.SESSION_REPAIR:
+                    sessionRepair(sender, args, reply);
+                    return;
+                case NetUtils.GET_VIEW:
+                    getView(reply);
+                    return;
+                case NetUtils.PING:
+                    // the point is the membership updates that ride along
+                    reply.putShort(NetUtils.REPLY);
+                    return;
+                default:
+                    reply.putShort(NetUtils.NO_REPLY);
+                    return;
+            }
+        } catch (BufferUnderflowException bue) {
+            // malformed (or truncated) arguments
+            Metrics.SERVER_TRUNCATED.inc();
+            reply.position(start);
+            reply.putShort(NetUtils.NO_REPLY);
+        } catch (BufferOverflowException boe) {
+            // the results do not fit in a reply
+            reply.position(start);
+            reply.putShort(NetUtils.NO_REPLY);
         }
     }
 
 
-    private byte[] sessionRead(byte[] args) {
-        byte[] retArgs;
-        short op;
-        String[] sessionInfo = (new String(args)).split("_");
-        if(sessionInfo.length < 2) {
-            retArgs = (sessionInfo[0] + "_-1_NULL").getBytes();
-            op = NetUtils.NO_REPLY;
+    private void sessionRead(ByteBuffer args, ByteBuffer reply) {
+        String sessionid = SessionCodec.decodeSessionId(args);
+        if (null == sessionid) {
+            reply.putShort(NetUtils.NO_REPLY);
+            return;
+        }
+        int version = args.getInt();
+
+        // a newer copy than the one asked for is sent too, so a quorum read can take the newest
+        SessionState ss = SessionState.getSession(sessionid);
+        if (null == ss || -1 == version || ss.getVersion() < version) {
+            reply.putShort(NetUtils.NO_REPLY);
         } else {
-            String sessionid = sessionInfo[0];
-            int version = -1;
-            try {
-                version = Integer.parseInt(sessionInfo[1]);
-            } catch (NumberFormatException nfe) {
-                version = -1;
+            reply.putShort(NetUtils.REPLY);
+            reply.put(ss.toBytes());
+            // the reader is taking the session over and will write its own copies
+            RepairService.forget(sessionid);
+        }
+    }
+
+    private void sessionWrite(int sender, ByteBuffer args, ByteBuffer reply) {
+        SessionState ss = SessionCodec.decode(args);
+        if(null == ss) {
+            reply.putShort(NetUtils.NO_REPLY);
+        } else {
+            // a write can arrive after a newer write or touch of the same session (writes no
+            // longer wait for every replica); keep the newer copy, which still satisfies reads
+            // of this version
+            SessionState current = SessionState.addSessionIfNewer(ss, Utils.remoteSessionExpTime);
+            if (null == current || current.getVersion() == ss.getVersion()) {
+                RepairService.noteHeld(ss.getSessionId(), sender);
             }
+            reply.putShort(NetUtils.REPLY);
+        }
+        reply.putInt(SessionCodec.ipToInt(NetUtils.getIP()));
+    }
+
+    private void sessionTouch(int sender, ByteBuffer args, ByteBuffer reply) {
+        String sessionid = SessionCodec.decodeSessionId(args);
+        if (null == sessionid) {
+            reply.putShort(NetUtils.NO_REPLY);
+            return;
+        }
+        int oldVersion = args.getInt();
+        int newVersion = args.getInt();
+
+        // only apply it if our copy is the one the sender bumped; otherwise it must do a full write
+        boolean touched = SessionState.touchSession(sessionid,
+                oldVersion, newVersion, Utils.remoteSessionExpTime);
+        if (touched) {
+            RepairService.noteHeld(sessionid, sender);
+        }
+        reply.putShort(touched ? NetUtils.REPLY : NetUtils.NO_REPLY);
+        reply.putInt(SessionCodec.ipToInt(NetUtils.getIP()));
+    }
+
+    private void sessionWriteBatch(int sender, ByteBuffer args, ByteBuffer reply) {
+        int count = SessionCodec.getVarint(args);
+        if (count < 0 || count > args.remaining()) {
+            reply.putShort(NetUtils.NO_REPLY);
+            return;
+        }
+        reply.putShort(NetUtils.REPLY);
+        reply.putInt(SessionCodec.ipToInt(NetUtils.getIP()));
+        SessionCodec.putVarint(reply, count);
 
-            SessionState ss = SessionState.getSession(sessionid, version);
-            if (null == ss || -1 == version) {
-                retArgs = (sessionInfo[0] + "_-1_NULL").getBytes();
-                op = NetUtils.NO_REPLY;
+        for (int i = 0; i < count; i++) {
+            int len = SessionCodec.getVarint(args);
+            if (len < 0 || len > args.remaining()) {
+                // the rest of the batch is unreadable
+                for (; i < count; i++) {
+                    reply.put((byte) 0);
+                }
+                return;
+            }
+            int end = args.position() + len;
+            SessionState ss = SessionCodec.decode(args);
+            args.position(end);
+            if (null == ss) {
+                reply.put((byte) 0);
             } else {
-                retArgs = ss.toBytes();
-                op = NetUtils.REPLY;
+                // as in sessionWrite: never replace a newer copy
+                SessionState current =
+                    SessionState.addSessionIfNewer(ss, Utils.remoteSessionExpTime);
+                if (null == current || current.getVersion() == ss.getVersion()) {
+                    RepairService.noteHeld(ss.getSessionId(), sender);
+                }
+                reply.put((byte) 1);
             }
         }
-        ByteBuffer retBuf = ByteBuffer.allocate(2 + retArgs.length);
-        retBuf.putShort(op); 
-        retBuf.put(retArgs);
-        return retBuf.array();
     }
 
-    private byte[] sessionWrite(byte[] args) {
-        byte[] serverip = NetUtils.getIP().getBytes();
-        ByteBuffer retBuf = ByteBuffer.allocate(2 + serverip.length);
-        String[] sesInfo = (new String(args)).split("_", 3);
-        if(sesInfo.length < 3) {
-            retBuf.putShort(NetUtils.NO_REPLY);
-        } else {
-            SessionState ss = 
-                new SessionState(sesInfo[0], Integer.parseInt(sesInfo[1]), sesInfo[2]);
-            SessionState.addSession(ss, Utils.remoteSessionExpTime);
-            retBuf.putShort(NetUtils.REPLY);
+    private void sessionDigest(int sender, ByteBuffer args, ByteBuffer reply) {
+        int buckets = SessionCodec.getVarint(args);
+        if (buckets <= 0 || buckets > RepairService.BUCKETS || 0 != (buckets & (buckets - 1))) {
+            reply.putShort(NetUtils.NO_REPLY);
+            return;
+        }
+        long[] theirs = new long[buckets];
+        for (int b = 0; b < buckets; b++) {
+            theirs[b] = args.getLong();
+        }
+
+        long[] ours = RepairService.heldDigests(sender, buckets);
+        int differ = 0;
+        for (int b = 0; b < buckets; b++) {
+            if (ours[b] != theirs[b]) {
+                differ++;
+            }
+        }
+        reply.putShort(NetUtils.REPLY);
+        SessionCodec.putVarint(reply, differ);
+        for (int b = 0; b < buckets; b++) {
+            if (ours[b] != theirs[b]) {
+                SessionCodec.putVarint(reply, b);
+            }
+        }
+    }
+
+    private void sessionSync(int sender, ByteBuffer args, ByteBuffer reply) {
+        int leafCount = SessionCodec.getVarint(args);
+        if (leafCount < 0 || leafCount > RepairService.BUCKETS) {
+            reply.putShort(NetUtils.NO_REPLY);
+            return;
+        }
+        boolean[] leaves = new boolean[RepairService.BUCKETS];
+        List<String> sessionids = new ArrayList<String>();
+        List<Integer> versions = new ArrayList<Integer>();
+        for (int l = 0; l < leafCount; l++) {
+            int leaf = SessionCodec.getVarint(args);
+            int count = SessionCodec.getVarint(args);
+            if (leaf < 0 || leaf >= RepairService.BUCKETS || count < 0 || count > args.remaining()) {
+                reply.putShort(NetUtils.NO_REPLY);
+                return;
+            }
+            leaves[leaf] = true;
+            for (int i = 0; i < count; i++) {
+                String sessionid = SessionCodec.decodeSessionId(args);
+                if (null == sessionid) {
+                    reply.putShort(NetUtils.NO_REPLY);
+                    return;
+                }
+                sessionids.add(sessionid);
+                versions.add(args.getInt());
+            }
+        }
+
+        int[] versionArray = new int[versions.size()];
+        for (int i = 0; i < versionArray.length; i++) {
+            versionArray[i] = versions.get(i);
+        }
+        byte[] status = RepairService.syncLeaves(sender, leaves,
+                sessionids.toArray(new String[sessionids.size()]), versionArray);
+        reply.putShort(NetUtils.REPLY);
+        SessionCodec.putVarint(reply, status.length);
+        reply.put(status);
+    }
+
+    /** Laid out as SESSION_WRITE_BATCH, but a copy never replaces a newer one, and each status
+     *  byte is one of RepairService's.
+     */
+    private void sessionRepair(int sender, ByteBuffer args, ByteBuffer reply) {
+        int count = SessionCodec.getVarint(args);
+        if (count < 0 || count > args.remaining()) {
+            reply.putShort(NetUtils.NO_REPLY);
+            return;
+        }
+        reply.putShort(NetUtils.REPLY);
+        SessionCodec.putVarint(reply, count);
+
+        for (int i = 0; i < count; i++) {
+            int len = SessionCodec.getVarint(args);
+            if (len < 0 || len > args.remaining()) {
+                // the rest of the batch is unreadable
+                for (; i < count; i++) {
+                    reply.put(RepairService.NEEDED);
+                }
+                return;
+            }
+            int end = args.position() + len;
+            SessionState ss = SessionCodec.decode(args);
+            args.position(end);
+            if (null == ss) {
+                reply.put(RepairService.NEEDED);
+                continue;
+            }
+            SessionState current = SessionState.addSessionIfNewer(ss, Utils.remoteSessionExpTime);
+            if (null != current && current.getVersion() > ss.getVersion()) {
+                reply.put(RepairService.NOT_YOURS);
+            } else {
+                RepairService.noteHeld(ss.getSessionId(), sender);
+                reply.put(null == current ? RepairService.STORED : RepairService.IN_SYNC);
+            }
         }
-        retBuf.put(serverip);
-        return retBuf.array();
     }
 
-    private byte[] getView() {
-        byte[] view = View.getString().getBytes();
-        ByteBuffer retBuf = ByteBuffer.allocate(2 + view.length);
-        retBuf.putShort(NetUtils.REPLY);
-        retBuf.put(view);
-        return retBuf.array();
+    private void getView(ByteBuffer reply) {
+        reply.putShort(NetUtils.REPLY);
+        reply.put(View.toBytes());
     }
 }
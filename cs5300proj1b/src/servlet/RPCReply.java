@@ -0,0 +1,27 @@
+package servlet;
+
+import java.net.InetAddress;
+
+/** A successful (REPLY) answer to an RPC request.
+ */
+public class RPCReply {
+    private final InetAddress addr;
+    private final byte[] args;
+
+    public RPCReply(InetAddress addr, byte[] args) {
+        this.addr = addr;
+        this.args = args;
+    }
+
+    /** @return The address of the server that replied
+     */
+    public InetAddress getAddr() {
+        return addr;
+    }
+
+    /** @return The arguments of the reply (everything after the op code)
+     */
+    public byte[] getArgs() {
+        return args;
+    }
+}
@@ -0,0 +1,141 @@
+package servlet;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/** The server end of our RPC protocol: a set of RPCListener shards all serving one port.
+ *
+ *  Where the JVM and OS support SO_REUSEPORT (Java 9+ on Linux) every shard gets its own
+ *  socket bound to the port and the kernel spreads incoming packets across them. Otherwise
+ *  the shards share a single channel, each blocking in receive() and then handling its
+ *  packet in parallel with the others.
+ */
+public class RPCServer {
+    private final List<DatagramChannel> channels = new ArrayList<DatagramChannel>();
+    private final List<RPCListener> shards = new ArrayList<RPCListener>();
+    private final boolean reusePort;
+    // Requests arrive in fragments on whichever shard the kernel picks, so this is shared
+    private final Reassembler reassembler = new Reassembler(2 * NetUtils.RPC_TIMEOUT, 1024,
+            Fragmenter.fragmentCount(NetUtils.MAX_PAYLOAD_LEN + 64, NetUtils.MAX_PACKET_LEN));
+
+    /** Bind the server. Call start() to begin serving.
+     *
+     * @param bindAddr The local address to bind to (null for all addresses)
+     * @param port The port to serve on
+     * @param shardCount The number of listener threads
+     */
+    public RPCServer(InetAddress bindAddr, int port, int shardCount) throws IOException {
+        InetSocketAddress local = new InetSocketAddress(bindAddr, port);
+        SocketOption<Boolean> soReusePort = reusePortOption();
+        int count = Math.max(1, shardCount);
+
+        boolean reuse = false;
+        boolean bound = false;
+        try {
+            // every channel goes in the list as soon as it is open, so a failed bind (e.g. the
+            // port is taken) closes them all again rather than leaving the port held
+            if (null != soReusePort && count > 1) {
+                DatagramChannel first = DatagramChannel.open();
+                channels.add(first);
+                if (first.supportedOptions().contains(soReusePort)) {
+                    first.setOption(soReusePort, true);
+                    first.bind(local);
+                    for (int i = 1; i < count; i++) {
+                        DatagramChannel ch = DatagramChannel.open();
+                        channels.add(ch);
+                        ch.setOption(soReusePort, true);
+                        ch.bind(local);
+                    }
+                    reuse = true;
+                } else {
+                    channels.remove(first);
+                    first.close();
+                }
+            }
+            if (!reuse) {
+                DatagramChannel shared = DatagramChannel.open();
+                channels.add(shared);
+                shared.bind(local);
+            }
+            bound = true;
+        } finally {
+            if (!bound) {
+                close();
+            }
+        }
+        this.reusePort = reuse;
+
+        for (int i = 0; i < count; i++) {
+            shards.add(new RPCListener(channels.get(reuse ? i : 0), i, reassembler));
+        }
+    }
+
+    /** Start every shard.
+     */
+    public void start() {
+        for (RPCListener shard : shards) {
+            shard.setDaemon(true);
+            shard.start();
+        }
+    }
+
+    /** @return True if the shards have their own SO_REUSEPORT sockets
+     */
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /** @return The number of listener threads
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /** @return True if at least one shard is still serving
+     */
+    public boolean isAlive() {
+        for (RPCListener shard : shards) {
+            if (shard.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return The reassembler for fragmented requests (e.g. to read its counters)
+     */
+    public Reassembler getReassembler() {
+        return reassembler;
+    }
+
+    /** Close every socket, which makes the shards exit.
+     */
+    public void close() {
+        for (DatagramChannel ch : channels) {
+            try {
+                ch.close();
+            } catch (IOException ioe) {
+                System.out.println(ioe.getMessage());
+            }
+        }
+    }
+
+    /** Look up StandardSocketOptions.SO_REUSEPORT, which only exists on Java 9 and later.
+     *
+     * @return The option, or null if this JVM does not have it
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try {
+            return (SocketOption<Boolean>) Class.forName("java.net.StandardSocketOptions")
+                .getField("SO_REUSEPORT").get(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package servlet;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Puts FRAGMENT packets (see Fragmenter) back together.
+ *
+ *  Partial payloads are keyed by sender and call id. Anything that has not completed within
+ *  the timeout is thrown away by sweep(), and the number of partial payloads held at once is
+ *  capped so a misbehaving sender cannot fill the heap.
+ */
+public class Reassembler {
+    private static final long SWEEP_INTERVAL = 1000; // msecs between automatic sweeps
+
+    private static class Key {
+        final InetSocketAddress from;
+        final int cid;
+
+        Key(InetSocketAddress from, int cid) {
+            this.from = from;
+            this.cid = cid;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return cid == k.cid && from.equals(k.from);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * from.hashCode() + cid;
+        }
+    }
+
+    private static class Partial {
+        final long started;
+        final byte[][] parts;
+        int received = 0;
+        int bytes = 0;
+
+        Partial(long started, int count) {
+            this.started = started;
+            this.parts = new byte[count][];
+        }
+    }
+
+    private final ConcurrentHashMap<Key, Partial> partials = new ConcurrentHashMap<Key, Partial>();
+    private final long timeout;
+    private final int maxPartials;
+    private final int maxFragments;
+    private volatile long lastSweep = ExpiryWheel.now();
+    private final AtomicLong expired = new AtomicLong();
+
+    /** @param timeout How long (msecs) to wait for the rest of a payload
+     *  @param maxPartials How many payloads may be in progress at once
+     *  @param maxFragments The most fragments one payload may have
+     */
+    public Reassembler(long timeout, int maxPartials, int maxFragments) {
+        this.timeout = timeout;
+        this.maxPartials = maxPartials;
+        this.maxFragments = maxFragments;
+    }
+
+    /** Add one fragment.
+     *
+     * @param from The sender
+     * @param cid The call id from the fragment header
+     * @param index The fragment index
+     * @param count The total number of fragments
+     * @param chunk The fragment's slice of the payload (from position to limit)
+     * @return The whole payload if this fragment completed it, null otherwise
+     */
+    public byte[] offer(InetSocketAddress from, int cid, int index, int count, ByteBuffer chunk) {
+        long now = ExpiryWheel.now();
+        if (now - lastSweep > SWEEP_INTERVAL) {
+            sweep(now);
+        }
+        if (count < 1 || count > maxFragments || index < 0 || index >= count) {
+            return null;
+        }
+
+        Key key = new Key(from, cid);
+        Partial partial = partials.get(key);
+        if (null == partial) {
+            if (partials.size() >= maxPartials) {
+                return null;
+            }
+            Partial fresh = new Partial(now, count);
+            partial = partials.putIfAbsent(key, fresh);
+            if (null == partial) {
+                partial = fresh;
+            }
+        }
+
+        synchronized (partial) {
+            if (partial.parts.length != count || null != partial.parts[index]) {
+                // inconsistent or duplicate fragment
+                return null;
+            }
+            byte[] part = new byte[chunk.remaining()];
+            chunk.get(part);
+            partial.parts[index] = part;
+            partial.bytes += part.length;
+            if (++partial.received < count) {
+                return null;
+            }
+        }
+
+        partials.remove(key, partial);
+        byte[] whole = new byte[partial.bytes];
+        int off = 0;
+        for (byte[] part : partial.parts) {
+            System.arraycopy(part, 0, whole, off, part.length);
+            off += part.length;
+        }
+        return whole;
+    }
+
+    /** Throw away partial payloads that have waited longer than the timeout.
+     *
+     * @param now The current time (ExpiryWheel.now())
+     * @return The number of partial payloads dropped
+     */
+    public int sweep(long now) {
+        lastSweep = now;
+        int dropped = 0;
+        Iterator<Map.Entry<Key, Partial>> it = partials.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue().started > timeout) {
+                it.remove();
+                dropped++;
+            }
+        }
+        expired.addAndGet(dropped);
+        return dropped;
+    }
+
+    /** @return The number of payloads currently being reassembled
+     */
+    public int getPendingCount() {
+        return partials.size();
+    }
+
+    /** @return The number of incomplete payloads dropped so far
+     */
+    public long getExpiredCount() {
+        return expired.get();
+    }
+}
@@ -19,15 +19,15 @@ public class RefreshServlet extends HttpServlet {
     public void doPost(HttpServletRequest request, HttpServletResponse response)
         throws ServletException, IOException {
 
+        // Make sure this instance is up (NodeLifecycle normally did this at deployment)
+        NetUtils.initThreads();
+
         Cookie sessionCookie = null;
         SessionState state = null;
+        SessionCookie parsed = null;
         
         // Title for this servlet
         String title = "RefreshServlet";
-       
-        // start response initialization
-        response.setContentType("text/html");
-        PrintWriter out = response.getWriter();
         
         // retrieve cookies
         Cookie[] cookies = request.getCookies();
@@ -42,29 +42,28 @@ public class RefreshServlet extends HttpServlet {
 
             // Correct cookie not found?
             if(i == cookies.length) {
-                out.println(Utils.genHTML(title, "Session Has Expired", ""));
+                Utils.writeHTML(response, title, "Session Has Expired", "");
                 return;
             }
 
             // retrieve session state
             sessionCookie = cookies[i];
             //state = SessionState.removeSession(Utils.getCookieSessionId(sessionCookie));
-            state = SessionState.readSession(Utils.getCookieSessionId(sessionCookie),
-                                            Utils.getCookieVersion(sessionCookie),
-                                            Utils.getCookieIps(sessionCookie));
+            parsed = Utils.parseCookie(sessionCookie);
+            state = SessionState.readSession(parsed);
 
             // check that session retrieved is actually in state table
             if(null == state) {
-                out.println(Utils.genHTML(title, "Session Has Expired", ""));
                 sessionCookie.setMaxAge(0);
                 response.addCookie(sessionCookie);
+                Utils.writeHTML(response, title, "Session Has Expired", "");
                 return;
             }
 
             state.incrementVersion();
 
-            // Add session to session table
-            String[] hostips = SessionState.writeSession(state, Utils.getCookieIps(sessionCookie));
+            // Only the version changed, so the backup just needs to be touched
+            int[] hostips = SessionState.touchSession(state, parsed.getReplicas());
 
             // Send user a new cookie
             sessionCookie = new Cookie( Utils.cookieName, 
@@ -74,10 +73,10 @@ public class RefreshServlet extends HttpServlet {
 
             String extra = Utils.entryForm + "\n" 
                 + "<p>Session Cookie: " + Utils.cookieString(sessionCookie) + "</p>";
-            out.println(Utils.genHTML(title, state.getMessage(), extra));
+            Utils.writeHTML(response, title, state.getMessage(), extra);
  
         } else {
-            out.println(Utils.genHTML(title, "Session Has Expired", ""));
+            Utils.writeHTML(response, title, "Session Has Expired", "");
         }
     }
 }
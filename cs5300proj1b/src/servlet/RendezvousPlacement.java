@@ -0,0 +1,76 @@
+package servlet;
+
+import java.net.InetAddress;
+
+/** Rendezvous (highest random weight) placement.
+ *
+ *  Each server gets a pseudo-random score for each key, and servers are preferred in order
+ *  of score. A key only moves when the server it was on leaves, or when a newcomer outscores
+ *  it, so a change to an N-server membership moves about 1/N of the keys, and keys spread
+ *  evenly because every server is equally likely to win.
+ */
+public class RendezvousPlacement implements PlacementStrategy {
+
+    public InetAddress[] rank(String key, InetAddress[] members) {
+        long keyHash = hashKey(key);
+        int n = members.length;
+        InetAddress[] ranked = new InetAddress[n];
+        long[] scores = new long[n];
+
+        // insertion sort, highest score first; memberships are tens of servers
+        for (int i = 0; i < n; i++) {
+            long s = score(keyHash, SessionCodec.ipToInt(members[i]));
+            int j = i;
+            while (j > 0 && (scores[j - 1] < s
+                    || (scores[j - 1] == s && lessThan(ranked[j - 1], members[i])))) {
+                scores[j] = scores[j - 1];
+                ranked[j] = ranked[j - 1];
+                j--;
+            }
+            scores[j] = s;
+            ranked[j] = members[i];
+        }
+        return ranked;
+    }
+
+    /** Hash a key to 64 bits (FNV-1a over its chars, then mixed).
+     *
+     * @param key The key
+     * @return The hash
+     */
+    public static long hashKey(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /** The weight of one server for one key.
+     *
+     * @param keyHash The key's hashKey()
+     * @param ip The server's IPv4 address as an int
+     * @return The score; higher is more preferred
+     */
+    public static long score(long keyHash, int ip) {
+        return mix(keyHash ^ (ip * 0x9e3779b97f4a7c15L));
+    }
+
+    /** The MurmurHash3 64-bit finalizer.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /** Tie-break on address so equal scores still give one order.
+     */
+    private static boolean lessThan(InetAddress a, InetAddress b) {
+        return SessionCodec.ipToInt(a) < SessionCodec.ipToInt(b);
+    }
+}
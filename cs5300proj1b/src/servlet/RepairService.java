@@ -0,0 +1,611 @@
+package servlet;
+
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Puts sessions back at N copies (see NetUtils.REPLICATION_N) when a server holding some of
+ *  them goes away, instead of leaving them short until the user's next request.
+ *
+ *  Every instance remembers which backups each session it wrote went to (the sessions it
+ *  owns), and which server sent it each copy it holds for someone else, until another server
+ *  reads the session to take it over. When Membership declares a server dead:
+ *    - sessions we own that were backed up there get a new backup, the next server in the
+ *      placement order for the session, and
+ *    - copies we held for it are adopted: we own them from now on and give them backups.
+ *  The copies go out from a background thread in SESSION_REPAIR batches, at most repair.rate
+ *  sessions a second (default 500), so losing a server does not flood the others. A repair
+ *  never replaces a newer copy.
+ *
+ *  Every repair.digest.secs (default 30, 0 to turn off) we also reconcile with every live
+ *  member (the backups of our sessions are placed over all of them, not just our View).
+ *  Sessions hash into BUCKETS buckets, and a bucket's digest is the sum of a hash of every
+ *  (session id, version) in it, so the digest of a coarser bucket is the sum of its parts:
+ *    1. SESSION_DIGEST with one bucket (the root); if it matches we are done,
+ *    2. SESSION_DIGEST with all BUCKETS leaves; the backup answers with the ones that differ,
+ *    3. SESSION_SYNC with the (session id, version) lists of the differing leaves, several
+ *       leaves to a request; the backup answers which sessions it is missing or holds at an
+ *       older version, and which it holds a newer copy of (we stop counting those as ours),
+ *    4. the missing ones are sent through the same rate limit as above.
+ *  Only the leaves that differ are ever listed or sent.
+ */
+public class RepairService extends Thread {
+    public static final int BUCKETS = 256; // leaves of the digest tree (a power of two)
+
+    // per-session status in SESSION_SYNC and SESSION_REPAIR replies
+    public static final byte IN_SYNC = 0;   // the backup has this version, from the sender
+    public static final byte NEEDED = 1;    // the backup is missing it or has an older version
+    public static final byte NOT_YOURS = 2; // the backup has a newer version from someone else
+    public static final byte STORED = 3;    // the backup stored the copy sent
+
+    private static final int RATE = Math.max(1, Config.getInt("repair.rate", 500));
+    private static final long DIGEST_INTERVAL = 1000L * Config.getInt("repair.digest.secs", 30);
+    private static final long TICK = 100; // msecs between batches
+    private static final int BATCH_LEN = 1200; // most session bytes per SESSION_REPAIR
+    private static final int SYNC_LEN = 16 * 1024; // bytes of listings per SESSION_SYNC
+    private static final int MAX_ENTRY_LEN = 1 + 5 + 5 + 4 + 4; // a (session id, version)
+    private static final int[] NO_BACKUPS = new int[0];
+
+    // sessions we wrote -> the backups (IPv4 addresses as ints) they were written to
+    private static final ConcurrentHashMap<String, int[]> owned =
+        new ConcurrentHashMap<String, int[]>();
+    // copies we hold for other servers -> the server (IPv4 address as int) that sent them
+    private static final ConcurrentHashMap<String, Integer> heldFor =
+        new ConcurrentHashMap<String, Integer>();
+    private static final ConcurrentLinkedQueue<Push> pushes = new ConcurrentLinkedQueue<Push>();
+    private static final AtomicInteger queued = new AtomicInteger();
+    private static final ConcurrentLinkedQueue<InetAddress> removed =
+        new ConcurrentLinkedQueue<InetAddress>();
+
+    private static RepairService service = null;
+    private volatile boolean running = true;
+
+    /** A copy of a session waiting to be sent to a backup.
+     */
+    private static class Push {
+        final String sessionid;
+        final InetAddress to;
+
+        Push(String sessionid, InetAddress to) {
+            this.sessionid = sessionid;
+            this.to = to;
+        }
+    }
+
+    private RepairService() {
+        setDaemon(true);
+        setName("RepairService");
+    }
+
+    /** Start the repair thread if it is not already running.
+     */
+    public static synchronized void startRepairs() {
+        if (null == service) {
+            service = new RepairService();
+            service.start();
+        }
+    }
+
+    /** Stop the repair thread (e.g. when the instance is shut down).
+     */
+    public static synchronized void stopRepairs() {
+        if (null != service) {
+            service.running = false;
+            service.interrupt();
+            service = null;
+        }
+    }
+
+    /** Record that we wrote a session, and where its copies went.
+     *
+     * @param sessionid The session id
+     * @param hosts The servers holding it (IPv4 addresses as ints, as in the cookie); our own
+     *          address and the null address are left out
+     */
+    public static void noteOwned(String sessionid, int[] hosts) {
+        int self = SessionCodec.ipToInt(NetUtils.getIP());
+        int[] backups = new int[hosts.length];
+        int n = 0;
+        for (int ip : hosts) {
+            if (self != ip && 0 != ip && !contains(backups, n, ip)) {
+                backups[n++] = ip;
+            }
+        }
+        heldFor.remove(sessionid);
+        owned.put(sessionid, n == backups.length ? backups : copyOf(backups, n));
+    }
+
+    /** Record that another server wrote us a copy of a session. It owns the session now.
+     *
+     * @param sessionid The session id
+     * @param owner The server that sent the copy (IPv4 address as int)
+     */
+    public static void noteHeld(String sessionid, int owner) {
+        owned.remove(sessionid);
+        heldFor.put(sessionid, owner);
+    }
+
+    /** Forget a session that has expired, or that another server has read to take it over.
+     *
+     * @param sessionid The session id
+     */
+    public static void forget(String sessionid) {
+        owned.remove(sessionid);
+        heldFor.remove(sessionid);
+    }
+
+    /** Called when a server is declared dead; its sessions are re-homed on the repair thread.
+     *
+     * @param addr The server
+     */
+    public static void peerRemoved(InetAddress addr) {
+        removed.add(addr);
+    }
+
+    /** @return The number of session copies waiting to be sent
+     */
+    public static int getQueued() {
+        return queued.get();
+    }
+
+    @Override
+    public void run() {
+        long nextDigest = ExpiryWheel.now() + DIGEST_INTERVAL;
+        int budget = Math.max(1, (int) (RATE * TICK / 1000));
+        while (running) {
+            try {
+                Thread.sleep(TICK);
+            } catch (InterruptedException ie) {
+                continue; // stopRepairs() clears running
+            }
+            try {
+                InetAddress gone;
+                while (null != (gone = removed.poll())) {
+                    rehome(gone);
+                }
+                sendPushes(budget);
+
+                long now = ExpiryWheel.now();
+                if (DIGEST_INTERVAL > 0 && now >= nextDigest) {
+                    reconcileAll();
+                    nextDigest = now + DIGEST_INTERVAL;
+                }
+            } catch (Exception e) {
+                System.out.println("Exception in RepairService: " + e.toString());
+            }
+        }
+    }
+
+    /** Find new backups for every session that had one on a server that is gone, and adopt
+     *  the copies we held for it.
+     */
+    private void rehome(InetAddress gone) {
+        int ip = SessionCodec.ipToInt(gone);
+        int sessions = 0;
+        for (Map.Entry<String, int[]> entry : owned.entrySet()) {
+            int[] backups = entry.getValue();
+            if (contains(backups, backups.length, ip)) {
+                int[] kept = new int[backups.length - 1];
+                int n = 0;
+                for (int backup : backups) {
+                    if (ip != backup && n < kept.length) {
+                        kept[n++] = backup;
+                    }
+                }
+                replicate(entry.getKey(), kept);
+                sessions++;
+            }
+        }
+        for (Map.Entry<String, Integer> entry : heldFor.entrySet()) {
+            if (ip == entry.getValue() && heldFor.remove(entry.getKey(), entry.getValue())) {
+                replicate(entry.getKey(), NO_BACKUPS);
+                sessions++;
+            }
+        }
+        if (sessions > 0) {
+            System.out.println("Repairing " + sessions + " sessions held with " + gone);
+        }
+    }
+
+    /** Top a session we hold up to WRITE_REPLICAS backups, in the placement's order.
+     *
+     * @param sessionid The session
+     * @param kept The backups it still has
+     */
+    private void replicate(String sessionid, int[] kept) {
+        if (null == SessionState.getSession(sessionid)) {
+            owned.remove(sessionid);
+            return;
+        }
+        int[] backups = copyOf(kept, Math.max(kept.length, NetUtils.WRITE_REPLICAS));
+        int n = kept.length;
+        for (InetAddress addr : View.rank(sessionid)) {
+            if (n >= NetUtils.WRITE_REPLICAS) {
+                break;
+            }
+            int ip = SessionCodec.ipToInt(addr);
+            if (!contains(backups, n, ip)) {
+                backups[n++] = ip;
+                push(sessionid, addr);
+            }
+        }
+        owned.put(sessionid, copyOf(backups, n));
+    }
+
+    private static void push(String sessionid, InetAddress to) {
+        pushes.add(new Push(sessionid, to));
+        queued.incrementAndGet();
+    }
+
+    /** Send up to budget queued copies, batched per backup.
+     */
+    private void sendPushes(int budget) {
+        Map<InetAddress, List<SessionState>> batches = new HashMap<InetAddress, List<SessionState>>();
+        int taken = 0;
+        Push push;
+        while (taken < budget && null != (push = pushes.poll())) {
+            queued.decrementAndGet();
+            SessionState session = SessionState.getSession(push.sessionid);
+            if (null == session) {
+                continue; // expired, or being handled right now (which replicates it anyway)
+            }
+            List<SessionState> batch = batches.get(push.to);
+            if (null == batch) {
+                batch = new ArrayList<SessionState>();
+                batches.put(push.to, batch);
+            }
+            batch.add(session);
+            taken++;
+        }
+
+        for (Map.Entry<InetAddress, List<SessionState>> entry : batches.entrySet()) {
+            List<SessionState> batch = new ArrayList<SessionState>();
+            int len = 0;
+            for (SessionState session : entry.getValue()) {
+                int sessionLen = SessionCodec.maxEncodedLength(session);
+                if (!batch.isEmpty() && len + sessionLen > BATCH_LEN) {
+                    sendRepair(entry.getKey(), batch);
+                    batch = new ArrayList<SessionState>();
+                    len = 0;
+                }
+                batch.add(session);
+                len += sessionLen;
+            }
+            sendRepair(entry.getKey(), batch);
+        }
+    }
+
+    /** Send one SESSION_REPAIR batch (laid out as SESSION_WRITE_BATCH) and note the outcome.
+     */
+    private void sendRepair(InetAddress to, List<SessionState> batch) {
+        List<byte[]> encoded = new ArrayList<byte[]>(batch.size());
+        int len = SessionCodec.varintLength(batch.size());
+        for (SessionState session : batch) {
+            byte[] bytes = session.toBytes();
+            encoded.add(bytes);
+            len += SessionCodec.varintLength(bytes.length) + bytes.length;
+        }
+        ByteBuffer args = ByteBuffer.allocate(len);
+        SessionCodec.putVarint(args, batch.size());
+        for (byte[] bytes : encoded) {
+            SessionCodec.putVarint(args, bytes.length);
+            args.put(bytes);
+        }
+
+        List<RPCReply> replies = NetUtils.sendRequest(NetUtils.SESSION_REPAIR, args.array(),
+                new InetAddress[]{to}, 1, 1);
+        if (replies.isEmpty()) {
+            Metrics.REPAIR_FAILED.add(batch.size());
+            return;
+        }
+        try {
+            ByteBuffer reply = ByteBuffer.wrap(replies.get(0).getArgs());
+            int count = Math.min(batch.size(), SessionCodec.getVarint(reply));
+            for (int i = 0; i < count; i++) {
+                byte status = reply.get();
+                if (STORED == status) {
+                    Metrics.REPAIR_STORED.inc();
+                } else if (NOT_YOURS == status) {
+                    owned.remove(batch.get(i).getSessionId());
+                }
+            }
+        } catch (BufferUnderflowException bue) {
+            Metrics.CLIENT_TRUNCATED.inc();
+        }
+    }
+
+    /** What we expect one backup to hold for us: the leaf digests, and the sessions in
+     *  each leaf.
+     */
+    private static class Listing {
+        final long[] leaves = new long[BUCKETS];
+        final Map<Integer, List<SessionState>> byLeaf = new HashMap<Integer, List<SessionState>>();
+
+        void add(int leaf, SessionState session, long hash) {
+            leaves[leaf] += hash;
+            List<SessionState> sessions = byLeaf.get(leaf);
+            if (null == sessions) {
+                sessions = new ArrayList<SessionState>();
+                byLeaf.put(leaf, sessions);
+            }
+            sessions.add(session);
+        }
+
+        List<SessionState> get(int leaf) {
+            List<SessionState> sessions = byLeaf.get(leaf);
+            return null == sessions ? new ArrayList<SessionState>() : sessions;
+        }
+    }
+
+    /** Reconcile with every live member. The sessions we own are sorted into a listing per
+     *  backup in one pass; a member with no listing still gets asked, so that copies it
+     *  still counts as ours are let go.
+     */
+    private void reconcileAll() {
+        Map<Integer, Listing> listings = new HashMap<Integer, Listing>();
+        for (Map.Entry<String, int[]> entry : owned.entrySet()) {
+            int[] backups = entry.getValue();
+            SessionState session = SessionState.getSession(entry.getKey());
+            if (null == session) {
+                owned.remove(entry.getKey(), backups);
+                continue;
+            }
+            int leaf = leafOf(entry.getKey());
+            long hash = entryHash(entry.getKey(), session.getVersion());
+            for (int ip : backups) {
+                Listing listing = listings.get(ip);
+                if (null == listing) {
+                    listing = new Listing();
+                    listings.put(ip, listing);
+                }
+                listing.add(leaf, session, hash);
+            }
+        }
+        for (InetAddress peer : Membership.getLive()) {
+            Listing listing = listings.get(SessionCodec.ipToInt(peer));
+            reconcile(peer, null == listing ? new Listing() : listing);
+        }
+    }
+
+    /** Compare the sessions we own that should be on a backup with what it holds, and queue
+     *  whatever it is missing.
+     */
+    private void reconcile(InetAddress peer, Listing listing) {
+        long root = 0;
+        for (long leaf : listing.leaves) {
+            root += leaf;
+        }
+        int[] differ = digest(peer, new long[]{root});
+        if (null == differ || 0 == differ.length) {
+            return;
+        }
+        differ = digest(peer, listing.leaves);
+        if (null == differ) {
+            return;
+        }
+        Metrics.REPAIR_BUCKETS.add(differ.length);
+
+        // list the differing leaves, as many to a SESSION_SYNC as fit in SYNC_LEN
+        List<Integer> batch = new ArrayList<Integer>();
+        int len = 0;
+        for (int leaf : differ) {
+            if (leaf < 0 || leaf >= BUCKETS) {
+                continue;
+            }
+            int leafLen = 10 + MAX_ENTRY_LEN * listing.get(leaf).size();
+            if (!batch.isEmpty() && len + leafLen > SYNC_LEN) {
+                sync(peer, batch, listing);
+                batch.clear();
+                len = 0;
+            }
+            batch.add(leaf);
+            len += leafLen;
+        }
+        if (!batch.isEmpty()) {
+            sync(peer, batch, listing);
+        }
+    }
+
+    /** Send our digests at one level of the tree.
+     *
+     * @return The buckets whose digests differ, or null if the backup did not answer
+     */
+    private static int[] digest(InetAddress peer, long[] digests) {
+        ByteBuffer args = ByteBuffer.allocate(5 + 8 * digests.length);
+        SessionCodec.putVarint(args, digests.length);
+        for (long d : digests) {
+            args.putLong(d);
+        }
+        byte[] argBytes = new byte[args.position()];
+        System.arraycopy(args.array(), 0, argBytes, 0, argBytes.length);
+
+        List<RPCReply> replies = NetUtils.sendRequest(NetUtils.SESSION_DIGEST, argBytes,
+                new InetAddress[]{peer}, 1, 1);
+        if (replies.isEmpty()) {
+            return null;
+        }
+        try {
+            ByteBuffer reply = ByteBuffer.wrap(replies.get(0).getArgs());
+            int count = SessionCodec.getVarint(reply);
+            if (count < 0 || count > digests.length) {
+                return null;
+            }
+            int[] differ = new int[count];
+            for (int i = 0; i < count; i++) {
+                differ[i] = SessionCodec.getVarint(reply);
+            }
+            return differ;
+        } catch (BufferUnderflowException bue) {
+            Metrics.CLIENT_TRUNCATED.inc();
+            return null;
+        }
+    }
+
+    /** List some differing leaves to the backup and queue the copies it says it needs.
+     *  The request is: varint number of leaves, then per leaf its varint index, a varint
+     *  count and count * (session id, version) as in SESSION_READ.
+     */
+    private void sync(InetAddress peer, List<Integer> leaves, Listing listing) {
+        List<SessionState> listed = new ArrayList<SessionState>();
+        int len = 5;
+        for (int leaf : leaves) {
+            len += 10 + MAX_ENTRY_LEN * listing.get(leaf).size();
+        }
+        ByteBuffer args = ByteBuffer.allocate(len);
+        SessionCodec.putVarint(args, leaves.size());
+        for (int leaf : leaves) {
+            List<SessionState> bucket = listing.get(leaf);
+            SessionCodec.putVarint(args, leaf);
+            SessionCodec.putVarint(args, bucket.size());
+            for (SessionState session : bucket) {
+                args.put(SessionCodec.encodeReadArgs(session.getSessionId(), session.getVersion()));
+                listed.add(session);
+            }
+        }
+        if (args.position() > NetUtils.MAX_PAYLOAD_LEN) {
+            System.out.println("Repair leaf " + leaves.get(0) + " too large to sync: "
+                    + listed.size() + " sessions");
+            return;
+        }
+        byte[] argBytes = new byte[args.position()];
+        System.arraycopy(args.array(), 0, argBytes, 0, argBytes.length);
+
+        List<RPCReply> replies = NetUtils.sendRequest(NetUtils.SESSION_SYNC, argBytes,
+                new InetAddress[]{peer}, 1, 1);
+        if (replies.isEmpty()) {
+            return;
+        }
+        try {
+            ByteBuffer reply = ByteBuffer.wrap(replies.get(0).getArgs());
+            int count = Math.min(listed.size(), SessionCodec.getVarint(reply));
+            for (int i = 0; i < count; i++) {
+                byte status = reply.get();
+                String sessionid = listed.get(i).getSessionId();
+                if (NEEDED == status) {
+                    push(sessionid, peer);
+                } else if (NOT_YOURS == status) {
+                    owned.remove(sessionid);
+                }
+            }
+        } catch (BufferUnderflowException bue) {
+            Metrics.CLIENT_TRUNCATED.inc();
+        }
+    }
+
+    /** The backup's side of SESSION_DIGEST: digest the copies we hold for a server at the
+     *  given number of buckets.
+     *
+     * @param owner The server asking (IPv4 address as int)
+     * @param buckets The number of buckets (a power of two, at most BUCKETS)
+     * @return The digest of each bucket
+     */
+    static long[] heldDigests(int owner, int buckets) {
+        long[] digests = new long[buckets];
+        for (Map.Entry<String, Integer> entry : heldFor.entrySet()) {
+            if (owner != entry.getValue()) {
+                continue;
+            }
+            SessionState session = SessionState.getSession(entry.getKey());
+            if (null == session) {
+                heldFor.remove(entry.getKey(), entry.getValue());
+                continue;
+            }
+            digests[leafOf(entry.getKey()) & (buckets - 1)] +=
+                entryHash(entry.getKey(), session.getVersion());
+        }
+        return digests;
+    }
+
+    /** The backup's side of SESSION_SYNC: compare the listing of some leaves with our
+     *  copies. Copies in those leaves we held for the sender that it no longer lists are no
+     *  longer counted as its.
+     *
+     * @param owner The server asking (IPv4 address as int)
+     * @param leaves Which leaves were listed
+     * @param sessionids The sessions the sender owns in those leaves
+     * @param versions Their versions
+     * @return The status (IN_SYNC, NEEDED or NOT_YOURS) of each
+     */
+    static byte[] syncLeaves(int owner, boolean[] leaves, String[] sessionids, int[] versions) {
+        HashMap<String, Integer> listed = new HashMap<String, Integer>(sessionids.length * 2);
+        for (int i = 0; i < sessionids.length; i++) {
+            listed.put(sessionids[i], versions[i]);
+        }
+        for (Map.Entry<String, Integer> entry : heldFor.entrySet()) {
+            if (owner == entry.getValue() && !listed.containsKey(entry.getKey())
+                    && leaves[leafOf(entry.getKey())]) {
+                heldFor.remove(entry.getKey(), entry.getValue());
+            }
+        }
+
+        byte[] status = new byte[sessionids.length];
+        for (int i = 0; i < sessionids.length; i++) {
+            SessionState session = SessionState.getSession(sessionids[i]);
+            if (null == session || session.getVersion() < versions[i]) {
+                status[i] = NEEDED;
+            } else if (session.getVersion() > versions[i]) {
+                status[i] = NOT_YOURS;
+            } else {
+                noteHeld(sessionids[i], owner);
+                status[i] = IN_SYNC;
+            }
+        }
+        return status;
+    }
+
+    /** @return The leaf a session falls in
+     */
+    static int leafOf(String sessionid) {
+        return (int) (hash(sessionid) >>> 32) & (BUCKETS - 1);
+    }
+
+    /** @return The hash of one (session id, version) that bucket digests are sums of
+     */
+    static long entryHash(String sessionid, int version) {
+        return mix(hash(sessionid) + 0x9E3779B97F4A7C15L * (version + 1));
+    }
+
+    /** 64-bit FNV-1a of a string's chars, then mixed.
+     */
+    private static long hash(String str) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < str.length(); i++) {
+            h ^= str.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        return mix(h);
+    }
+
+    /** The MurmurHash3 finalizer.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static boolean contains(int[] ips, int n, int ip) {
+        for (int i = 0; i < n; i++) {
+            if (ip == ips[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int[] copyOf(int[] ips, int n) {
+        int[] copy = new int[n];
+        System.arraycopy(ips, 0, copy, 0, Math.min(n, ips.length));
+        return copy;
+    }
+}
@@ -13,8 +13,12 @@ public class ReplaceServlet extends HttpServlet {
     public void doPost(HttpServletRequest request, HttpServletResponse response)
         throws ServletException, IOException {
 
+        // Make sure this instance is up (NodeLifecycle normally did this at deployment)
+        NetUtils.initThreads();
+
         Cookie sessionCookie = null;
         SessionState state = null;
+        SessionCookie parsed = null;
         
         // Title for this servlet
         String title = "ReplaceServlet";
@@ -25,10 +29,6 @@ public class ReplaceServlet extends HttpServlet {
         // retrieve cookies
         Cookie[] cookies = request.getCookies();
 
-        // start response initialization
-        response.setContentType("text/html");
-        PrintWriter out = response.getWriter();
-
         // Make sure we have a cookie
         if (null != cookies && 0 < cookies.length) {
             // Search for correct cookie
@@ -39,7 +39,7 @@ public class ReplaceServlet extends HttpServlet {
 
             // correct cookie not found?
             if(i == cookies.length) {
-                out.println(Utils.genHTML(title, "Session Has Expired", ""));
+                Utils.writeHTML(response, title, "Session Has Expired", "");
                 return;
             }
 
@@ -47,15 +47,14 @@ public class ReplaceServlet extends HttpServlet {
 
             // retrieve session state
             //state = SessionState.removeSession(Utils.getCookieSessionId(sessionCookie));
-            state = SessionState.readSession(Utils.getCookieSessionId(sessionCookie),
-                                            Utils.getCookieVersion(sessionCookie),
-                                            Utils.getCookieIps(sessionCookie));
+            parsed = Utils.parseCookie(sessionCookie);
+            state = SessionState.readSession(parsed);
 
             // check that session retrieved is actually in state table
             if(null == state) {
-                out.println(Utils.genHTML(title, "Session Has Expired", ""));
                 sessionCookie.setMaxAge(0);
                 response.addCookie(sessionCookie);
+                Utils.writeHTML(response, title, "Session Has Expired", "");
                 return;
             }
 
@@ -64,7 +63,7 @@ public class ReplaceServlet extends HttpServlet {
             state.setMessage(msg);
 
             // Add session to session table
-            String[] hostips = SessionState.writeSession(state, Utils.getCookieIps(sessionCookie));
+            int[] hostips = SessionState.writeSession(state, parsed.getReplicas());
 
             // update cookie
             String newCookieVal = 
@@ -75,9 +74,9 @@ public class ReplaceServlet extends HttpServlet {
 
             String extra = Utils.entryForm + "\n" 
                 + "<p>Session Cookie: " + Utils.cookieString(sessionCookie) + "</p>";
-            out.println(Utils.genHTML(title, state.getMessage(), extra));
+            Utils.writeHTML(response, title, state.getMessage(), extra);
         } else {
-            out.println(Utils.genHTML(title, "Session Has Expired", ""));
+            Utils.writeHTML(response, title, "Session Has Expired", "");
         }
     }
 }
@@ -0,0 +1,363 @@
+package servlet;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/** Binary wire format for sessions and the RPC arguments that carry them.
+ *
+ *  A session is encoded as:
+ *  <pre>
+ *  byte    format version (FORMAT_VERSION)
+ *  varint  epoch of the session id (format 2 only)
+ *  varint  session number
+ *  4 bytes IPv4 address of the server that created the session
+ *  int     session version
+ *  varint  length of the message in bytes
+ *  bytes   message, UTF-8
+ *  </pre>
+ *  Format 1, which has no epoch, is still read (as epoch 0). Everything is big-endian, and
+ *  encoding/decoding work directly on ByteBuffers so callers can reuse their buffers.
+ *
+ *  Session ids are (epoch, session number, server IPv4 address). Their string form is
+ *  "epoch.number/ip", or "number/ip" for epoch 0 (ids from before epochs existed).
+ */
+public final class SessionCodec {
+    public static final byte FORMAT_VERSION = 2;
+    private static final byte FORMAT_NO_EPOCH = 1;
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // fixed part of an encoded session: format + 2 max varints + ip + version + max varint
+    private static final int MAX_FIXED_LEN = 1 + 5 + 5 + 4 + 4 + 5;
+
+    /** An address and its dotted-quad form, for intToIp()'s cache.
+     */
+    private static final class IpName {
+        final int ip;
+        final String name;
+
+        IpName(int ip, String name) {
+            this.ip = ip;
+            this.name = name;
+        }
+    }
+
+    private static volatile IpName lastIp = new IpName(0, "0.0.0.0");
+
+    private SessionCodec() {
+    }
+
+    /** Encode a session into a freshly allocated byte[].
+     *
+     * @param session The session to encode
+     * @return The encoded session
+     */
+    public static byte[] encode(SessionState session) {
+        byte[] msg = session.getMessage().getBytes(UTF8);
+        byte[] bytes = new byte[1 + varintLength(session.getEpoch())
+            + varintLength(session.getSessionNo()) + 4 + 4
+            + varintLength(msg.length) + msg.length];
+        encode(session, msg, ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    /** Encode a session at the buffer's current position.
+     *
+     * @param session The session to encode
+     * @param buff The buffer to write to (must have at least maxEncodedLength() remaining)
+     */
+    public static void encode(SessionState session, ByteBuffer buff) {
+        encode(session, session.getMessage().getBytes(UTF8), buff);
+    }
+
+    private static void encode(SessionState session, byte[] msg, ByteBuffer buff) {
+        buff.put(FORMAT_VERSION);
+        putVarint(buff, session.getEpoch());
+        putVarint(buff, session.getSessionNo());
+        buff.putInt(session.getServerIp());
+        buff.putInt(session.getVersion());
+        putVarint(buff, msg.length);
+        buff.put(msg);
+    }
+
+    /** Decode a session from the buffer's current position.
+     *
+     * @param buff The buffer to read from
+     * @return The decoded session, or null if the buffer does not hold a valid session
+     */
+    public static SessionState decode(ByteBuffer buff) {
+        try {
+            byte format = buff.get();
+            if (FORMAT_VERSION != format && FORMAT_NO_EPOCH != format) {
+                return null;
+            }
+            int epoch = FORMAT_VERSION == format ? getVarint(buff) : 0;
+            int sessionNo = getVarint(buff);
+            int serverip = buff.getInt();
+            int version = buff.getInt();
+            int len = getVarint(buff);
+            if (len < 0 || len > buff.remaining()) {
+                return null;
+            }
+            String msg;
+            if (buff.hasArray()) {
+                msg = new String(buff.array(), buff.arrayOffset() + buff.position(), len, UTF8);
+                buff.position(buff.position() + len);
+            } else {
+                byte[] bytes = new byte[len];
+                buff.get(bytes);
+                msg = new String(bytes, UTF8);
+            }
+            return new SessionState(epoch, sessionNo, serverip, version, msg);
+        } catch (BufferUnderflowException bue) {
+            return null;
+        }
+    }
+
+    /** @return An upper bound on the encoded size of the given session
+     */
+    public static int maxEncodedLength(SessionState session) {
+        // UTF-8 never needs more than 3 bytes per UTF-16 char
+        return MAX_FIXED_LEN + 3 * session.getMessage().length();
+    }
+
+    /** Encode the arguments of a SESSION_READ request (session id and version).
+     *
+     * @param sessionid The session id (as produced by SessionState.getSessionId())
+     * @param version The version being requested
+     * @return The encoded arguments
+     */
+    public static byte[] encodeReadArgs(String sessionid, int version) {
+        ByteBuffer buff = ByteBuffer.allocate(1 + 5 + 5 + 4 + 4);
+        buff.put(FORMAT_VERSION);
+        putVarint(buff, epochOf(sessionid));
+        putVarint(buff, sessionNoOf(sessionid));
+        buff.putInt(serverOf(sessionid));
+        buff.putInt(version);
+        byte[] bytes = new byte[buff.position()];
+        System.arraycopy(buff.array(), 0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+
+    /** Encode the arguments of a SESSION_TOUCH request (session id, old and new version).
+     *
+     * @param sessionid The session id (as produced by SessionState.getSessionId())
+     * @param oldVersion The version the backup's copy should have
+     * @param newVersion The version to move it to
+     * @return The encoded arguments
+     */
+    public static byte[] encodeTouchArgs(String sessionid, int oldVersion, int newVersion) {
+        byte[] readArgs = encodeReadArgs(sessionid, oldVersion);
+        byte[] bytes = new byte[readArgs.length + 4];
+        ByteBuffer.wrap(bytes).put(readArgs).putInt(newVersion);
+        return bytes;
+    }
+
+
+    /** Read the session id at the start of SESSION_READ or SESSION_TOUCH arguments (as written
+     *  by encodeReadArgs(), in either format).
+     *
+     * @param args The arguments, positioned at their start
+     * @return The session id, or null if the format is not one we know
+     */
+    public static String decodeSessionId(ByteBuffer args) {
+        byte format = args.get();
+        if (FORMAT_VERSION != format && FORMAT_NO_EPOCH != format) {
+            return null;
+        }
+        int epoch = FORMAT_VERSION == format ? getVarint(args) : 0;
+        int sessionNo = getVarint(args);
+        return formatSessionId(epoch, sessionNo, args.getInt());
+    }
+
+
+    /**************************
+     *
+     * Session ids
+     *
+     **************************/
+
+    /** Build the string form of a session id.
+     *
+     * @param epoch The epoch (0 for the old "number/ip" form)
+     * @param sessionNo The session number
+     * @param serverip The IPv4 address of the server that created the session
+     * @return "epoch.number/ip", or "number/ip" for epoch 0
+     */
+    public static String formatSessionId(int epoch, int sessionNo, int serverip) {
+        StringBuilder sb = new StringBuilder(32);
+        if (0 != epoch) {
+            sb.append(epoch).append('.');
+        }
+        return sb.append(sessionNo).append('/').append(intToIp(serverip)).toString();
+    }
+
+    /** @return The epoch of a session id string (0 if it has none)
+     */
+    public static int epochOf(String sessionid) {
+        int dot = epochDot(sessionid);
+        return dot < 0 ? 0 : parseInt(sessionid, 0, dot);
+    }
+
+    /** @return The session number of a session id string
+     */
+    public static int sessionNoOf(String sessionid) {
+        return parseInt(sessionid, epochDot(sessionid) + 1, slashOf(sessionid));
+    }
+
+    /** @return The server address of a session id string, as an int
+     */
+    public static int serverOf(String sessionid) {
+        return ipToInt(sessionid, slashOf(sessionid) + 1, sessionid.length());
+    }
+
+    private static int slashOf(String sessionid) {
+        int slash = sessionid.indexOf('/');
+        if (slash < 0) {
+            throw new NumberFormatException(sessionid);
+        }
+        return slash;
+    }
+
+    /** @return The position of the '.' ending the epoch, or -1 if there is no epoch
+     */
+    private static int epochDot(String sessionid) {
+        int slash = slashOf(sessionid);
+        int dot = sessionid.indexOf('.');
+        return dot < slash ? dot : -1;
+    }
+
+
+    /**************************
+     *
+     * Primitive helpers
+     *
+     **************************/
+
+    /** Write an unsigned LEB128 varint.
+     */
+    public static void putVarint(ByteBuffer buff, int value) {
+        while ((value & ~0x7F) != 0) {
+            buff.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buff.put((byte) value);
+    }
+
+    /** @return The number of bytes putVarint() uses for the given value
+     */
+    public static int varintLength(int value) {
+        int len = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            len++;
+        }
+        return len;
+    }
+
+    /** Read an unsigned LEB128 varint.
+     */
+    public static int getVarint(ByteBuffer buff) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buff.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new BufferUnderflowException();
+    }
+
+    /** Convert a dotted-quad IPv4 string to an int without going through InetAddress.
+     *
+     * @param ip The address, e.g. "10.0.0.1"
+     * @return The address as a big-endian int (0 if the string is not a valid address)
+     */
+    public static int ipToInt(String ip) {
+        return ipToInt(ip, 0, ip.length());
+    }
+
+    /** Convert the dotted-quad IPv4 address in str[from, to) to an int.
+     */
+    public static int ipToInt(String ip, int from, int to) {
+        int result = 0;
+        int octet = 0;
+        int dots = 0;
+        for (int i = from; i < to; i++) {
+            char c = ip.charAt(i);
+            if (c == '.') {
+                result = (result << 8) | octet;
+                octet = 0;
+                dots++;
+            } else if (c >= '0' && c <= '9') {
+                octet = octet * 10 + (c - '0');
+                if (octet > 255) {
+                    return 0;
+                }
+            } else {
+                return 0;
+            }
+        }
+        if (dots != 3) {
+            return 0;
+        }
+        return (result << 8) | octet;
+    }
+
+    /** Parse the non-negative decimal number in str[from, to) without allocating.
+     */
+    public static int parseInt(String str, int from, int to) {
+        if (from >= to) {
+            throw new NumberFormatException(str);
+        }
+        int result = 0;
+        for (int i = from; i < to; i++) {
+            char c = str.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException(str);
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    /** Convert an int (as produced by ipToInt()) back to a dotted-quad string.
+     *  The last conversion is cached, since runs of sessions usually share a server.
+     */
+    public static String intToIp(int ip) {
+        IpName last = lastIp;
+        if (last.ip == ip) {
+            return last.name;
+        }
+        String name = ((ip >>> 24) & 0xFF) + "." + ((ip >>> 16) & 0xFF) + "."
+            + ((ip >>> 8) & 0xFF) + "." + (ip & 0xFF);
+        lastIp = new IpName(ip, name);
+        return name;
+    }
+
+    /** Convert an IPv4 InetAddress to an int.
+     */
+    public static int ipToInt(InetAddress addr) {
+        byte[] b = addr.getAddress();
+        if (b.length != 4) {
+            return 0;
+        }
+        return ((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16) | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+    }
+
+    /** Convert an int (as produced by ipToInt()) to an InetAddress without a name lookup.
+     */
+    public static InetAddress intToInetAddress(int ip) {
+        try {
+            return InetAddress.getByAddress(new byte[]{
+                (byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip});
+        } catch (UnknownHostException uhe) {
+            // cannot happen for a 4 byte address
+            return null;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package servlet;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/** The parsed value of the session cookie: which session, at what version, and which servers
+ *  hold it. A cookie is scanned once per request instead of re-splitting its value for every
+ *  field, and server addresses are kept as IPv4 ints (0 is the null address, 0.0.0.0).
+ *
+ *  Two value formats are understood:
+ *  <pre>
+ *  legacy:  sessionid_version_ip_ip...     e.g. 1718000000.12/10.0.0.1_3_10.0.0.1_10.0.0.2
+ *  compact: "C" followed by the base64url (unpadded) encoding of
+ *             varint epoch, varint sessionNo, int originIp, varint version, byte count,
+ *             count * int ip
+ *  </pre>
+ *  (Compact values starting with "B" have the same layout without the epoch.)
+ *  Both are always read. Which one is written is set by cookie.format: "legacy" (the default)
+ *  or "compact", which should only be turned on once every server in the cluster reads it.
+ */
+public final class SessionCookie {
+    private static final char COMPACT_PREFIX = 'C'; // legacy values start with a digit
+    private static final char COMPACT_NO_EPOCH_PREFIX = 'B';
+    private static final boolean WRITE_COMPACT =
+        "compact".equals(Config.getString("cookie.format", "legacy"));
+    private static final int MAX_REPLICAS = 255;
+    private static final int[] NO_REPLICAS = new int[0];
+
+    private static final char[] BASE64 =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private static final byte[] BASE64_VALUES = new byte[128];
+    static {
+        for (int i = 0; i < BASE64_VALUES.length; i++) {
+            BASE64_VALUES[i] = -1;
+        }
+        for (int i = 0; i < BASE64.length; i++) {
+            BASE64_VALUES[BASE64[i]] = (byte) i;
+        }
+    }
+
+    private final int epoch;
+    private final int sessionNo;
+    private final int originIp;
+    private final int version;
+    private final int[] replicas;
+    private String sessionId; // the string form of the id, built on demand
+
+    /** @param epoch The epoch of the session id
+     *  @param sessionNo The session number
+     *  @param originIp The server that created the session
+     *  @param version The session version
+     *  @param replicas The servers holding the session; kept, not copied
+     */
+    public SessionCookie(int epoch, int sessionNo, int originIp, int version, int[] replicas) {
+        this.epoch = epoch;
+        this.sessionNo = sessionNo;
+        this.originIp = originIp;
+        this.version = version;
+        this.replicas = replicas;
+    }
+
+    /** @param sessionid The session id, in string form (see SessionCodec)
+     *  @param version The session version
+     *  @param replicas The servers holding the session; kept, not copied
+     */
+    public SessionCookie(String sessionid, int version, int[] replicas) {
+        this.epoch = SessionCodec.epochOf(sessionid);
+        this.sessionNo = SessionCodec.sessionNoOf(sessionid);
+        this.originIp = SessionCodec.serverOf(sessionid);
+        this.version = version;
+        this.replicas = replicas;
+        this.sessionId = sessionid;
+    }
+
+    /** Parse a cookie value in either format.
+     *
+     * @param value The cookie's value
+     * @return The parsed cookie, or null if the value is malformed
+     */
+    public static SessionCookie parse(String value) {
+        if (null == value || value.isEmpty()) {
+            return null;
+        }
+        char first = value.charAt(0);
+        if (COMPACT_PREFIX == first || COMPACT_NO_EPOCH_PREFIX == first) {
+            return parseCompact(value, COMPACT_PREFIX == first);
+        }
+        return parseLegacy(value);
+    }
+
+    private static SessionCookie parseLegacy(String value) {
+        int len = value.length();
+        int slash = value.indexOf('/');
+        int sep1 = value.indexOf('_', slash + 1);
+        if (slash <= 0 || sep1 < 0) {
+            return null;
+        }
+        int sep2 = value.indexOf('_', sep1 + 1);
+        if (sep2 < 0) {
+            sep2 = len;
+        }
+
+        int count = 0;
+        for (int i = sep2; i < len; i++) {
+            if ('_' == value.charAt(i)) {
+                count++;
+            }
+        }
+        int[] replicas = 0 == count ? NO_REPLICAS : new int[count];
+
+        try {
+            int dot = value.lastIndexOf('.', slash);
+            int epoch = dot < 0 ? 0 : SessionCodec.parseInt(value, 0, dot);
+            int sessionNo = SessionCodec.parseInt(value, dot + 1, slash);
+            int originIp = SessionCodec.ipToInt(value, slash + 1, sep1);
+            int version = SessionCodec.parseInt(value, sep1 + 1, sep2);
+            int start = sep2 + 1;
+            for (int r = 0; r < count; r++) {
+                int end = value.indexOf('_', start);
+                if (end < 0) {
+                    end = len;
+                }
+                replicas[r] = SessionCodec.ipToInt(value, start, end);
+                start = end + 1;
+            }
+            SessionCookie cookie = new SessionCookie(epoch, sessionNo, originIp, version, replicas);
+            cookie.sessionId = value.substring(0, sep1);
+            return cookie;
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+
+    private static SessionCookie parseCompact(String value, boolean hasEpoch) {
+        byte[] bytes = fromBase64(value, 1);
+        if (null == bytes) {
+            return null;
+        }
+        try {
+            ByteBuffer buff = ByteBuffer.wrap(bytes);
+            int epoch = hasEpoch ? SessionCodec.getVarint(buff) : 0;
+            int sessionNo = SessionCodec.getVarint(buff);
+            int originIp = buff.getInt();
+            int version = SessionCodec.getVarint(buff);
+            int count = buff.get() & 0xFF;
+            int[] replicas = 0 == count ? NO_REPLICAS : new int[count];
+            for (int r = 0; r < count; r++) {
+                replicas[r] = buff.getInt();
+            }
+            return new SessionCookie(epoch, sessionNo, originIp, version, replicas);
+        } catch (BufferUnderflowException bue) {
+            return null;
+        }
+    }
+
+    /** Encode the cookie in the format set by cookie.format.
+     *
+     * @return The cookie value
+     */
+    public String encode() {
+        return WRITE_COMPACT ? encodeCompact() : encodeLegacy();
+    }
+
+    /** @return The cookie value in the legacy format
+     */
+    public String encodeLegacy() {
+        StringBuilder sb = new StringBuilder(24 + 16 * replicas.length);
+        sb.append(getSessionId()).append('_').append(version);
+        for (int ip : replicas) {
+            sb.append('_').append(SessionCodec.intToIp(ip));
+        }
+        return sb.toString();
+    }
+
+    /** @return The cookie value in the compact format
+     */
+    public String encodeCompact() {
+        int count = Math.min(MAX_REPLICAS, replicas.length);
+        ByteBuffer buff = ByteBuffer.allocate(SessionCodec.varintLength(epoch)
+                + SessionCodec.varintLength(sessionNo) + 4
+                + SessionCodec.varintLength(version) + 1 + 4 * count);
+        SessionCodec.putVarint(buff, epoch);
+        SessionCodec.putVarint(buff, sessionNo);
+        buff.putInt(originIp);
+        SessionCodec.putVarint(buff, version);
+        buff.put((byte) count);
+        for (int r = 0; r < count; r++) {
+            buff.putInt(replicas[r]);
+        }
+        return toBase64(buff.array());
+    }
+
+    /** @return The session id, in string form (see SessionCodec)
+     */
+    public String getSessionId() {
+        String id = sessionId;
+        if (null == id) {
+            id = SessionCodec.formatSessionId(epoch, sessionNo, originIp);
+            sessionId = id;
+        }
+        return id;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public int getSessionNo() {
+        return sessionNo;
+    }
+
+    public int getOriginIp() {
+        return originIp;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /** @return The servers holding the session, as ints; callers must not modify the array
+     */
+    public int[] getReplicas() {
+        return replicas;
+    }
+
+    /** @return The servers holding the session, as dotted-quad strings
+     */
+    public String[] getReplicaIps() {
+        String[] ips = new String[replicas.length];
+        for (int r = 0; r < replicas.length; r++) {
+            ips[r] = SessionCodec.intToIp(replicas[r]);
+        }
+        return ips;
+    }
+
+    /** @return A copy of this cookie at another version
+     */
+    public SessionCookie withVersion(int newVersion) {
+        SessionCookie cookie = new SessionCookie(epoch, sessionNo, originIp, newVersion, replicas);
+        cookie.sessionId = sessionId;
+        return cookie;
+    }
+
+    /** Convert dotted-quad strings (as in the legacy format) to ints.
+     *
+     * @param ips The addresses
+     * @return The addresses as ints (0 for anything that is not an IPv4 address)
+     */
+    public static int[] toInts(String[] ips) {
+        int[] ints = new int[ips.length];
+        for (int i = 0; i < ips.length; i++) {
+            ints[i] = SessionCodec.ipToInt(ips[i]);
+        }
+        return ints;
+    }
+
+    /** Unpadded base64url.
+     */
+    private static String toBase64(byte[] bytes) {
+        char[] out = new char[1 + (bytes.length * 4 + 2) / 3];
+        out[0] = COMPACT_PREFIX;
+        int o = 1;
+        int i = 0;
+        for (; i + 2 < bytes.length; i += 3) {
+            int bits = ((bytes[i] & 0xFF) << 16) | ((bytes[i + 1] & 0xFF) << 8) | (bytes[i + 2] & 0xFF);
+            out[o++] = BASE64[bits >>> 18];
+            out[o++] = BASE64[(bits >>> 12) & 0x3F];
+            out[o++] = BASE64[(bits >>> 6) & 0x3F];
+            out[o++] = BASE64[bits & 0x3F];
+        }
+        if (i < bytes.length) {
+            int bits = (bytes[i] & 0xFF) << 16;
+            if (i + 1 < bytes.length) {
+                bits |= (bytes[i + 1] & 0xFF) << 8;
+            }
+            out[o++] = BASE64[bits >>> 18];
+            out[o++] = BASE64[(bits >>> 12) & 0x3F];
+            if (i + 1 < bytes.length) {
+                out[o++] = BASE64[(bits >>> 6) & 0x3F];
+            }
+        }
+        return new String(out, 0, o);
+    }
+
+    /** Decode unpadded base64url from str[from, end).
+     *
+     * @return The bytes, or null if str is not valid base64url
+     */
+    private static byte[] fromBase64(String str, int from) {
+        int chars = str.length() - from;
+        if (1 == chars % 4) {
+            return null;
+        }
+        byte[] bytes = new byte[chars * 3 / 4];
+        int bits = 0;
+        int nbits = 0;
+        int o = 0;
+        for (int i = from; i < str.length(); i++) {
+            char c = str.charAt(i);
+            int v = c < 128 ? BASE64_VALUES[c] : -1;
+            if (v < 0) {
+                return null;
+            }
+            bits = (bits << 6) | v;
+            nbits += 6;
+            if (nbits >= 8) {
+                nbits -= 8;
+                bytes[o++] = (byte) (bits >>> nbits);
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,80 @@
+package servlet;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Hands out (epoch, counter) pairs for new session ids without a lock.
+ *
+ *  The epoch is the time this instance booted, in seconds, so a restarted instance never
+ *  hands out a pair an earlier run did, without having to coordinate with anyone. Both
+ *  halves are packed into one AtomicLong, epoch in the high bits and a 31-bit counter in the
+ *  low bits, and each thread takes BLOCK numbers at a time from it, so threads only touch
+ *  the shared counter once every BLOCK sessions. A counter that runs out carries into the
+ *  epoch.
+ *
+ *  The numbers a thread does not use before the instance stops are simply skipped.
+ */
+public class SessionIdGenerator {
+    private static final int BLOCK = 64;
+    private static final int COUNTER_BITS = 31;
+    private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+
+    private final AtomicLong next; // (epoch << COUNTER_BITS) | counter
+    private final ThreadLocal<long[]> blocks = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[]{0, 0}; // next, end
+        }
+    };
+
+    /** A generator whose epoch is the current time.
+     */
+    public SessionIdGenerator() {
+        this((int) (System.currentTimeMillis() / 1000));
+    }
+
+    /** @param epoch The epoch to start at
+     */
+    public SessionIdGenerator(int epoch) {
+        next = new AtomicLong((long) epoch << COUNTER_BITS);
+    }
+
+    /** @return The next id, as packed (epoch, counter); see epochOf() and counterOf()
+     */
+    public long nextId() {
+        long[] block = blocks.get();
+        if (block[0] == block[1]) {
+            long start = next.getAndAdd(BLOCK);
+            block[0] = start;
+            block[1] = start + BLOCK;
+        }
+        return block[0]++;
+    }
+
+    /** Make sure ids handed out from now on are in the given epoch or a later one (e.g. if
+     *  the journal shows an earlier run got there first, after the clock was set back).
+     *  Blocks threads already took are not affected, so call this before serving requests.
+     *
+     * @param epoch The lowest epoch that may be used
+     */
+    public void restoreEpoch(int epoch) {
+        long floor = (long) epoch << COUNTER_BITS;
+        while (true) {
+            long current = next.get();
+            if (current >= floor || next.compareAndSet(current, floor)) {
+                return;
+            }
+        }
+    }
+
+    /** @return The epoch of an id from nextId()
+     */
+    public static int epochOf(long id) {
+        return (int) (id >>> COUNTER_BITS);
+    }
+
+    /** @return The counter of an id from nextId()
+     */
+    public static int counterOf(long id) {
+        return (int) (id & COUNTER_MASK);
+    }
+}
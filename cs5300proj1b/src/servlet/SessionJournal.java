@@ -0,0 +1,638 @@
+package servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/** Optional durability for the session table: a write-ahead log plus periodic snapshots.
+ *
+ *  Every change SessionState makes to the table is appended to the current log file
+ *  (log.N). A writer thread commits whatever has queued up with one write and one fsync
+ *  (group commit); in sync mode callers wait for that, otherwise they return at once and
+ *  lose at most one commit interval on a crash. Log records are:
+ *  <pre>
+ *  int     body length
+ *  int     CRC32 of the body
+ *  byte    type, then
+ *    PUT:        long expiry (wall clock msecs), SessionCodec bytes
+ *    REMOVE:     UTF-8 session id
+ *    TOUCH:      int new version, long expiry (wall clock msecs), UTF-8 session id
+ *    HIGH_WATER: int session id epoch
+ *  </pre>
+ *  A snapshot starts a new log, then writes every live session to snapshot.N through a
+ *  memory mapping:
+ *  <pre>
+ *  int     MAGIC
+ *  int     session id epoch high-water mark
+ *  int     number of records
+ *  long    end of the records
+ *  then per session: long expiry (wall clock msecs), varint length, SessionCodec bytes
+ *  </pre>
+ *  and deletes the older snapshot and logs. On startup the newest snapshot is loaded in
+ *  parallel, the logs after it are replayed in order (stopping at a torn record), and
+ *  anything already expired is skipped.
+ *
+ *  Session id epochs are reserved: before handing out an id in an epoch at or above the last
+ *  reservation, a HIGH_WATER record past that epoch is committed, so a restarted instance
+ *  never reuses an epoch even if its clock was set back (see SessionIdGenerator).
+ */
+public class SessionJournal extends Thread {
+    private static final int MAGIC = 0x534e4150; // "SNAP"
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte TOUCH = 3;
+    private static final byte HIGH_WATER = 4;
+    private static final int SNAPSHOT_HEADER = 4 + 4 + 4 + 8;
+    private static final int MAP_CHUNK = 64 << 20;  // bytes mapped at a time when writing
+    private static final int LOAD_CHUNK = 16384;    // records per parallel load task
+
+    private final File dir;
+    private final boolean sync;
+    private final long commitInterval;
+
+    private final Object lock = new Object();       // guards pending, appended, durable
+    private List<byte[]> pending = new ArrayList<byte[]>();
+    private long appended = 0;
+    private long durable = 0;
+
+    private final Object commitLock = new Object(); // guards log and generation
+    private FileChannel log;
+    private int generation = 0;
+
+    private final Object reserveLock = new Object();
+    private volatile int reserved = 0; // ids in epochs below this may have been handed out
+    private long reservedSeq = 0; // the log record of the latest reservation
+    // reservations known to be committed; newSession() only takes reserveLock at or above it
+    private volatile int committed = 0;
+    private volatile boolean stopping = false; // tells the writer thread to finish
+    private volatile boolean closed = false;
+
+    /** Open the journal in a directory and load whatever it holds into the session table.
+     *  Call start() afterwards to begin committing.
+     *
+     * @param dir The directory for the log and snapshot files (created if missing)
+     * @param sync True to make every change wait until it is on disk
+     * @param commitInterval The longest a change waits to be committed, in msecs
+     */
+    public SessionJournal(File dir, boolean sync, long commitInterval) throws IOException {
+        this.dir = dir;
+        this.sync = sync;
+        this.commitInterval = Math.max(1, commitInterval);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + dir);
+        }
+        setDaemon(true);
+        setName("SessionJournal");
+        restore();
+    }
+
+    /** Record that a session was stored.
+     */
+    public void logPut(SessionState session) {
+        byte[] bytes = session.toBytes();
+        ByteBuffer body = ByteBuffer.allocate(1 + 8 + bytes.length);
+        body.put(PUT).putLong(toWall(session.getExpiresAt())).put(bytes);
+        append(body.array());
+    }
+
+    /** Record that a session was removed.
+     */
+    public void logRemove(String sessionid) {
+        byte[] id = sessionid.getBytes(SessionCodec.UTF8);
+        ByteBuffer body = ByteBuffer.allocate(1 + id.length);
+        body.put(REMOVE).put(id);
+        append(body.array());
+    }
+
+    /** Record that a session's version and expiration were bumped in place.
+     */
+    public void logTouch(String sessionid, int newVersion, long expiresAt) {
+        byte[] id = sessionid.getBytes(SessionCodec.UTF8);
+        ByteBuffer body = ByteBuffer.allocate(1 + 4 + 8 + id.length);
+        body.put(TOUCH).putInt(newVersion).putLong(toWall(expiresAt)).put(id);
+        append(body.array());
+    }
+
+    /** Make sure a session id epoch is covered by a committed reservation, waiting for the
+     *  reservation to be committed if it is not.
+     *
+     * @param epoch The epoch of a session id about to be handed out
+     */
+    public void reserve(int epoch) {
+        if (epoch < committed) {
+            return;
+        }
+        long seq;
+        int upTo;
+        synchronized (reserveLock) {
+            if (epoch >= reserved) {
+                reserved = epoch + 1;
+                byte[] body = ByteBuffer.allocate(1 + 4).put(HIGH_WATER).putInt(reserved).array();
+                reservedSeq = append(body, true);
+            }
+            // another thread may have made the reservation, but not yet seen it committed
+            seq = reservedSeq;
+            upTo = reserved;
+        }
+        if (awaitDurable(seq)) {
+            synchronized (reserveLock) {
+                committed = Math.max(committed, upTo);
+            }
+        }
+    }
+
+    /** @return The session id epoch below which epochs may already have been used
+     */
+    public int getHighWater() {
+        return reserved;
+    }
+
+    private void append(byte[] body) {
+        long seq = append(body, sync);
+        if (sync) {
+            awaitDurable(seq);
+        }
+    }
+
+    private long append(byte[] body, boolean wake) {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        byte[] record = new byte[8 + body.length];
+        ByteBuffer.wrap(record).putInt(body.length).putInt((int) crc.getValue()).put(body);
+        synchronized (lock) {
+            pending.add(record);
+            if (wake) {
+                lock.notifyAll();
+            }
+            return ++appended;
+        }
+    }
+
+    /** @return True once the record is committed, false if we gave up (closed or interrupted)
+     */
+    private boolean awaitDurable(long seq) {
+        synchronized (lock) {
+            while (durable < seq && !closed) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return durable >= seq;
+        }
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer out = ByteBuffer.allocateDirect(1 << 20);
+        while (!stopping) {
+            synchronized (lock) {
+                if (pending.isEmpty()) {
+                    try {
+                        lock.wait(commitInterval);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+            try {
+                commit(out);
+            } catch (IOException ioe) {
+                System.out.println("Journal commit failed: " + ioe.getMessage());
+            }
+        }
+    }
+
+    /** Write and fsync everything queued so far, then release whoever is waiting on it.
+     */
+    private void commit(ByteBuffer out) throws IOException {
+        List<byte[]> batch;
+        long upTo;
+        synchronized (lock) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = pending;
+            pending = new ArrayList<byte[]>();
+            upTo = appended;
+        }
+
+        synchronized (commitLock) {
+            out.clear();
+            for (byte[] record : batch) {
+                if (record.length > out.remaining()) {
+                    drain(out);
+                    if (record.length > out.capacity()) {
+                        writeFully(log, ByteBuffer.wrap(record));
+                        continue;
+                    }
+                }
+                out.put(record);
+            }
+            drain(out);
+            log.force(false);
+        }
+
+        synchronized (lock) {
+            durable = upTo;
+            lock.notifyAll();
+        }
+    }
+
+    private void drain(ByteBuffer out) throws IOException {
+        out.flip();
+        writeFully(log, out);
+        out.clear();
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buff) throws IOException {
+        while (buff.hasRemaining()) {
+            ch.write(buff);
+        }
+    }
+
+    /** Start a new log, write every live session to a new snapshot, and delete the files
+     *  the snapshot makes redundant.
+     *
+     * @return The number of sessions written
+     */
+    public int snapshot() throws IOException {
+        int gen;
+        synchronized (commitLock) {
+            gen = ++generation;
+            FileChannel old = log;
+            log = openLog(gen);
+            old.close();
+        }
+
+        File tmp = new File(dir, "snapshot." + gen + ".tmp");
+        int count = writeSnapshot(tmp, getHighWater());
+        if (!tmp.renameTo(new File(dir, "snapshot." + gen))) {
+            throw new IOException("Cannot rename " + tmp);
+        }
+
+        for (File f : listFiles()) {
+            int g = generationOf(f);
+            if (g >= 0 && g < gen) {
+                f.delete();
+            }
+        }
+        return count;
+    }
+
+    private int writeSnapshot(File file, int highWater) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel ch = raf.getChannel();
+            long base = 0;
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_WRITE, base, MAP_CHUNK);
+            map.position(SNAPSHOT_HEADER);
+            int count = 0;
+
+            for (String sessionid : SessionState.getSessionIds()) {
+                SessionState session = SessionState.getSession(sessionid);
+                if (null == session) {
+                    continue;
+                }
+                byte[] bytes = session.toBytes();
+                int len = 8 + SessionCodec.varintLength(bytes.length) + bytes.length;
+                if (len > map.remaining()) {
+                    // move the window on to where this record starts
+                    map.force();
+                    base += map.position();
+                    map = ch.map(FileChannel.MapMode.READ_WRITE, base, Math.max(MAP_CHUNK, len));
+                }
+                map.putLong(toWall(session.getExpiresAt()));
+                SessionCodec.putVarint(map, bytes.length);
+                map.put(bytes);
+                count++;
+            }
+            long end = base + map.position();
+            map.force();
+
+            MappedByteBuffer header = ch.map(FileChannel.MapMode.READ_WRITE, 0, SNAPSHOT_HEADER);
+            header.putInt(MAGIC).putInt(highWater).putInt(count).putLong(end);
+            header.force();
+            ch.truncate(end);
+            ch.force(true);
+            return count;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Load the newest snapshot and replay the logs after it, then open a fresh log.
+     */
+    private void restore() throws IOException {
+        int snapGen = -1;
+        int maxGen = 0;
+        for (File f : listFiles()) {
+            String name = f.getName();
+            if (name.endsWith(".tmp")) {
+                f.delete(); // a snapshot that never finished
+                continue;
+            }
+            int g = generationOf(f);
+            maxGen = Math.max(maxGen, g);
+            if (name.startsWith("snapshot.")) {
+                snapGen = Math.max(snapGen, g);
+            }
+        }
+
+        long start = System.nanoTime();
+        int loaded = 0;
+        int highWater = 0;
+        if (snapGen >= 0) {
+            int[] result = loadSnapshot(new File(dir, "snapshot." + snapGen));
+            loaded = result[0];
+            highWater = result[1];
+        }
+        for (int g = Math.max(0, snapGen); g <= maxGen; g++) {
+            File f = new File(dir, "log." + g);
+            if (f.exists()) {
+                highWater = Math.max(highWater, replayLog(f));
+            }
+        }
+        if (loaded > 0 || maxGen > 0) {
+            System.out.println("Journal restored " + SessionState.getSessionCount()
+                    + " sessions in " + (System.nanoTime() - start) / 1000000 + "ms");
+        }
+
+        reserved = highWater;
+        committed = highWater;
+        SessionState.restoreEpoch(highWater);
+        generation = maxGen + 1;
+        log = openLog(generation);
+    }
+
+    /** Load a snapshot into the session table, decoding it on several threads.
+     *
+     * @return {sessions loaded, high-water mark}
+     */
+    private static int[] loadSnapshot(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final MappedByteBuffer map = raf.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (raf.length() < SNAPSHOT_HEADER || MAGIC != map.getInt(0)) {
+                System.out.println("Ignoring bad snapshot " + file);
+                return new int[]{0, 0};
+            }
+            int highWater = map.getInt(4);
+            int count = map.getInt(8);
+            long end = map.getLong(12);
+            SessionState.presizeStore(count);
+
+            // find where each task's records start by skipping over the lengths
+            List<Integer> starts = new ArrayList<Integer>();
+            ByteBuffer scan = map.duplicate();
+            scan.position(SNAPSHOT_HEADER);
+            scan.limit((int) end);
+            for (int i = 0; i < count; i++) {
+                if (0 == i % LOAD_CHUNK) {
+                    starts.add(scan.position());
+                }
+                scan.position(scan.position() + 8);
+                int len = SessionCodec.getVarint(scan);
+                scan.position(scan.position() + len);
+            }
+            starts.add((int) end);
+
+            final long nowWall = System.currentTimeMillis();
+            final AtomicInteger loaded = new AtomicInteger();
+            ExecutorService pool = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors());
+            try {
+                List<Future<?>> tasks = new ArrayList<Future<?>>();
+                for (int t = 0; t + 1 < starts.size(); t++) {
+                    final int from = starts.get(t);
+                    final int to = starts.get(t + 1);
+                    tasks.add(pool.submit(new Runnable() {
+                        public void run() {
+                            loaded.addAndGet(loadRange(map, from, to, nowWall));
+                        }
+                    }));
+                }
+                for (Future<?> task : tasks) {
+                    task.get();
+                }
+            } catch (Exception e) {
+                throw new IOException("Snapshot load failed: " + e.getMessage());
+            } finally {
+                pool.shutdown();
+            }
+            return new int[]{loaded.get(), highWater};
+        } catch (BufferUnderflowException bue) {
+            System.out.println("Truncated snapshot " + file);
+            return new int[]{0, 0};
+        } catch (IllegalArgumentException iae) {
+            System.out.println("Corrupt snapshot " + file);
+            return new int[]{0, 0};
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int loadRange(MappedByteBuffer map, int from, int to, long nowWall) {
+        ByteBuffer buff = map.duplicate();
+        buff.limit(to);
+        buff.position(from);
+        int loaded = 0;
+        while (buff.hasRemaining()) {
+            long wall = buff.getLong();
+            int len = SessionCodec.getVarint(buff);
+            int next = buff.position() + len;
+            if (wall > nowWall) {
+                SessionState session = SessionCodec.decode(buff);
+                if (null != session) {
+                    SessionState.restoreSession(session, fromWall(wall));
+                    loaded++;
+                }
+            }
+            buff.position(next);
+        }
+        return loaded;
+    }
+
+    /** Apply a log to the session table, stopping at the first torn or corrupt record.
+     *
+     * @return The highest HIGH_WATER mark in the log
+     */
+    private static int replayLog(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        int highWater = 0;
+        try {
+            ByteBuffer buff = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            long nowWall = System.currentTimeMillis();
+            CRC32 crc = new CRC32();
+            while (buff.remaining() >= 8) {
+                int len = buff.getInt();
+                int sum = buff.getInt();
+                if (len < 1 || len > buff.remaining()) {
+                    break;
+                }
+                byte[] body = new byte[len];
+                buff.get(body);
+                crc.reset();
+                crc.update(body, 0, len);
+                if ((int) crc.getValue() != sum) {
+                    break;
+                }
+                highWater = Math.max(highWater, apply(ByteBuffer.wrap(body), nowWall));
+            }
+        } finally {
+            raf.close();
+        }
+        return highWater;
+    }
+
+    /** Apply one log record.
+     *
+     * @return The record's high-water mark, or 0 for other records
+     */
+    private static int apply(ByteBuffer body, long nowWall) {
+        byte type = body.get();
+        switch (type) {
+        case PUT: {
+            long wall = body.getLong();
+            SessionState session = SessionCodec.decode(body);
+            if (null == session) {
+                break;
+            }
+            if (wall > nowWall) {
+                SessionState.restoreSession(session, fromWall(wall));
+            } else {
+                SessionState.removeSession(session.getSessionId());
+            }
+            break;
+        }
+        case REMOVE:
+            SessionState.removeSession(new String(body.array(), 1, body.remaining(),
+                    SessionCodec.UTF8));
+            break;
+        case TOUCH: {
+            int version = body.getInt();
+            long wall = body.getLong();
+            String sessionid = new String(body.array(), body.position(), body.remaining(),
+                    SessionCodec.UTF8);
+            SessionState session = SessionState.getSession(sessionid);
+            if (null != session && wall > nowWall) {
+                SessionState.restoreSession(new SessionState(sessionid, version,
+                        session.getMessage()), fromWall(wall));
+            } else if (null != session) {
+                SessionState.removeSession(sessionid);
+            }
+            break;
+        }
+        case HIGH_WATER:
+            return body.getInt();
+        default:
+            break;
+        }
+        return 0;
+    }
+
+    /** Take a snapshot every so often on a background thread.
+     *
+     * @param interval The time between snapshots, in msecs
+     */
+    public void startSnapshots(final long interval) {
+        Thread snapshotter = new Thread() {
+            public void run() {
+                while (!closed) {
+                    try {
+                        Thread.sleep(interval);
+                        snapshot();
+                    } catch (InterruptedException ie) {
+                        return;
+                    } catch (IOException ioe) {
+                        System.out.println("Snapshot failed: " + ioe.getMessage());
+                    }
+                }
+            }
+        };
+        snapshotter.setDaemon(true);
+        snapshotter.setName("SessionJournal snapshots");
+        snapshotter.start();
+    }
+
+    /** Stop the writer, then commit anything still queued. The writer is allowed to finish
+     *  the batch it holds first, so records reach the log in the order they were appended.
+     */
+    public void close() {
+        stopping = true;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        try {
+            join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            commit(ByteBuffer.allocate(1 << 16));
+        } catch (IOException ioe) {
+            System.out.println(ioe.getMessage());
+        }
+        closed = true;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        synchronized (commitLock) {
+            try {
+                log.close();
+            } catch (IOException ioe) {
+                System.out.println(ioe.getMessage());
+            }
+        }
+    }
+
+    private FileChannel openLog(int gen) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, "log." + gen), "rw");
+        raf.seek(raf.length());
+        return raf.getChannel();
+    }
+
+    private File[] listFiles() {
+        File[] files = dir.listFiles();
+        return null == files ? new File[0] : files;
+    }
+
+    /** @return The N in log.N or snapshot.N, or -1 for any other file
+     */
+    private static int generationOf(File f) {
+        String name = f.getName();
+        int dot = name.indexOf('.');
+        if (dot < 0 || !(name.startsWith("log.") || name.startsWith("snapshot."))) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(dot + 1));
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    /** Convert an ExpiryWheel.now() deadline to wall clock msecs (which survive a restart).
+     */
+    private static long toWall(long expiresAt) {
+        return System.currentTimeMillis() + (expiresAt - ExpiryWheel.now());
+    }
+
+    private static long fromWall(long wall) {
+        return ExpiryWheel.now() + (wall - System.currentTimeMillis());
+    }
+}
@@ -1,32 +1,47 @@
 package servlet;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 
 public class SessionState {
     
     // The session table itself
-    private static HashMap<String, SessionState> statemap = 
-            new HashMap<String, SessionState>();
-    private static Integer globalSessionNo = 0; // The next session id to be assigned
+    private static volatile SessionStore store = newStore(Config.getString("store", "concurrent"));
+    private static final SessionIdGenerator ids = new SessionIdGenerator(); // new session ids
     private static StateWatcher stateGC = new StateWatcher(); // The garbage collection thread
-
-    private String sessionid;  // The id of this session
-    private int version;    // The version number of this session
+    // Expiration schedule, 100ms buckets covering ~100s per rotation
+    private static ExpiryWheel expiryWheel = new ExpiryWheel(100, 1024);
+    // Write-ahead log and snapshots of the table (null unless journal.dir is set)
+    private static volatile SessionJournal journal = null;
+
+    private final int epoch;     // The epoch of this session's id (0 for old ids)
+    private final int sessionNo; // The session number within the epoch
+    private final int serverIp;  // The IPv4 address of the server that created this session
+    private String sessionid;    // The id in string form, built when first needed
+    private volatile int version;    // The version number of this session
     private String message; // The message for this session
-    private Date expDate;   // The expiration time of this session
+    private volatile long expiresAt; // The expiration time of this session (ExpiryWheel.now() msecs)
+    private volatile byte[] wireBytes; // Cached SessionCodec encoding, null when stale
 
-    public SessionState(int sessionNo, String serverid, int version, String msg) {
-        this.sessionid = sessionNo + "/" + serverid;
+    public SessionState(int epoch, int sessionNo, int serverIp, int version, String msg) {
+        this.epoch = epoch;
+        this.sessionNo = sessionNo;
+        this.serverIp = serverIp;
         this.version = version;
         this.message = msg;
     }
 
+    public SessionState(int sessionNo, String serverid, int version, String msg) {
+        this(0, sessionNo, SessionCodec.ipToInt(serverid), version, msg);
+    }
+
     public SessionState(String sessionid, int version, String msg) {
+        this(SessionCodec.epochOf(sessionid), SessionCodec.sessionNoOf(sessionid),
+                SessionCodec.serverOf(sessionid), version, msg);
         this.sessionid = sessionid;
-        this.version = version;
-        this.message = msg;
     }
 
 
@@ -34,23 +49,40 @@ public class SessionState {
      * @return The session id as a String
      */
     public String getSessionId() {
-        return this.sessionid;
+        String id = this.sessionid;
+        if (null == id) {
+            id = SessionCodec.formatSessionId(epoch, sessionNo, serverIp);
+            this.sessionid = id;
+        }
+        return id;
+    }
+
+    /** Retrieve the epoch of this session's id.
+     * @return The epoch (0 for ids from before epochs existed)
+     */
+    public int getEpoch() {
+        return this.epoch;
     }
 
     /** Retrieve just the session number for this session.
      * @return The session number
      */
     public int getSessionNo() {
-        String[] sid = sessionid.split("/");
-        return Integer.parseInt(sid[0]);
+        return this.sessionNo;
     }
 
     /** Retrieve just the ID (IP) of the server that created this session.
      * @return The server ID (currently the IP addr)
      */
     public String getServerID() {
-        String[] sid = sessionid.split("/");
-        return sid[1];
+        return SessionCodec.intToIp(this.serverIp);
+    }
+
+    /** Retrieve the IPv4 address of the server that created this session.
+     * @return The address as an int
+     */
+    public int getServerIp() {
+        return this.serverIp;
     }
 
     /** Retrieve the version number for this session.
@@ -62,8 +94,9 @@ public class SessionState {
 
     /** Increment the version number of this session by 1.
      */
-    public void incrementVersion() {
+    public synchronized void incrementVersion() {
         this.version += 1;
+        this.wireBytes = null;
     }
 
     /** Retrieve the message stored in this session
@@ -76,40 +109,81 @@ public class SessionState {
     /** Change this session's message.
      * @param newMsg The new message for this session
      */
-    public void setMessage(String newMsg) {
+    public synchronized void setMessage(String newMsg) {
         this.message = newMsg;
+        this.wireBytes = null;
     }
 
     /** Retrieve the expiration date for this session.
      *  @return The expiration time as a Date object.
      */
     public Date getExpDate() {
-        return this.expDate;
+        return new Date(System.currentTimeMillis() + (this.expiresAt - ExpiryWheel.now()));
+    }
+
+    /** Retrieve the expiration deadline for this session.
+     *  @return The expiration time in ExpiryWheel.now() milliseconds
+     */
+    public long getExpiresAt() {
+        return this.expiresAt;
+    }
+
+    /** Set the expiration deadline (for stores that rebuild sessions from their own records).
+     *  @param expiresAt The expiration time in ExpiryWheel.now() milliseconds
+     */
+    void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /** Move this session from one version to the next and push out its expiration,
+     *  but only if it is still at the old version.
+     *
+     * @param oldVersion The version this session must have
+     * @param newVersion The version to give it
+     * @param expiresAt The new expiration deadline (ExpiryWheel.now() milliseconds)
+     * @return True if the session was updated
+     */
+    synchronized boolean touch(int oldVersion, int newVersion, long expiresAt) {
+        if (this.version != oldVersion) {
+            return false;
+        }
+        this.version = newVersion;
+        this.expiresAt = expiresAt;
+        this.wireBytes = null;
+        return true;
     }
 
     
     /** Produce a byte[] from a SessionState object that can be recreated using fromBytes().
-     *  @return byte[] reresentation of this object
+     *  The encoding (see SessionCodec) is cached until the version or message changes,
+     *  so writing a session to several servers only serializes it once. It is built under
+     *  the same lock as those changes, so an encoding of an old version is never cached.
+     *  @return byte[] reresentation of this object (shared, do not modify)
      */
     public byte[] toBytes()
     {
-        String rep = sessionid + "_" + version + "_" + message;
-        return rep.getBytes();
+        byte[] bytes = wireBytes;
+        if (null == bytes) {
+            synchronized (this) {
+                bytes = wireBytes;
+                if (null == bytes) {
+                    bytes = SessionCodec.encode(this);
+                    wireBytes = bytes;
+                }
+            }
+        }
+        return bytes;
     }
 
     /** Recreate a SessionState object from a byte[] as produced by toBytes().
-     * @return The SessionState object stored in the byte[]
+     * @return The SessionState object stored in the byte[], or null if it is not valid
      */
     public static SessionState fromBytes(byte[] bytes)
     {
-        String[] sessionInfo = (new String(bytes)).split("_", 3);
-        String[] sesid = sessionInfo[0].split("/");
-        
-        return new SessionState(
-                Integer.parseInt(sesid[0]), 
-                sesid[1],
-                Integer.parseInt(sessionInfo[1]),
-                sessionInfo[2]);
+        if (null == bytes) {
+            return null;
+        }
+        return SessionCodec.decode(ByteBuffer.wrap(bytes));
     }
 
     /** Adds a session to the session table.
@@ -117,9 +191,50 @@ public class SessionState {
      * @param session The session to be added - expDate will be overwritten
      * @param expLength The length of time after which this session should expire
      */
-    public static synchronized void addSession(SessionState session, int expLength) {
-        session.expDate = new Date((new Date()).getTime() + expLength);
-        statemap.put(session.getSessionId(), session);
+    public static void addSession(SessionState session, int expLength) {
+        session.expiresAt = ExpiryWheel.now() + expLength;
+        store.put(session);
+        expiryWheel.schedule(session.getSessionId(), session.expiresAt);
+        if (null != journal) {
+            journal.logPut(session);
+        }
+    }
+
+    /** Add a copy of a session unless we already hold that version or a newer one (e.g. a
+     *  repair racing the user's next request). Only a missing copy is put without a version
+     *  check, so a write arriving at the same moment can still lose to it.
+     *
+     * @param session The session
+     * @param expLength The time until the session expires (in msecs)
+     * @return Null if the copy was stored, otherwise the copy we already hold
+     */
+    public static SessionState addSessionIfNewer(SessionState session, int expLength) {
+        while (true) {
+            SessionState current = store.get(session.getSessionId());
+            if (null == current) {
+                addSession(session, expLength);
+                return null;
+            }
+            if (current.getVersion() >= session.getVersion()) {
+                return current;
+            }
+            session.expiresAt = ExpiryWheel.now() + expLength;
+            if (replaceSession(current.getVersion(), session)) {
+                expiryWheel.schedule(session.getSessionId(), session.expiresAt);
+                return null;
+            }
+        }
+    }
+
+    /** Put a session recovered from the journal back in the table, without logging it again.
+     *
+     * @param session The session
+     * @param expiresAt Its expiration deadline (ExpiryWheel.now() milliseconds)
+     */
+    static void restoreSession(SessionState session, long expiresAt) {
+        session.expiresAt = expiresAt;
+        store.put(session);
+        expiryWheel.schedule(session.getSessionId(), expiresAt);
     }
 
     /** Create a brand new session storing the given method.
@@ -129,11 +244,14 @@ public class SessionState {
      *  @return The newly created SessionState object
      */
     public static SessionState newSession(String msg) {
-        int newSessionNo = 0;
-        synchronized(globalSessionNo) {
-            newSessionNo = globalSessionNo++;
+        long id = ids.nextId();
+        int epoch = SessionIdGenerator.epochOf(id);
+        if (null != journal) {
+            // don't hand out an id in an epoch a restarted instance could use again
+            journal.reserve(epoch);
         }
-        return new SessionState(newSessionNo, NetUtils.getIP(), 1, msg);
+        return new SessionState(epoch, SessionIdGenerator.counterOf(id),
+                SessionCodec.ipToInt(NetUtils.getIP()), 1, msg);
     }
 
     /** Gets and removes the requested session state from the table (if it exists).
@@ -141,30 +259,47 @@ public class SessionState {
      * @param sessionid The id of the sesssion to be retrieved
      * @return The corresponding SessionState object, or null if the key does not exist.
      */
-    public static synchronized SessionState removeSession(String sessionid) {
-        return statemap.remove(sessionid);
+    public static SessionState removeSession(String sessionid) {
+        SessionState session = store.remove(sessionid);
+        if (null != session && null != journal) {
+            journal.logRemove(sessionid);
+        }
+        return session;
     }
-    public static synchronized SessionState removeSession(String sessionid, int version){
-        SessionState session = statemap.remove(sessionid);
-        if(null != session) {
-            if(session.getVersion() != version) {
-                statemap.put(session.getSessionId(), session);
-                session = null;
-            }
+    public static SessionState removeSession(String sessionid, int version){
+        SessionState session = store.removeIfVersion(sessionid, version);
+        if (null != session && null != journal) {
+            journal.logRemove(sessionid);
         }
         return session;
     }
 
+    /** Replace the stored copy of a session, but only if it still has the expected version.
+     *
+     * @param expectedVersion The version the stored copy must have
+     * @param session The new copy of the session
+     * @return True if the session was replaced, false if it was missing or had another version
+     */
+    public static boolean replaceSession(int expectedVersion, SessionState session) {
+        if (!store.replaceIfVersion(expectedVersion, session)) {
+            return false;
+        }
+        if (null != journal) {
+            journal.logPut(session);
+        }
+        return true;
+    }
+
     /** Gets the requested session state from the table (if it exists).
      *
      * @param sessionid The id of the sesssion to be retrieved
      * @return The corresponding SessionState object, or null if the key does not exist.
      */
-    public static synchronized SessionState getSession(String sessionid) {
-        return statemap.get(sessionid);
+    public static SessionState getSession(String sessionid) {
+        return store.get(sessionid);
     }
-    public static synchronized SessionState getSession(String sessionid, int version){
-        SessionState session = statemap.get(sessionid);
+    public static SessionState getSession(String sessionid, int version){
+        SessionState session = store.get(sessionid);
         if(null != session) {
             if(session.getVersion() != version) {
                 session = null;
@@ -177,84 +312,330 @@ public class SessionState {
      *
      * @return An array of Longs containing the currently stored session ids.
      */
-    public static synchronized String[] getSessionIds() {
-        String[] ids = new String[statemap.size()];
-        statemap.keySet().toArray(ids);
-        return ids;
+    public static String[] getSessionIds() {
+        return store.getSessionIds();
+    }
+
+    /** Size the table for an expected number of sessions (e.g. before reloading them), so
+     *  it does not have to grow step by step. Only replaces the default table, and only while
+     *  it is still empty.
+     *
+     * @param sessions The number of sessions expected
+     */
+    static synchronized void presizeStore(int sessions) {
+        if (0 == store.size() && store instanceof ConcurrentSessionStore) {
+            store = new ConcurrentSessionStore(sessions + sessions / 3 + 1, 64);
+        }
+    }
+
+    /** @return The number of sessions currently stored in the table
+     */
+    public static int getSessionCount() {
+        return store.size();
+    }
+
+    /** Swap out the table backing the session state (e.g. for benchmarking).
+     *  Any sessions in the old table are dropped.
+     *
+     * @param newStore The table to use from now on
+     */
+    public static void setStore(SessionStore newStore) {
+        store = newStore;
+    }
+
+    /** Build the session table named by the "store" setting: "concurrent" (the default),
+     *  "synchronized", or "offheap" (slabs of store.slab.kb KB, memory-mapped from files in
+     *  store.mmap.dir if that is set).
+     *
+     * @param kind The kind of table
+     * @return The new, empty table
+     */
+    public static SessionStore newStore(String kind) {
+        if ("offheap".equals(kind)) {
+            String dir = Config.getString("store.mmap.dir", null);
+            return new OffHeapSessionStore(64, Config.getInt("store.slab.kb", 1024) * 1024,
+                    null == dir ? null : new File(dir));
+        }
+        if ("synchronized".equals(kind)) {
+            return new SynchronizedSessionStore();
+        }
+        return new ConcurrentSessionStore();
+    }
+
+    /** Bump a stored session's version in place (see SessionStore.touch()) and reschedule
+     *  its expiration.
+     *
+     * @param sessionid The id of the session
+     * @param oldVersion The version the stored copy must have
+     * @param newVersion The version to give it
+     * @param expLength The length of time after which the session should expire
+     * @return True if the session was touched
+     */
+    public static boolean touchSession(String sessionid, int oldVersion, int newVersion,
+            int expLength) {
+        long expiresAt = ExpiryWheel.now() + expLength;
+        if (!store.touch(sessionid, oldVersion, newVersion, expiresAt)) {
+            return false;
+        }
+        expiryWheel.schedule(sessionid, expiresAt);
+        if (null != journal) {
+            journal.logTouch(sessionid, newVersion, expiresAt);
+        }
+        return true;
+    }
+
+    /** Make sure new session ids are in the given epoch or a later one (after a restart).
+     *
+     * @param epoch The lowest epoch that may be used
+     */
+    static void restoreEpoch(int epoch) {
+        ids.restoreEpoch(epoch);
     }
 
+    /** Open the journal if journal.dir is set: reload the sessions it holds, then log every
+     *  change from here on. Settings: journal.sync (wait for each change to reach disk,
+     *  default false), journal.commit.ms (default 10) and journal.snapshot.secs (default 60).
+     */
+    public static synchronized void startJournal() {
+        String dir = Config.getString("journal.dir", null);
+        if (null == dir || null != journal) {
+            return;
+        }
+        try {
+            SessionJournal j = new SessionJournal(new File(dir),
+                    Config.getBoolean("journal.sync", false), Config.getInt("journal.commit.ms", 10));
+            j.start();
+            j.startSnapshots(1000L * Config.getInt("journal.snapshot.secs", 60));
+            journal = j;
+        } catch (IOException ioe) {
+            System.out.println("Journal disabled: " + ioe.getMessage());
+        }
+    }
+
+    /** @return The journal, or null if it is not enabled
+     */
+    public static SessionJournal getJournal() {
+        return journal;
+    }
+
+    /** Retrieve the expiration schedule (e.g. to read its sweep metrics).
+     *
+     * @return The ExpiryWheel used by the garbage collection thread
+     */
+    public static ExpiryWheel getExpiryWheel() {
+        return expiryWheel;
+    }
+
+
+    /** Try to read the session a cookie refers to.
+     *
+     *  @param cookie The parsed session cookie (may be null, for a malformed cookie)
+     *  @return The retrieved session (as a SessionState object) or null if it is not found
+     */
+    public static SessionState readSession(SessionCookie cookie) {
+        if (null == cookie) {
+            return null;
+        }
+        return readSession(cookie.getSessionId(), cookie.getVersion(), cookie.getReplicas());
+    }
 
     /** Try to read a session identified by the given session id and version number.
+     *  Our own copy is used if it is at least as new as the cookie (we are usually one of the
+     *  replicas it names, or RepairService gave us a copy); otherwise the other replicas are
+     *  asked and the newest copy from a read quorum wins. If none of them has it, the first
+     *  servers in the placement order are asked, as that is where repairs put copies.
      *
      *  @param sessionid The string sessionid of the session to read
      *  @param version The version number of the session to try to read
-     *  @param serverips A list of server ip addresses to attempt to read the session from
+     *  @param replicas The servers (IPv4 addresses as ints) to attempt to read the session from
      *  @return The retrieved session (as a SessionState object) or null if it is not found
      */
-    public static SessionState readSession(String sessionid, int version, String[] serverips) {
-        List<String> str_ips = Arrays.asList(serverips);
-        if(str_ips.contains(NetUtils.getIP())) {
-            return SessionState.removeSession(sessionid);
-        } else {
-            ArrayList<InetAddress> ips = new ArrayList<InetAddress>();
-            for (String ip : str_ips) {
-                if (ip.equals(NetUtils.nullIP)) {
-                    continue;
-                }
-                try {
-                    ips.add(InetAddress.getByName(ip));
-                } catch (UnknownHostException uhe) {
-                    System.out.println("*** EXCEPTION: " + uhe.getMessage());
-                    System.out.println(uhe.getStackTrace());
-                }
+    public static SessionState readSession(String sessionid, int version, int[] replicas) {
+        SessionState local = SessionState.getSession(sessionid);
+        if (null != local && local.getVersion() >= version) {
+            SessionState.removeSession(sessionid);
+            Metrics.READS_LOCAL.inc();
+            return local;
+        }
+
+        // our copy (if the cookie names us) is gone, e.g. we restarted, or missed the last
+        // write; another replica should have it
+        int self = SessionCodec.ipToInt(NetUtils.getIP());
+        int remote = 0;
+        for (int ip : replicas) {
+            if (self != ip && 0 != ip) {
+                remote++;
+            }
+        }
+
+        InetAddress[] iparray = new InetAddress[remote];
+        int n = 0;
+        for (int ip : replicas) {
+            if (0 != ip && self != ip) {
+                iparray[n++] = SessionCodec.intToInetAddress(ip);
             }
+        }
+        SessionState session = NetUtils.sessionReadClient(sessionid, version, iparray);
+        if (null == session) {
+            InetAddress[] placed = placedElsewhere(sessionid, iparray);
+            if (0 != placed.length) {
+                session = NetUtils.sessionReadClient(sessionid, version, placed);
+            }
+        }
+        (null == session ? Metrics.READS_MISSING : Metrics.READS_REMOTE).inc();
+        return session;
+    }
 
-            InetAddress[] iparray = new InetAddress[ips.size()];
-            ips.toArray(iparray);
-            return NetUtils.sessionReadClient(sessionid, version, iparray);
+    /** @return The first REPLICATION_N servers in the placement order for a session that are
+     *          not among those already asked
+     */
+    private static InetAddress[] placedElsewhere(String sessionid, InetAddress[] asked) {
+        List<InetAddress> placed = new ArrayList<InetAddress>(NetUtils.REPLICATION_N);
+        for (InetAddress addr : View.rank(sessionid)) {
+            if (placed.size() >= NetUtils.REPLICATION_N) {
+                break;
+            }
+            if (!Arrays.asList(asked).contains(addr)) {
+                placed.add(addr);
+            }
         }
+        return placed.toArray(new InetAddress[placed.size()]);
     }
 
     /** Try to write a session.
+     *  Backups are tried in the placement strategy's order for the session id, followed by
+     *  any servers from the cookie that have since left our view.
      *
      * @param session The session to be written.
-     * @param oldips An optional list of IP adresses to try to write to before the other
-     *                  servers in our view.
-     * @return An array of the IP addresses that the session was written to (one will be this
-     *          instance's address, the other will be the null address (0.0.0.0) if no other server
-     *          was successfully contacted.
-     */
-    public static String[] writeSession(SessionState session, String[] oldips) {
-        //TODO: make adding IPs from the cookie more efficient
-        ArrayList<InetAddress> writeIP = new ArrayList<InetAddress>();
-        if (null != oldips && !oldips.equals("")) {
-            for (String ip : oldips) {
-                if (ip.equals(NetUtils.getIP()) || ip.equals(NetUtils.nullIP)) {
+     * @param oldips An optional list of servers (IPv4 addresses as ints) to try after the
+     *          servers in our view.
+     * @return The servers holding the session, for the cookie: this instance's address
+     *          first, then at most WRITE_REPLICAS backups that stored it or are still being
+     *          written to, in placement order
+     */
+    public static int[] writeSession(SessionState session, int[] oldips) {
+        ArrayList<InetAddress> writeIP = new ArrayList<InetAddress>(
+                Arrays.asList(View.rank(session.getSessionId())));
+        int self = SessionCodec.ipToInt(NetUtils.getIP());
+        if (null != oldips) {
+            for (int ip : oldips) {
+                if (self == ip || 0 == ip) {
                     continue;
                 }
-
-                try {
-                    writeIP.add(InetAddress.getByName(ip));
-                
-                    } catch (UnknownHostException uhe) {
-                    System.out.println(uhe.getMessage());
+                InetAddress addr = SessionCodec.intToInetAddress(ip);
+                //Don't want duplicate IPs in the list
+                if (!writeIP.contains(addr)) {
+                    writeIP.add(addr);
                 }
             }
         }
-        //Don't want duplicate IPs in the list
-        for(InetAddress ip : View.getView()) {
-            if (!writeIP.contains(ip)) {
-                writeIP.add(ip);
-            }
-        }
 
         InetAddress[] iparray = new InetAddress[writeIP.size()];
         writeIP.toArray(iparray);
-        String ip = NetUtils.sessionWriteClient(session, iparray);
+        NetUtils.Replicas written = NetUtils.sessionWriteClient(session, iparray);
         
         SessionState.addSession(session, Utils.sessionExpTime);
 
-        return new String[]{NetUtils.getIP(), ip};
+        int[] hosts = hostIps(self, written, writeIP);
+        RepairService.noteOwned(session.getSessionId(), hosts);
+        return hosts;
+    }
+
+
+    /** Replicate a session whose only change since the last write is a version bump.
+     *  The backups named in the cookie are just told to move their copy to the new version
+     *  (SESSION_TOUCH). This falls back to a full writeSession() if the cookie does not name
+     *  exactly WRITE_REPLICAS backups (one was lost, or the load balancer sent the user to a
+     *  new server and the old one is still listed; the copies left out simply expire), or if
+     *  any of them no longer has the previous version.
+     *
+     * @param session The session, already incremented
+     * @param oldips The servers (IPv4 addresses as ints) from the session's cookie
+     * @return The servers holding the session (as for writeSession())
+     */
+    public static int[] touchSession(SessionState session, int[] oldips) {
+        List<InetAddress> backups = new ArrayList<InetAddress>();
+        int self = SessionCodec.ipToInt(NetUtils.getIP());
+        if (null != oldips) {
+            for (int ip : oldips) {
+                if (self == ip || 0 == ip) {
+                    continue;
+                }
+                InetAddress addr = SessionCodec.intToInetAddress(ip);
+                if (!backups.contains(addr)) {
+                    backups.add(addr);
+                }
+            }
+        }
+
+        if (backups.size() == NetUtils.WRITE_REPLICAS) {
+            List<InetAddress> targets = placementOrder(session.getSessionId(), backups);
+            InetAddress[] iparray = new InetAddress[targets.size()];
+            targets.toArray(iparray);
+            NetUtils.Replicas touched =
+                NetUtils.sessionTouchClient(session, session.getVersion() - 1, iparray);
+            if (touched.getAcked().length == iparray.length) {
+                SessionState.addSession(session, Utils.sessionExpTime);
+                int[] hosts = hostIps(self, touched, targets);
+                RepairService.noteOwned(session.getSessionId(), hosts);
+                return hosts;
+            }
+        }
+        return writeSession(session, oldips);
+    }
+
+    /** @return The given servers, those in the placement order for the session first (in that
+     *          order), then the rest as given
+     */
+    private static List<InetAddress> placementOrder(String sessionid, List<InetAddress> addrs) {
+        List<InetAddress> ordered = new ArrayList<InetAddress>(addrs.size());
+        for (InetAddress addr : View.rank(sessionid)) {
+            if (addrs.contains(addr)) {
+                ordered.add(addr);
+            }
+        }
+        for (InetAddress addr : addrs) {
+            if (!ordered.contains(addr)) {
+                ordered.add(addr);
+            }
+        }
+        return ordered;
+    }
+
+    /** @return The servers for a session's cookie: self, then at most WRITE_REPLICAS of the
+     *          acked and in-flight servers in the order they were asked in (padded with the
+     *          null address to the two entries cookies always had)
+     */
+    private static int[] hostIps(int self, NetUtils.Replicas replicas, List<InetAddress> asked) {
+        List<Integer> held = new ArrayList<Integer>();
+        for (int ip : replicas.getAcked()) {
+            held.add(ip);
+        }
+        for (int ip : replicas.getInFlight()) {
+            if (!held.contains(ip)) {
+                held.add(ip);
+            }
+        }
+        final List<Integer> order = new ArrayList<Integer>(asked.size());
+        for (InetAddress addr : asked) {
+            order.add(SessionCodec.ipToInt(addr));
+        }
+        // a server that replied from another address than the one we asked goes last
+        Collections.sort(held, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int ia = order.indexOf(a);
+                int ib = order.indexOf(b);
+                return (-1 == ia ? order.size() : ia) - (-1 == ib ? order.size() : ib);
+            }
+        });
+
+        int count = Math.min(held.size(), NetUtils.WRITE_REPLICAS);
+        int[] ips = new int[Math.max(2, 1 + count)];
+        ips[0] = self;
+        for (int i = 0; i < count; i++) {
+            ips[1 + i] = held.get(i);
+        }
+        return ips;
     }
 
 
@@ -271,37 +652,45 @@ public class SessionState {
         }
     }
 
+    /** Stop the Garbage Collection thread (when the instance is undeployed). It cannot be
+     *  started again.
+     */
+    public static void stopStateGC() {
+        stateGC.running = false;
+        stateGC.interrupt();
+    }
+
 
     /** Threads for the purpose of garbage collecting from the session state table.
+     *  Wakes once per wheel tick and only looks at the sessions scheduled to expire by then.
      */
-    private static class StateWatcher extends Thread {
+    private static class StateWatcher extends Thread implements ExpiryWheel.Handler {
+        private volatile boolean running = true;
+
         @Override
         public void run() {
-            SessionState state = null;
-            Date curTime = null;
-
-            while(true) {
-                // get the current time
-                curTime = new Date();
-
-                // retrieve all session ids
-                String[] sessionids = SessionState.getSessionIds();
+            long tick = expiryWheel.getTickMs();
 
-                // iterate over all retrieved ids, and remove any that have expired
-                for(String id : sessionids) {
-                    state = SessionState.getSession(id);
-
-                    if(null != state && curTime.after(state.expDate)) {
-                        SessionState.removeSession(id);
-                    }
-                }
+            while(running) {
+                long now = ExpiryWheel.now();
+                Metrics.SWEEP_EVICTIONS.add(expiryWheel.advance(now, this));
+                Metrics.SWEEP_LATENCY.record(expiryWheel.getLastSweepNanos());
 
                 try {
-                    Thread.sleep(5000);
+                    // sleep until the start of the next tick
+                    Thread.sleep(tick - (ExpiryWheel.now() % tick));
                 } catch (Exception e) {
                     //TODO: Handle?
                 }
             }
         }
+
+        public boolean expire(String sessionid, long now) {
+            if (null == store.removeIfExpired(sessionid, now)) {
+                return false;
+            }
+            RepairService.forget(sessionid);
+            return true;
+        }
     }
 }
@@ -0,0 +1,73 @@
+package servlet;
+
+/** The table that holds the SessionState objects on this instance.
+ *
+ *  Implementations must be safe to call from the servlet threads, the RPCListener and the
+ *  StateWatcher at the same time.
+ */
+public interface SessionStore {
+
+    /** Insert a session, replacing any session already stored under the same id.
+     *
+     * @param session The session to store
+     */
+    public void put(SessionState session);
+
+    /** Look up a session.
+     *
+     * @param sessionid The id of the session to look up
+     * @return The stored SessionState, or null if there is none
+     */
+    public SessionState get(String sessionid);
+
+    /** Remove a session.
+     *
+     * @param sessionid The id of the session to remove
+     * @return The removed SessionState, or null if there was none
+     */
+    public SessionState remove(String sessionid);
+
+    /** Remove a session only if the stored copy has the given version.
+     *
+     * @param sessionid The id of the session to remove
+     * @param version The version the stored copy must have
+     * @return The removed SessionState, or null if it was missing or had another version
+     */
+    public SessionState removeIfVersion(String sessionid, int version);
+
+    /** Atomically swap in a new copy of a session if the stored copy has the expected version.
+     *
+     * @param expectedVersion The version the stored copy must have
+     * @param session The new copy (its id selects the entry)
+     * @return True if the new copy was stored, false otherwise
+     */
+    public boolean replaceIfVersion(int expectedVersion, SessionState session);
+
+    /** Bump the version of a stored session in place, if it still has the old version.
+     *
+     * @param sessionid The id of the session to touch
+     * @param oldVersion The version the stored copy must have
+     * @param newVersion The version to give it
+     * @param expiresAt Its new expiration deadline (ExpiryWheel.now() milliseconds)
+     * @return True if the session was touched, false if it was missing or had another version
+     */
+    public boolean touch(String sessionid, int oldVersion, int newVersion, long expiresAt);
+
+    /** Remove a session only if its expiration deadline has passed.
+     *
+     * @param sessionid The id of the session to remove
+     * @param now The current time in ExpiryWheel.now() milliseconds
+     * @return The removed SessionState, or null if it was missing or has not expired
+     */
+    public SessionState removeIfExpired(String sessionid, long now);
+
+    /** Get the ids of the sessions currently stored.
+     *
+     * @return A snapshot of the stored session ids
+     */
+    public String[] getSessionIds();
+
+    /** @return The number of sessions currently stored
+     */
+    public int size();
+}
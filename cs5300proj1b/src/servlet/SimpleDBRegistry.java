@@ -0,0 +1,66 @@
+package servlet;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import com.amazonaws.services.simpledb.model.*;
+import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
+
+/** The bootstrap registry in the proj1bview SimpleDB domain: one item per server
+ *  (server0, server1, ...) with the server's address in its "ip" attribute.
+ *
+ *  The AWS client is only built on first use, so instances that never reach the registry
+ *  (or reach it later) do not wait for it at startup.
+ */
+public class SimpleDBRegistry implements BootstrapRegistry {
+    private static final String DOMAIN = "proj1bview";
+
+    private volatile AmazonSimpleDBClient client = null;
+
+    private AmazonSimpleDBClient getClient() {
+        AmazonSimpleDBClient c = client;
+        if (null == c) {
+            synchronized (this) {
+                if (null == client) {
+                    client = new AmazonSimpleDBClient();
+                }
+                c = client;
+            }
+        }
+        return c;
+    }
+
+    public List<String> lookup() {
+        SelectResult result = getClient().select(new SelectRequest("select ip from " + DOMAIN));
+        List<String> ips = new ArrayList<String>();
+        for (Item item : result.getItems()) {
+            List<Attribute> attrs = item.getAttributes();
+            ips.add(attrs.get(0).getValue());
+        }
+        return ips;
+    }
+
+    public void publish(List<String> ips) {
+        List<ReplaceableItem> new_view = new LinkedList<ReplaceableItem>();
+        for (int i = 0; i < ips.size(); i++) {
+            new_view.add(
+                (new ReplaceableItem("server" + i)).withAttributes(
+                    new ReplaceableAttribute("ip", ips.get(i), true)));
+        }
+
+        for (ReplaceableItem item : new_view) {
+            System.out.println(item);
+        }
+
+        getClient().batchPutAttributes(new BatchPutAttributesRequest(DOMAIN, new_view));
+    }
+
+    /** Shut the client down, which also stops the SDK's idle connection reaper.
+     */
+    public synchronized void close() {
+        if (null != client) {
+            client.shutdown();
+            client = null;
+        }
+    }
+}
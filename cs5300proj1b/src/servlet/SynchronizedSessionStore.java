@@ -0,0 +1,63 @@
+package servlet;
+
+import java.util.HashMap;
+
+/** SessionStore that guards a plain HashMap with a single monitor.
+ *
+ *  This is how the session table used to work; it is kept as the baseline for StoreBench.
+ */
+public class SynchronizedSessionStore implements SessionStore {
+    private final HashMap<String, SessionState> statemap = new HashMap<String, SessionState>();
+
+    public synchronized void put(SessionState session) {
+        statemap.put(session.getSessionId(), session);
+    }
+
+    public synchronized SessionState get(String sessionid) {
+        return statemap.get(sessionid);
+    }
+
+    public synchronized SessionState remove(String sessionid) {
+        return statemap.remove(sessionid);
+    }
+
+    public synchronized SessionState removeIfVersion(String sessionid, int version) {
+        SessionState session = statemap.get(sessionid);
+        if (null == session || session.getVersion() != version) {
+            return null;
+        }
+        return statemap.remove(sessionid);
+    }
+
+    public synchronized boolean replaceIfVersion(int expectedVersion, SessionState session) {
+        SessionState current = statemap.get(session.getSessionId());
+        if (null == current || current.getVersion() != expectedVersion) {
+            return false;
+        }
+        statemap.put(session.getSessionId(), session);
+        return true;
+    }
+
+    public synchronized boolean touch(String sessionid, int oldVersion, int newVersion, long expiresAt) {
+        SessionState session = statemap.get(sessionid);
+        return null != session && session.touch(oldVersion, newVersion, expiresAt);
+    }
+
+    public synchronized SessionState removeIfExpired(String sessionid, long now) {
+        SessionState session = statemap.get(sessionid);
+        if (null == session || session.getExpiresAt() > now) {
+            return null;
+        }
+        return statemap.remove(sessionid);
+    }
+
+    public synchronized String[] getSessionIds() {
+        String[] ids = new String[statemap.size()];
+        statemap.keySet().toArray(ids);
+        return ids;
+    }
+
+    public synchronized int size() {
+        return statemap.size();
+    }
+}
@@ -1,5 +1,6 @@
 package servlet;
 
+import java.io.IOException;
 import java.net.InetAddress;
 
 import java.net.UnknownHostException;
@@ -36,19 +37,21 @@ public class Utils {
      * @return The complete HTML page as a string
      */
     public static String genHTML(String title, String msg, String other) {
-        String docType = 
-            "<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 4.0 " +
-            "Transitional//EN\">\n";
-        String head = 
-            "<HTML>\n" +
-            "<HEAD><TITLE>" + title + "</TITLE></HEAD>\n" +
-            "<BODY BGCOLOR=\"#FDF5E6\">\n";
-        String message = "<H1 ALIGN=\"CENTER\">" + msg + "</H1>\n";
-        String ipstuff = 
-            "<p>Handling Server: " + NetUtils.getIP() + "</p>" + 
-            "<p>View: " + View.getString() + "</p>";
-        String foot = "</BODY></HTML>";
-        return (docType + head + message + other + ipstuff + foot);
+        return PageTemplate.render(title, msg, other);
+    }
+
+    /**
+     * Given the title, message, and any other HTML to display, write the full HTML page as the
+     * response. Cookies must be added before calling this, as the response is committed.
+     *
+     * @param response The response to write the page to
+     * @param title The page title
+     * @param msg The message to display
+     * @param other Any other HTML (e.g. form, errors)
+     */
+    public static void writeHTML(HttpServletResponse response, String title, String msg,
+            String other) throws IOException {
+        PageTemplate.write(response, title, msg, other);
     }
 
 
@@ -68,14 +71,38 @@ public class Utils {
         return (cookie.getName() + " || " + cookie.getValue());
     }
 
+    /** Parse a session cookie's value (in either the legacy or the compact format) once,
+     *  for all of its fields.
+     *
+     *  @param cookie The Cookie to parse
+     *  @return The parsed cookie, or null if its value is malformed
+     */
+    public static SessionCookie parseCookie(Cookie cookie) {
+        return SessionCookie.parse(cookie.getValue());
+    }
+
     /** Given a Cookie (assumed to be in standard format for this codebase),
      *  parse out and return the session id.
      *
      *  @param cookie The Cookie to retrieve the session id from
-     *  @return The session id for this cookie, as an integer.
+     *  @return The session id for this cookie (null if the cookie is malformed)
      */
     public static String getCookieSessionId(Cookie cookie) {
-        return cookie.getValue().split("_")[0];
+        SessionCookie parsed = parseCookie(cookie);
+        return null == parsed ? null : parsed.getSessionId();
+    }
+
+    /** Given a sessionid, version number, and array of servers, construct a String
+     *  representation of this information to be placed in a cookie, in the format set by
+     *  cookie.format.
+     *
+     *  @param sessionid The id of the session the cookie will be associated with.
+     *  @param version The version number of the cookie.
+     *  @param servers The servers (IPv4 addresses as ints) where this session is stored.
+     *  @return The constructed string.
+     */
+    public static String formCookieValue(String sessionid, int version, int[] servers) {
+        return new SessionCookie(sessionid, version, servers).encode();
     }
 
     /** Given a sessionid, version number, and array of server ids, construct a String
@@ -87,11 +114,7 @@ public class Utils {
      *  @return The constructed string.
      */
     public static String formCookieValue(String sessionid, int version, String[] serverids) {
-       String servers = "";
-       for(String id : serverids) {
-           servers += "_" + id;
-       }
-       return (sessionid + "_" + version + servers);
+        return formCookieValue(sessionid, version, SessionCookie.toInts(serverids));
     }
 
     /** Given a cookie value (as set by formCookieValue()), update the version number
@@ -99,16 +122,11 @@ public class Utils {
      *
      *  @param cookieValue The value (String) of the cookie to update the version number of
      *  @param version The new version number for the cookie.
-     *  @return The updated value (String).
+     *  @return The updated value (String), or null if cookieValue is malformed.
      */
     public static String setCookieVersion(String cookieValue, int version) {
-        String[] splitcookie = cookieValue.split("_");
-        splitcookie[1] = "" + version;
-        String newval = splitcookie[0];
-        for (int j = 1; j < splitcookie.length; j++) {
-            newval += "_" + splitcookie[j];
-        }
-        return newval;
+        SessionCookie parsed = SessionCookie.parse(cookieValue);
+        return null == parsed ? null : parsed.withVersion(version).encode();
     }
 
     /** Given a cookie, extract the version number from it's value
@@ -117,17 +135,21 @@ public class Utils {
      * @return The version number of the cookie
      */
     public static int getCookieVersion(Cookie cookie) {
-        return Integer.parseInt(cookie.getValue().split("_", 3)[1]);
+        SessionCookie parsed = parseCookie(cookie);
+        if (null == parsed) {
+            throw new NumberFormatException(cookie.getValue());
+        }
+        return parsed.getVersion();
     }
 
 
     /** Given a cookie, extract the IP addresses of the servers that hold this cookie's session.
      *
      * @param cookie The cookie to extract the server IPs from
-     * @return The list of server IPs (as a String array)
+     * @return The list of server IPs (as a String array; empty if the cookie is malformed)
      */
     public static String[] getCookieIps(Cookie cookie) {
-        String servers_str = cookie.getValue().split("_", 3)[2];
-        return servers_str.split("_");
+        SessionCookie parsed = parseCookie(cookie);
+        return null == parsed ? new String[0] : parsed.getReplicaIps();
     }
 }
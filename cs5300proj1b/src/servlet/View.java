@@ -1,28 +1,103 @@
 package servlet;
 
+import java.io.File;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Collections;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
-import com.amazonaws.services.simpledb.model.*;
-import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
 
 public class View {
 	private static HashSet<InetAddress> viewset = new HashSet<InetAddress>();
-    private static AmazonSimpleDBClient client = new AmazonSimpleDBClient();
-    private static final int MAX_VIEW_SIZE = 5;
+    // msecs after which we republish to the registry even if our view has not changed
+    private static final long PUBLISH_TTL = Config.getInt("bootstrap.ttl", 60) * 1000L;
+    // msecs a file or multicast registry keeps an entry nobody has renewed
+    protected static final long REGISTRY_EXPIRY = 3 * PUBLISH_TTL;
+    private static volatile BootstrapRegistry registry =
+        newRegistry(Config.getString("bootstrap", "simpledb"));
+    private static HashSet<String> lastPublished = new HashSet<String>();
+    private static long lastPublishAt = 0;
+    protected static final int MAX_VIEW_SIZE = 5;
     private static ViewWatcher viewwatcher = new ViewWatcher();
+    private static volatile PlacementStrategy placement = new RendezvousPlacement();
+    // getString() and its UTF-8 bytes, rebuilt on first use after the view changes
+    private static volatile String viewString = null;
+    private static volatile byte[] viewBytes = null;
 
-    /** Take the view, and choose a random subset of (max) size MAX_VIEW_SIZE to maintain, and discard the others.
+    /** Take the view and keep the (max) MAX_VIEW_SIZE servers the placement strategy ranks
+     *  highest for this instance, discarding the others. The subset differs from instance to
+     *  instance but is stable across bootstrap cycles, so placement does not get reshuffled.
      */
     public static synchronized void reduceSetSize() {
-        List<InetAddress> tmp = new LinkedList<InetAddress>(viewset);        
-        Collections.shuffle(tmp);
-        int newsize = Math.min(tmp.size(), MAX_VIEW_SIZE);
-        viewset = new HashSet<InetAddress>(tmp.subList(0, newsize));
+        if (viewset.size() <= MAX_VIEW_SIZE) {
+            return;
+        }
+        InetAddress[] ranked = placement.rank(NetUtils.getIP(), getView());
+        Metrics.VIEW_REMOVED.add(viewset.size() - MAX_VIEW_SIZE);
+        viewset = new HashSet<InetAddress>(Arrays.asList(ranked).subList(0, MAX_VIEW_SIZE));
+        viewString = null;
+    }
+
+    /** Retrieve the servers we believe are up, ordered by the placement strategy's
+     *  preference for a key. This ranks the whole membership rather than the view, which
+     *  only holds the MAX_VIEW_SIZE servers nearest this instance; ranking those would put
+     *  every backup on a handful of servers.
+     *
+     *  @param key The key being placed (e.g. a session id)
+     *  @return The live members, most preferred server first
+     */
+    public static InetAddress[] rank(String key) {
+        return placement.rank(key, Membership.getLive());
+    }
+
+    /** Replace the placement strategy.
+     *
+     *  @param strategy The new strategy
+     */
+    public static void setPlacement(PlacementStrategy strategy) {
+        placement = strategy;
+    }
+
+    /** Replace the bootstrap registry (SimpleDB by default).
+     *
+     *  @param newRegistry The new registry
+     */
+    public static void setRegistry(BootstrapRegistry newRegistry) {
+        registry = newRegistry;
+    }
+
+    /** Close the bootstrap registry (when the instance is undeployed).
+     */
+    public static void closeRegistry() {
+        registry.close();
+    }
+
+    /** Build the bootstrap registry named by the "bootstrap" setting: "simpledb" (the
+     *  default), "file" (the file bootstrap.file) or "multicast" (group bootstrap.group on
+     *  port bootstrap.port). File and multicast entries expire after three publish TTLs.
+     *
+     *  @param kind The kind of registry
+     *  @return The registry
+     */
+    public static BootstrapRegistry newRegistry(String kind) {
+        if ("file".equals(kind)) {
+            return new FileRegistry(new File(Config.getString("bootstrap.file", "proj1bview.txt")),
+                    REGISTRY_EXPIRY);
+        }
+        if ("multicast".equals(kind)) {
+            String group = Config.getString("bootstrap.group", "239.53.0.0");
+            try {
+                return new MulticastRegistry(InetAddress.getByName(group),
+                        Config.getInt("bootstrap.port", 5301), REGISTRY_EXPIRY);
+            } catch (UnknownHostException uhe) {
+                System.out.println("Bad multicast group " + group + ", using SimpleDB");
+            }
+        }
+        return new SimpleDBRegistry();
     }
 
     /** Retrieve this instance's view as an array.
@@ -44,7 +119,12 @@ public class View {
                 addr.getHostAddress().equals(NetUtils.getIP())) {
             return true;
         }
-        return viewset.add(addr);
+        if (viewset.add(addr)) {
+            Metrics.VIEW_ADDED.inc();
+            viewString = null;
+            return true;
+        }
+        return false;
     }
 
     /** Add a new IP address to the view.
@@ -68,26 +148,81 @@ public class View {
      * @return True if the remove succeeds, false otherwise (including addr is already not in view)
      */
     public static synchronized boolean removeAddr(InetAddress addr) {
-        return viewset.remove(addr);
+        if (viewset.remove(addr)) {
+            Metrics.VIEW_REMOVED.inc();
+            viewString = null;
+            return true;
+        }
+        return false;
     }
 
-    /** Get return the view as an "_" separated String.
+    /** Get return the view as an "_" separated String. The string is cached until the
+     *  view next changes, since every page shows it.
      *
      * @return An "_" separated string, where each entry is the string representation of an
      *          IP address contained in this view.
      */
     public static String getString() {
-        InetAddress[] addrs = getView();
+        String view = viewString;
+        if (null != view) {
+            return view;
+        }
+        synchronized (View.class) {
+            if (null == viewString) {
+                InetAddress[] addrs = getView();
+                StringBuilder sb = new StringBuilder(16 * addrs.length + 8);
+                for (int i = 0; i < addrs.length; i++) {
+                    sb.append(0 == i ? "" : "_").append(addrs[i].getHostAddress());
+                }
+                view = 0 == addrs.length ? "0.0.0.0" : sb.toString();
+                viewBytes = view.getBytes(SessionCodec.UTF8);
+                viewString = view;
+            }
+            return viewString;
+        }
+    }
+
+    /** Get the view as getString() does, encoded as UTF-8 (for writing straight to a page).
+     *
+     * @return The bytes of getString(); callers must not modify them
+     */
+    public static byte[] getStringBytes() {
+        if (null == viewString) {
+            getString(); // sets viewBytes before viewString, and viewBytes is never cleared
+        }
+        return viewBytes;
+    }
 
-        if(0 == addrs.length) {
-            return "0.0.0.0";
+    /** Get the view in its wire form: a varint count followed by 4 bytes per IPv4 address.
+     *
+     * @return The encoded view
+     */
+    public static byte[] toBytes() {
+        InetAddress[] addrs = getView();
+        ByteBuffer buff = ByteBuffer.allocate(5 + 4 * addrs.length);
+        SessionCodec.putVarint(buff, addrs.length);
+        for (InetAddress addr : addrs) {
+            buff.putInt(SessionCodec.ipToInt(addr));
         }
+        byte[] bytes = new byte[buff.position()];
+        System.arraycopy(buff.array(), 0, bytes, 0, bytes.length);
+        return bytes;
+    }
 
-        String view = ""  + addrs[0].getHostAddress();
-        for (int i = 1; i < addrs.length; i++) {
-            view = view + "_" + addrs[i].getHostAddress();
+    /** Given a view in wire form (as produced by toBytes()), merge the views.
+     *
+     * @param bytes The encoded view
+     */
+    public static void mergeView(byte[] bytes) {
+        try {
+            ByteBuffer buff = ByteBuffer.wrap(bytes);
+            int count = SessionCodec.getVarint(buff);
+            for (int i = 0; i < count; i++) {
+                addAddr(SessionCodec.intToInetAddress(buff.getInt()));
+            }
+        } catch (BufferUnderflowException bue) {
+            System.out.println("Truncated view in gossip reply");
         }
-        return view;
     }
 
     /** Given an "_" separated string representation of a view, merge the views.
@@ -101,63 +236,62 @@ public class View {
         }
     }
 
-    /** Update our view from the bootstrap, then take a random subset to write back to the domain.
+    /** Update our view from the bootstrap, then reduce it to a subset to write back to the domain.
+     *  The write is skipped if the subset is what we last wrote and that was under
+     *  bootstrap.ttl seconds ago.
      */
     public static void updateBootstrapView() {
         bootstrapView();
         reduceSetSize();
 
         InetAddress[] view = getView();
-        List<ReplaceableItem> new_view = new LinkedList<ReplaceableItem>();
+        List<String> new_view = new ArrayList<String>(view.length + 1);
 
         for (int i = 0; i<view.length; i++) {
-            new_view.add(
-                (new ReplaceableItem("server" + i)).withAttributes(
-                    new ReplaceableAttribute("ip", view[i].getHostAddress(), true)));
+            new_view.add(view[i].getHostAddress());
         }
-        new_view.add(
-                (new ReplaceableItem("server" + view.length)).withAttributes(
-                    new ReplaceableAttribute("ip", NetUtils.getIP(), true)));
+        new_view.add(NetUtils.getIP());
 
-        for (ReplaceableItem item : new_view) {
-            System.out.println(item);
+        if (shouldPublish(new_view)) {
+            registry.publish(new_view);
         }
+    }
 
-        client.batchPutAttributes(new BatchPutAttributesRequest("proj1bview", new_view));
+    /** Decide whether a view needs writing to the registry, and if so note that it is.
+     */
+    private static synchronized boolean shouldPublish(List<String> new_view) {
+        HashSet<String> members = new HashSet<String>(new_view);
+        long now = ExpiryWheel.now();
+        if (members.equals(lastPublished) && now - lastPublishAt < PUBLISH_TTL) {
+            return false;
+        }
+        lastPublished = members;
+        lastPublishAt = now;
+        return true;
     }
 
 
-    /** "Gossip" with a random server in our view, and merge their view.
+    /** "Gossip" with a random server we believe to be up: PING it, so that membership
+     *  updates travel both ways on the request and the reply even when there is no session
+     *  traffic, and a missed reply counts against it in the FailureDetector. Also expire
+     *  suspects that have not refuted in time.
      */
     public static void gossipViewUpdate(Random rand) {
-        InetAddress[] view = getView();
-
-        if(view.length == 0) {
+        Membership.sweep(ExpiryWheel.now());
+        InetAddress target = Membership.pickProbeTarget(rand);
+        if (null == target) {
             return;
         }
-
-        int view_idx = rand.nextInt(view.length);
-
-        byte[] args = NetUtils.getIP().getBytes();
-
-        byte[] reply = NetUtils.sendRequest(
-                NetUtils.GET_VIEW, args, new InetAddress[]{view[view_idx]});
-        
-        if (null != reply && reply.length > 1) {
-            mergeView(new String(reply));
-            System.out.println(new String(reply));
-        }
+        NetUtils.sendRequest(NetUtils.PING, new byte[0], new InetAddress[]{target});
     }
 
     /** Get the boostrap view and add all of the items into our view.
      */
     public static void bootstrapView() {
-        SelectResult result=client.select(new SelectRequest("select ip from proj1bview"));
-        List<Item> items = result.getItems();
-        List<Attribute> attrs;
-        for (Item item : items) {
-            attrs = item.getAttributes();
-            addAddr(attrs.get(0).getValue());
+        for (String ip : registry.lookup()) {
+            if (ip.matches(NetUtils.ip_pattern)) {
+                Membership.discover(SessionCodec.intToInetAddress(SessionCodec.ipToInt(ip)));
+            }
         }
     }
 
@@ -173,15 +307,24 @@ public class View {
         }
     }
 
+    /** Stop the view watcher thread (for good).
+     */
+    public static void stopViewWatcher() {
+        viewwatcher.running = false;
+        viewwatcher.interrupt();
+    }
+
     /** Threads for the purpose of periodically updating [from] the bootstrap view
      */
     private static class ViewWatcher extends Thread {
+        private volatile boolean running = true;
+
         @Override
         public void run() {
             int sleeptime = 5000;
             Random rand = new Random();
 
-            while(true) {
+            while(running) {
                 updateBootstrapView();
                 
                 System.out.println("Bootstrap Update");
@@ -191,6 +334,9 @@ public class View {
                 } catch (Exception e) {
                     //TODO: Handle?
                 }
+                if (!running) {
+                    break;
+                }
 
                 gossipViewUpdate(rand);
                 
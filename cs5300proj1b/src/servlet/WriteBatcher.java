@@ -0,0 +1,306 @@
+package servlet;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/** Coalesces session writes bound for the same server into SESSION_WRITE_BATCH requests.
+ *
+ *  Writes queue up per destination for at most one window (or until the next one would not
+ *  fit in a packet) and then go out together. The batch request is:
+ *  <pre>
+ *  varint  number of sessions
+ *  then per session: varint length, SessionCodec bytes
+ *  </pre>
+ *  and the reply carries the server's IPv4 address followed by a varint count and one
+ *  status byte per session (1 = stored), in request order.
+ */
+public class WriteBatcher extends Thread {
+
+    /** One session write waiting for its batch to be acknowledged.
+     */
+    public static class PendingWrite {
+        private final InetAddress addr;
+        private final byte[] bytes;
+        private final Quorum quorum;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean stored = false;
+
+        PendingWrite(InetAddress addr, byte[] bytes, Quorum quorum) {
+            this.addr = addr;
+            this.bytes = bytes;
+            this.quorum = quorum;
+        }
+
+        void complete(boolean ok) {
+            synchronized (this) {
+                if (0 == done.getCount()) {
+                    return;
+                }
+                stored = ok;
+                done.countDown();
+            }
+            if (null != quorum) {
+                quorum.complete(ok);
+            }
+        }
+
+        /** @return True if the server has acknowledged storing the session
+         */
+        public boolean isStored() {
+            return stored;
+        }
+
+        /** @return True once the write has been acknowledged or has failed
+         */
+        public boolean isDone() {
+            return 0 == done.getCount();
+        }
+
+        /** @return The server this write was sent to
+         */
+        public InetAddress getAddr() {
+            return addr;
+        }
+
+        /** Wait for the batch carrying this write to be acknowledged (or to fail).
+         *
+         * @param timeout The longest to wait, in msecs
+         * @return True if the server stored the session
+         */
+        public boolean await(long timeout) throws InterruptedException {
+            return done.await(timeout, TimeUnit.MILLISECONDS) && stored;
+        }
+    }
+
+    /** Counts the outcomes of a group of writes (e.g. the copies of one session), so the
+     *  writer can go on once enough of them are stored instead of waiting for every one.
+     */
+    public static class Quorum {
+        private int outstanding = 0;
+        private int stored = 0;
+
+        synchronized void add() {
+            outstanding++;
+        }
+
+        synchronized void complete(boolean ok) {
+            outstanding--;
+            if (ok) {
+                stored++;
+            }
+            notifyAll();
+        }
+
+        /** Wait until enough writes are stored, every write is done, or the timeout passes.
+         *
+         * @param needed The number of stored writes to wait for
+         * @param timeout The longest to wait, in msecs
+         * @return The number of writes stored so far
+         */
+        public synchronized int await(int needed, long timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (stored < needed && outstanding > 0) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    break;
+                }
+                wait(left);
+            }
+            return stored;
+        }
+    }
+
+    /** The writes queued for one destination.
+     */
+    private static class Queue {
+        final List<PendingWrite> writes = new ArrayList<PendingWrite>();
+        int bytes = 0;
+        long firstAt = 0;
+    }
+
+    private static final int BATCH_HEADER_LEN = 4 + 2 + 5;
+
+    private final long window;
+    private final ConcurrentHashMap<InetAddress, Queue> queues =
+        new ConcurrentHashMap<InetAddress, Queue>();
+
+    /** @param window The longest a write waits for company, in msecs
+     */
+    public WriteBatcher(long window) {
+        this.window = Math.max(1, window);
+        setDaemon(true);
+        setName("WriteBatcher");
+    }
+
+    /** Queue a session to be written to a server.
+     *
+     * @param addr The server to write to
+     * @param session The session to write
+     * @return A handle to wait on for the outcome
+     */
+    public PendingWrite submit(InetAddress addr, SessionState session) {
+        return submit(addr, session, null);
+    }
+
+    /** Queue a session to be written to a server as one of a group of writes.
+     *
+     * @param addr The server to write to
+     * @param session The session to write
+     * @param quorum Told the outcome of the write (may be null)
+     * @return A handle to wait on for the outcome
+     */
+    public PendingWrite submit(InetAddress addr, SessionState session, Quorum quorum) {
+        byte[] bytes = session.toBytes();
+        if (null != quorum) {
+            quorum.add();
+        }
+        PendingWrite write = new PendingWrite(addr, bytes, quorum);
+        int entryLen = SessionCodec.varintLength(bytes.length) + bytes.length;
+        int limit = NetUtils.packetLimit(addr);
+
+        Queue queue = queues.get(addr);
+        if (null == queue) {
+            Queue fresh = new Queue();
+            queue = queues.putIfAbsent(addr, fresh);
+            if (null == queue) {
+                queue = fresh;
+            }
+        }
+
+        List<PendingWrite> full = null;
+        synchronized (queue) {
+            // if this one would overflow the packet, send what we have first
+            if (!queue.writes.isEmpty() && BATCH_HEADER_LEN + queue.bytes + entryLen > limit) {
+                full = drain(queue);
+            }
+            if (queue.writes.isEmpty()) {
+                queue.firstAt = ExpiryWheel.now();
+            }
+            queue.writes.add(write);
+            queue.bytes += entryLen;
+        }
+        if (null != full) {
+            send(addr, full);
+        }
+        return write;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(window);
+            } catch (InterruptedException ie) {
+                return;
+            }
+            flush(ExpiryWheel.now() - window);
+        }
+    }
+
+    /** Stop the batching thread, sending whatever is still queued first.
+     */
+    public void close() {
+        interrupt();
+        flush(Long.MAX_VALUE);
+    }
+
+    /** Send every batch whose oldest write was queued at or before the cutoff.
+     *
+     * @param cutoff The cutoff, in ExpiryWheel.now() msecs (Long.MAX_VALUE sends everything)
+     */
+    public void flush(long cutoff) {
+        for (InetAddress addr : queues.keySet()) {
+            Queue queue = queues.get(addr);
+            if (null == queue) {
+                continue;
+            }
+            List<PendingWrite> batch = null;
+            synchronized (queue) {
+                if (!queue.writes.isEmpty() && queue.firstAt <= cutoff) {
+                    batch = drain(queue);
+                }
+            }
+            if (null != batch) {
+                send(addr, batch);
+            }
+        }
+    }
+
+    private static List<PendingWrite> drain(Queue queue) {
+        List<PendingWrite> batch = new ArrayList<PendingWrite>(queue.writes);
+        queue.writes.clear();
+        queue.bytes = 0;
+        return batch;
+    }
+
+    /** Send one batch and arrange for its writers to be told the outcome.
+     */
+    private void send(final InetAddress addr, final List<PendingWrite> batch) {
+        int len = 5;
+        for (PendingWrite write : batch) {
+            len += SessionCodec.varintLength(write.bytes.length) + write.bytes.length;
+        }
+        ByteBuffer args = ByteBuffer.allocate(len);
+        SessionCodec.putVarint(args, batch.size());
+        for (PendingWrite write : batch) {
+            SessionCodec.putVarint(args, write.bytes.length);
+            args.put(write.bytes);
+        }
+        byte[] argBytes = new byte[args.position()];
+        System.arraycopy(args.array(), 0, argBytes, 0, argBytes.length);
+
+        try {
+            InetAddress[] to = new InetAddress[]{addr};
+            RPCFuture call = NetUtils.getClient().call(NetUtils.SESSION_WRITE_BATCH, argBytes,
+                    to, 1, FailureDetector.timeoutFor(to));
+            call.addListener(new RPCFuture.Listener() {
+                public void done(RPCFuture future) {
+                    complete(addr, batch, future);
+                }
+            });
+        } catch (IOException ioe) {
+            System.out.println(ioe.getMessage());
+            for (PendingWrite write : batch) {
+                write.complete(false);
+            }
+        }
+    }
+
+    /** Hand each writer its entry of the batch's status vector.
+     */
+    private static void complete(InetAddress addr, List<PendingWrite> batch, RPCFuture future) {
+        byte[] reply = null;
+        try {
+            reply = future.get(0, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (null == reply) {
+            for (PendingWrite write : batch) {
+                write.complete(false);
+            }
+            return;
+        }
+
+        try {
+            ByteBuffer buff = ByteBuffer.wrap(reply);
+            buff.getInt(); // server ip
+            int count = SessionCodec.getVarint(buff);
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).complete(i < count && 1 == buff.get());
+            }
+        } catch (BufferUnderflowException bue) {
+            for (PendingWrite write : batch) {
+                write.complete(false);
+            }
+        }
+    }
+}